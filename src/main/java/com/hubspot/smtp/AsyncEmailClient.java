@@ -2,12 +2,10 @@ package com.hubspot.smtp;
 
 
 import com.hubspot.smtp.client.*;
+import com.hubspot.smtp.messages.MessageContent;
 import com.hubspot.smtp.utils.EventLoopGroupFactory;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
-import io.netty.handler.codec.smtp.DefaultSmtpRequest;
-import io.netty.handler.codec.smtp.SmtpCommand;
-import io.netty.handler.codec.smtp.SmtpRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.mail.MailException;
@@ -29,17 +27,17 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Properties;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static com.hubspot.smtp.messages.MessageContent.of;
-import static io.netty.handler.codec.smtp.SmtpCommand.*;
-import static java.lang.Integer.valueOf;
 import static java.time.Duration.ofSeconds;
 import static java.util.concurrent.Executors.newFixedThreadPool;
 import static java.util.stream.Stream.of;
@@ -47,37 +45,52 @@ import static javax.mail.Message.RecipientType.*;
 
 public class AsyncEmailClient implements JavaMailSender {
     private String domain;
-    private String localhost;
+    private CompletableFuture<String> localhost;
     private String username;
     private String password;
     private SmtpSessionFactory factory;
-    private ThreadLocal<CompletableFuture<SmtpClientResponse>> threadLocal;
+    private SmtpSessionHandshake handshake;
+    private SmtpSessionPool pool;
     private static final Logger LOG = LoggerFactory.getLogger(AsyncEmailClient.class);
+    private static final Duration MAX_IDLE_TIME = ofSeconds(60);
 
     public AsyncEmailClient(String domain, String remoteAddress, String username, String password, int smtpPort, long connectionTimeout) throws UnknownHostException {
+        this(domain, remoteAddress, username, password, smtpPort, connectionTimeout, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a client that sends messages over at most {@code maxConnections} connections, which are
+     * shared by all threads calling {@link #send(MimeMessage)}.
+     */
+    public AsyncEmailClient(String domain, String remoteAddress, String username, String password, int smtpPort, long connectionTimeout, int maxConnections) throws UnknownHostException {
         this.domain = domain;
         this.username = username;
         this.password = password;
-        InetAddress remote;
-        localhost = InetAddress.getLocalHost().getCanonicalHostName();
-        remote = InetAddress.getByName(remoteAddress);
+        // the remote address is resolved when connecting, and the local host name only when
+        // NTLM needs it, so that slow DNS lookups don't hold up the constructor
         SmtpSessionConfig smtpSessionConfig = SmtpSessionConfig
                 .builder()
                 .connectionTimeout(ofSeconds(connectionTimeout))
-                .remoteAddress(new InetSocketAddress(remote, valueOf(smtpPort)))
+                .remoteAddress(InetSocketAddress.createUnresolved(remoteAddress, smtpPort))
                 .build();
         int processors = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = newFixedThreadPool(processors);
+        localhost = CompletableFuture.supplyAsync(AsyncEmailClient::getLocalHostName, executor);
         factory = new SmtpSessionFactory(
                 SmtpSessionFactoryConfig
                         .builder()
-                        .executor(newFixedThreadPool(processors))
+                        .executor(executor)
                         .eventLoopGroup(EventLoopGroupFactory.create(processors))
                         .build(),
                 smtpSessionConfig);
-        threadLocal = ThreadLocal.withInitial(() -> factory.connect()
-                .thenCompose(this::assertSuccess)
-                .thenCompose(s -> s.send(req(EHLO, remoteAddress)))
-                .thenCompose(r -> auth(r, domain, localhost, username, password)));
+        // we authenticate ourselves because the handshake doesn't support NTLM
+        handshake = SmtpSessionHandshake.builder().ehloDomain(domain).isStartTlsEnabled(false).build();
+        pool = factory.newPool(SmtpSessionPoolConfig
+                .builder()
+                .maxSize(maxConnections)
+                .maxIdleTime(MAX_IDLE_TIME)
+                .sessionInitializer(this::initialize)
+                .build());
     }
 
 
@@ -86,29 +99,32 @@ public class AsyncEmailClient implements JavaMailSender {
             ByteArrayOutputStream stream = new ByteArrayOutputStream();
             msg.writeTo(stream);
             String from = toString(msg.getFrom());
-            List<SmtpRequest> to = toRequest(RCPT, "TO:", msg.getRecipients(TO), msg.getRecipients(CC), msg.getRecipients(BCC));
-            CompletableFuture<SmtpClientResponse> future = threadLocal.get().thenCompose(r -> ensureConnection(r, domain, localhost, username, password));
-            future = future.thenCompose(this::assertSuccess).thenCompose(s -> s.send(req(MAIL, "FROM:<" + from + ">")));
-            for (SmtpRequest req : to) {
-                future = future.thenCompose(this::assertSuccess).thenCompose(s -> s.send(req));
-            }
-            future = future.thenCompose(this::assertSuccess).thenCompose(s -> s.send(req(DATA)))
-                    .thenCompose(this::assertSuccess).thenCompose(s -> s.send(of(createBuffer(stream.toByteArray()))))
-                    .thenCompose(this::assertSuccess).thenCompose(s -> s.send(req(RSET)))
-                    .thenCompose(r -> {
-                        close(stream);
-                        return CompletableFuture.completedFuture(r);
-                    })
-                    .exceptionally(t -> {
+            List<String> to = toRecipients(msg.getRecipients(TO), msg.getRecipients(CC), msg.getRecipients(BCC));
+            MessageContent content = of(createBuffer(stream.toByteArray()));
+            pool.acquire()
+                    .thenCompose(session -> send(session, from, to, content))
+                    .whenComplete((r, t) -> {
                         close(stream);
-                        return null;
+                        if (t != null) {
+                            LOG.warn("Unable to send email", t);
+                        } else if (r.containsError()) {
+                            LOG.warn("Received error: {}", r);
+                        }
                     });
-            threadLocal.set(future);
         } catch (IOException | MessagingException e) {
             throw new MailPreparationException("Unable to parse email", e);
         }
     }
 
+    private CompletableFuture<SmtpClientResponse> send(SmtpSession session, String from, List<String> to, MessageContent content) {
+        try {
+            return session.send(from, to, content).whenComplete((r, t) -> pool.release(session));
+        } catch (RuntimeException e) {
+            pool.release(session);
+            throw e;
+        }
+    }
+
     private void close(OutputStream outputStream) {
         try {
             outputStream.close();
@@ -126,17 +142,30 @@ public class AsyncEmailClient implements JavaMailSender {
                 .orElse("");
     }
 
-    private List<SmtpRequest> toRequest(SmtpCommand command, String arg, Address[]... addresses) {
+    private List<String> toRecipients(Address[]... addresses) {
         return of(addresses)
                 .filter(Objects::nonNull)
                 .flatMap(Stream::of)
                 .map(Address::toString)
-                .map(to -> req(command, arg + "<" + to + ">"))
                 .collect(Collectors.toCollection(ArrayList::new));
     }
 
 
-    private static CompletableFuture<SmtpClientResponse> auth(SmtpClientResponse r, String domain, String localhost, String username, String password) {
+    private CompletableFuture<SmtpClientResponse> initialize(SmtpClientResponse greeting) {
+        return handshake.apply(greeting)
+                .thenCompose(r -> r.containsError() ? CompletableFuture.completedFuture(r) : auth(r, domain, localhost, username, password));
+    }
+
+    private static String getLocalHostName() {
+        try {
+            return InetAddress.getLocalHost().getCanonicalHostName();
+        } catch (UnknownHostException e) {
+            LOG.warn("Unable to resolve the local host name", e);
+            return "localhost";
+        }
+    }
+
+    private static CompletableFuture<SmtpClientResponse> auth(SmtpClientResponse r, String domain, CompletableFuture<String> localhost, String username, String password) {
         LOG.info("{} Auth: {}", Thread.currentThread().getName(), r);
         if (r.getSession().getEhloResponse().isAuthPlainSupported()) {
             return r.getSession().authPlain(username, password);
@@ -145,26 +174,12 @@ public class AsyncEmailClient implements JavaMailSender {
         } else if (r.getSession().getEhloResponse().isAuthXoauth2Supported()) {
             return r.getSession().authXoauth2(username, password);
         } else if(r.getSession().getEhloResponse().isNtlmSupported()){
-            return r.getSession().ntlmAuth(domain, localhost, username, password);
+            return localhost.thenCompose(host -> r.getSession().ntlmAuth(domain, host, username, password));
         } else {
             return CompletableFuture.completedFuture(r);
         }
     }
 
-    private CompletableFuture<SmtpClientResponse> ensureConnection(SmtpClientResponse r, String domain, String localhost, String username, String password) {
-        LOG.info("{} Start ensuring connection: {}", Thread.currentThread().getName(), r);
-        if (!r.getSession().isActive()) {
-            LOG.info("{} Connection closed. Reconnecting: {}", Thread.currentThread().getName(), r);
-            return factory.connect()
-                    .thenCompose(r1 -> r1.getSession().send(req(EHLO, domain)))
-                    .thenCompose(r2 -> auth(r2, domain, localhost, username, password));
-        } else {
-            LOG.info("{} Connection active. Continue: {}", Thread.currentThread().getName(), r);
-            return CompletableFuture.completedFuture(r);
-        }
-    }
-
-
     protected CompletableFuture<SmtpSession> assertSuccess(SmtpClientResponse r) {
         if (r.containsError()) {
             int code = r.getResponses().iterator().next().code();
@@ -181,10 +196,6 @@ public class AsyncEmailClient implements JavaMailSender {
         return Unpooled.wrappedBuffer(s);
     }
 
-    private SmtpRequest req(SmtpCommand command, CharSequence... arguments) {
-        return new DefaultSmtpRequest(command, arguments);
-    }
-
 
     @Override
     public MimeMessage createMimeMessage() {
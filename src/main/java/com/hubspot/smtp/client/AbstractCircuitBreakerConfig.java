@@ -0,0 +1,41 @@
+package com.hubspot.smtp.client;
+
+import java.time.Duration;
+
+import org.immutables.value.Value.Check;
+import org.immutables.value.Value.Default;
+import org.immutables.value.Value.Immutable;
+import org.immutables.value.Value.Style;
+import org.immutables.value.Value.Style.ImplementationVisibility;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Configures the {@link CircuitBreaker} instances created by a {@link CircuitBreakerRegistry}.
+ */
+@Immutable
+@Style(typeImmutable = "*", visibility = ImplementationVisibility.PUBLIC)
+abstract class AbstractCircuitBreakerConfig {
+  /**
+   * The number of consecutive failures after which the circuit opens.
+   */
+  @Default
+  public int getFailureThreshold() {
+    return 5;
+  }
+
+  /**
+   * The time for which the circuit stays open, failing connections immediately,
+   * before a single connection is allowed through to probe the server.
+   */
+  @Default
+  public Duration getOpenDuration() {
+    return Duration.ofSeconds(30);
+  }
+
+  @Check
+  protected void check() {
+    Preconditions.checkState(getFailureThreshold() > 0, "failureThreshold must be positive");
+    Preconditions.checkState(!getOpenDuration().isNegative(), "openDuration must not be negative");
+  }
+}
@@ -0,0 +1,39 @@
+package com.hubspot.smtp.client;
+
+import java.util.List;
+
+import org.immutables.value.Value.Check;
+import org.immutables.value.Value.Immutable;
+import org.immutables.value.Value.Parameter;
+import org.immutables.value.Value.Style;
+import org.immutables.value.Value.Style.ImplementationVisibility;
+
+import com.google.common.base.Preconditions;
+import com.hubspot.smtp.messages.MessageContent;
+
+/**
+ * A message and its envelope, to be sent with {@link SmtpSession#sendAll(java.util.Iterator)}.
+ */
+@Immutable
+@Style(typeImmutable = "*", visibility = ImplementationVisibility.PUBLIC)
+abstract class AbstractOutgoingMessage {
+  /**
+   * The sender of the message, surrounded by &lt; and &gt;, e.g. {@code "<alice@example.com>"}.
+   */
+  @Parameter
+  public abstract String getSender();
+
+  /**
+   * The intended recipients, each surrounded by &lt; and &gt;.
+   */
+  @Parameter
+  public abstract List<String> getRecipients();
+
+  @Parameter
+  public abstract MessageContent getContent();
+
+  @Check
+  protected void check() {
+    Preconditions.checkState(!getRecipients().isEmpty(), "recipients must be > 0");
+  }
+}
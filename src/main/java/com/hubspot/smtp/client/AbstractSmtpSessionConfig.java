@@ -70,6 +70,15 @@ abstract class AbstractSmtpSessionConfig {
     return Duration.ofMinutes(2);
   }
 
+  /**
+   * The time to wait for a greeting from one address before also trying the next, when the
+   * remote host resolves to several addresses.
+   */
+  @Default
+  public Duration getConnectionAttemptDelay() {
+    return Duration.ofMillis(250);
+  }
+
   /**
    * Extensions which should not be used when communicating with the remote server.
    *
@@ -89,10 +98,60 @@ abstract class AbstractSmtpSessionConfig {
     return "unidentified-connection";
   }
 
+  /**
+   * The most responses to RCPT commands that may be outstanding when sending to many
+   * recipients with {@link Extension#PIPELINING}.
+   *
+   * <p>Up to this many recipients are pipelined in one write. Larger envelopes are written
+   * in groups of half this size, and each group is written once the responses to the
+   * group before last have arrived, so the server never has more than this many commands
+   * to buffer.
+   */
+  @Default
+  public int getRecipientWindowSize() {
+    return 100;
+  }
+
+  /**
+   * The most bytes of message content that may be outstanding in BDAT chunks, i.e. sent
+   * but not yet acknowledged, when the server supports {@link Extension#CHUNKING} and
+   * {@link Extension#PIPELINING}.
+   *
+   * <p>Chunks are written ahead of the server's responses until this many bytes are
+   * outstanding, or the channel stops being writable, so that large messages don't wait
+   * a round trip per chunk. Zero sends each chunk only after the previous one is accepted.
+   */
+  @Default
+  public int getChunkWindowBytes() {
+    return 1024 * 1024;
+  }
+
+  /**
+   * The largest chunk that message content read from a stream is split into, whether
+   * it is sent in BDAT chunks or after DATA.
+   *
+   * <p>Each session sizes chunks to the bandwidth-delay product it measures while sending,
+   * up to this size, half the chunk window and the server's maximum message size. A message
+   * whose size is known and fits in one chunk is sent in a single BDAT LAST.
+   *
+   * <p>Content backed by an {@code InputStream} is read synchronously on the session's
+   * event loop, so reading a large chunk blocks every other session on that loop. Chunks
+   * read from a stream are therefore also limited to
+   * {@link com.hubspot.smtp.messages.InputStreamMessageContent#MAX_CHUNK_SIZE}.
+   */
+  @Default
+  public int getMaxChunkSize() {
+    return 1024 * 1024;
+  }
+
   @Check
   protected void check() {
     Preconditions.checkState(!getKeepAliveTimeout().orElse(Duration.ofSeconds(1)).isZero(),
         "keepAliveTimeout must not be zero; use Optional.empty() to disable keepalive");
+    Preconditions.checkState(!getConnectionAttemptDelay().isNegative(), "connectionAttemptDelay must not be negative");
+    Preconditions.checkState(getRecipientWindowSize() >= 2, "recipientWindowSize must be at least 2");
+    Preconditions.checkState(getChunkWindowBytes() >= 0, "chunkWindowBytes must not be negative");
+    Preconditions.checkState(getMaxChunkSize() > 0, "maxChunkSize must be positive");
   }
 
   /**
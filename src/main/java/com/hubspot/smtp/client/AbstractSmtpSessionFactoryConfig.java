@@ -1,6 +1,8 @@
 package com.hubspot.smtp.client;
 
+import java.net.SocketAddress;
 import java.security.KeyStore;
+import java.util.Optional;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -24,6 +26,7 @@ import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.resolver.AddressResolverGroup;
 
 /**
  * Shared configuration for all connections.
@@ -90,6 +93,31 @@ abstract class AbstractSmtpSessionFactoryConfig {
     return NioSocketChannel.class;
   }
 
+  /**
+   * A Netty {@code AddressResolverGroup} that will be used to resolve unresolved remote addresses
+   * when connecting. The default resolves host names without blocking the event loop, and caches
+   * the results; see {@link CachingAddressResolverGroup}.
+   */
+  @Default
+  public AddressResolverGroup<? extends SocketAddress> getAddressResolverGroup() {
+    return CachingAddressResolverGroup.getDefault();
+  }
+
+  /**
+   * The {@link WireTrace} that logs the commands and responses of sampled sessions when
+   * its logger is enabled at {@code DEBUG}. The default traces every session.
+   */
+  @Default
+  public WireTrace getWireTrace() {
+    return WireTrace.getDefault();
+  }
+
+  /**
+   * Tracks failures for each remote server, so that connections to servers that are down
+   * fail immediately. If empty, connections are always attempted.
+   */
+  public abstract Optional<CircuitBreakerRegistry> getCircuitBreakerRegistry();
+
   private SSLEngine createSSLEngine() {
     try {
       TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
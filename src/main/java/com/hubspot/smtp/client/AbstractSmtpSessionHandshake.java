@@ -0,0 +1,120 @@
+package com.hubspot.smtp.client;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.immutables.value.Value.Check;
+import org.immutables.value.Value.Default;
+import org.immutables.value.Value.Immutable;
+import org.immutables.value.Value.Style;
+import org.immutables.value.Value.Style.ImplementationVisibility;
+
+import com.google.common.base.Preconditions;
+
+import io.netty.handler.codec.smtp.SmtpRequests;
+
+/**
+ * A session initializer for {@link SmtpSessionPoolConfig#getSessionInitializer()} that
+ * sends EHLO, starts TLS if the server supports it and authenticates, so that pooled
+ * sessions are ready to send a message as soon as they are acquired.
+ *
+ * <p>The first of AUTH PLAIN, AUTH LOGIN and AUTH XOAUTH2 supported by the server is used.
+ * If credentials are provided, the handshake fails if the server supports none of these
+ * mechanisms, or if the session is not encrypted and {@link #isPlaintextAuthAllowed()} is
+ * not set, since each of them sends the credentials in the clear.
+ */
+@Immutable
+@Style(typeImmutable = "*", visibility = ImplementationVisibility.PUBLIC)
+abstract class AbstractSmtpSessionHandshake implements Function<SmtpClientResponse, CompletableFuture<SmtpClientResponse>> {
+  /**
+   * The domain sent with the EHLO command.
+   */
+  public abstract String getEhloDomain();
+
+  /**
+   * Whether STARTTLS should be sent when the server advertises it.
+   */
+  @Default
+  public boolean isStartTlsEnabled() {
+    return true;
+  }
+
+  /**
+   * The username used to authenticate.
+   */
+  public abstract Optional<String> getUsername();
+
+  /**
+   * The password (or, for XOAUTH2, the access token) used to authenticate.
+   */
+  public abstract Optional<String> getPassword();
+
+  /**
+   * Whether credentials may be sent over a session that is not encrypted, e.g. because
+   * the server doesn't support STARTTLS.
+   */
+  @Default
+  public boolean isPlaintextAuthAllowed() {
+    return false;
+  }
+
+  @Check
+  protected void check() {
+    Preconditions.checkState(getUsername().isPresent() == getPassword().isPresent(),
+        "username and password must be specified together");
+  }
+
+  @Override
+  public CompletableFuture<SmtpClientResponse> apply(SmtpClientResponse greeting) {
+    SmtpSession session = greeting.getSession();
+
+    return session.send(SmtpRequests.ehlo(getEhloDomain()))
+        .thenCompose(r -> r.containsError() ? CompletableFuture.completedFuture(r) : startTlsIfSupported(r))
+        .thenCompose(r -> r.containsError() ? CompletableFuture.completedFuture(r) : authenticate(r));
+  }
+
+  private CompletableFuture<SmtpClientResponse> startTlsIfSupported(SmtpClientResponse r) {
+    SmtpSession session = r.getSession();
+
+    if (isStartTlsEnabled() && !session.isEncrypted() && session.getEhloResponse().isSupported(Extension.STARTTLS)) {
+      return session.startTls();
+    }
+
+    return CompletableFuture.completedFuture(r);
+  }
+
+  private CompletableFuture<SmtpClientResponse> authenticate(SmtpClientResponse r) {
+    if (!getUsername().isPresent()) {
+      return CompletableFuture.completedFuture(r);
+    }
+
+    SmtpSession session = r.getSession();
+
+    if (!session.isEncrypted() && !isPlaintextAuthAllowed()) {
+      return failedFuture(new SessionInitializationException(session.getConnectionId(),
+          "Refusing to send credentials over a session that is not encrypted"));
+    }
+
+    EhloResponse ehloResponse = session.getEhloResponse();
+    String username = getUsername().get();
+    String password = getPassword().get();
+
+    if (ehloResponse.isAuthPlainSupported()) {
+      return session.authPlain(username, password);
+    } else if (ehloResponse.isAuthLoginSupported()) {
+      return session.authLogin(username, password);
+    } else if (ehloResponse.isAuthXoauth2Supported()) {
+      return session.authXoauth2(username, password);
+    } else {
+      return failedFuture(new SessionInitializationException(session.getConnectionId(),
+          "The server does not support any of AUTH PLAIN, AUTH LOGIN or AUTH XOAUTH2"));
+    }
+  }
+
+  private static CompletableFuture<SmtpClientResponse> failedFuture(Throwable cause) {
+    CompletableFuture<SmtpClientResponse> future = new CompletableFuture<>();
+    future.completeExceptionally(cause);
+    return future;
+  }
+}
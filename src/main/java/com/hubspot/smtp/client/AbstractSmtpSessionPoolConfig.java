@@ -0,0 +1,124 @@
+package com.hubspot.smtp.client;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.immutables.value.Value.Check;
+import org.immutables.value.Value.Default;
+import org.immutables.value.Value.Immutable;
+import org.immutables.value.Value.Style;
+import org.immutables.value.Value.Style.ImplementationVisibility;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Configures a {@link SmtpSessionPool}.
+ */
+@Immutable
+@Style(typeImmutable = "*", visibility = ImplementationVisibility.PUBLIC)
+abstract class AbstractSmtpSessionPoolConfig {
+  /**
+   * The number of sessions the pool will try to keep open, even when they are idle.
+   */
+  @Default
+  public int getMinSize() {
+    return 0;
+  }
+
+  /**
+   * The maximum number of sessions, including those still connecting, the pool will open.
+   */
+  @Default
+  public int getMaxSize() {
+    return 8;
+  }
+
+  /**
+   * The number of idle, initialized sessions the pool will try to keep ready ahead
+   * of demand, as long as it holds fewer than {@link #getMaxSize()} sessions. Sessions
+   * are connected in the background to replace those that are acquired or closed, so
+   * callers don't have to wait for a connection and its handshake.
+   */
+  @Default
+  public int getPrefillSize() {
+    return 0;
+  }
+
+  /**
+   * The time after which an idle session will be closed, as long as the pool
+   * still holds at least {@link #getMinSize()} sessions and {@link #getPrefillSize()}
+   * idle sessions.
+   */
+  public abstract Optional<Duration> getMaxIdleTime();
+
+  /**
+   * The time a caller of {@link SmtpSessionPool#acquire()} will wait for a session
+   * when the pool is exhausted.
+   */
+  public abstract Optional<Duration> getAcquireTimeout();
+
+  /**
+   * The number of mail transactions after which a session will be retired with QUIT
+   * when it is released.
+   */
+  public abstract OptionalInt getMaxTransactionsPerSession();
+
+  /**
+   * The number of bytes a session may send before it is retired with QUIT when it is released.
+   */
+  public abstract OptionalLong getMaxBytesPerSession();
+
+  /**
+   * The time after which a session will be retired with QUIT, either when it is released
+   * or while it is idle.
+   */
+  public abstract Optional<Duration> getMaxSessionAge();
+
+  /**
+   * The proportion by which each session's limits are randomly reduced, so that sessions
+   * opened together are not all retired together. For example, with a jitter of {@code 0.2}
+   * and a maximum age of ten minutes, each session will be retired after between eight and
+   * ten minutes.
+   */
+  @Default
+  public double getSessionLimitJitter() {
+    return 0.2;
+  }
+
+  /**
+   * The time the pool waits before connecting again after a connection fails. The delay
+   * doubles with each consecutive failure, up to 30 seconds, and is
+   * reset once a session connects.
+   */
+  @Default
+  public Duration getConnectRetryDelay() {
+    return Duration.ofMillis(100);
+  }
+
+  /**
+   * Prepares a newly connected session before it is handed out, e.g. by sending EHLO
+   * and authenticating; see {@link SmtpSessionHandshake}. It receives the server's greeting and returns the response to
+   * the last command it sent; sessions whose initialization returns an error response
+   * are closed and never enter the pool.
+   */
+  @Default
+  public Function<SmtpClientResponse, CompletableFuture<SmtpClientResponse>> getSessionInitializer() {
+    return CompletableFuture::completedFuture;
+  }
+
+  @Check
+  protected void check() {
+    Preconditions.checkState(getMinSize() >= 0, "minSize must not be negative");
+    Preconditions.checkState(getMaxSize() > 0, "maxSize must be greater than zero");
+    Preconditions.checkState(getMinSize() <= getMaxSize(), "minSize must not be greater than maxSize");
+    Preconditions.checkState(getPrefillSize() >= 0, "prefillSize must not be negative");
+    Preconditions.checkState(getSessionLimitJitter() >= 0 && getSessionLimitJitter() < 1, "sessionLimitJitter must be at least 0 and less than 1");
+    Preconditions.checkState(!getConnectRetryDelay().isNegative(), "connectRetryDelay must not be negative");
+    Preconditions.checkState(!getMaxIdleTime().orElse(Duration.ofSeconds(1)).isZero(),
+        "maxIdleTime must not be zero; use Optional.empty() to keep idle sessions open");
+  }
+}
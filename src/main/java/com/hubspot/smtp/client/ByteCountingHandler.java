@@ -0,0 +1,34 @@
+package com.hubspot.smtp.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Counts the bytes written to a channel, so sessions can be retired after sending a given amount.
+ *
+ * <p>This handler sits in front of the encoders so it only sees encoded buffers, and behind
+ * any {@code SslHandler}, so it counts the bytes sent before encryption.
+ */
+class ByteCountingHandler extends ChannelOutboundHandlerAdapter {
+  private final AtomicLong bytesWritten = new AtomicLong();
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    if (msg instanceof ByteBuf) {
+      bytesWritten.addAndGet(((ByteBuf) msg).readableBytes());
+    } else if (msg instanceof ByteBufHolder) {
+      bytesWritten.addAndGet(((ByteBufHolder) msg).content().readableBytes());
+    }
+
+    super.write(ctx, msg, promise);
+  }
+
+  long getBytesWritten() {
+    return bytesWritten.get();
+  }
+}
@@ -0,0 +1,159 @@
+package com.hubspot.smtp.client;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hubspot.smtp.utils.AsyncTtlCache;
+
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.InetNameResolver;
+import io.netty.util.NetUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * A Netty {@code AddressResolverGroup} that resolves host names without blocking the
+ * event loop, and caches the results.
+ *
+ * <p>The JDK only offers blocking lookups, so they are performed on a separate
+ * {@code Executor} and the results handed back to the event loop. Successful lookups
+ * are cached for the TTL passed to the constructor, and concurrent lookups for the
+ * same host share a single call to the JDK; see {@link AsyncTtlCache}. IP address
+ * literals are never looked up.
+ *
+ * <p>This class is thread-safe.
+ */
+public class CachingAddressResolverGroup extends AddressResolverGroup<InetSocketAddress> {
+  private static final Duration DEFAULT_TTL = Duration.ofSeconds(30);
+  private static final int DEFAULT_LOOKUP_THREADS = 16;
+  private static final int DEFAULT_LOOKUP_QUEUE_SIZE = 1024;
+
+  private static final com.google.common.base.Supplier<CachingAddressResolverGroup> DEFAULT_INSTANCE = Suppliers.memoize(CachingAddressResolverGroup::createDefault);
+
+  private final Executor lookupExecutor;
+  private final HostLookup hostLookup;
+  private final AsyncTtlCache<String, List<InetAddress>> cache;
+
+  private static CachingAddressResolverGroup createDefault() {
+    ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("niosmtpclient-dns-%d").build();
+
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_LOOKUP_THREADS, DEFAULT_LOOKUP_THREADS, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(DEFAULT_LOOKUP_QUEUE_SIZE), threadFactory);
+    executor.allowCoreThreadTimeOut(true);
+
+    return new CachingAddressResolverGroup(executor, DEFAULT_TTL);
+  }
+
+  /**
+   * Gets a shared instance that performs lookups on a pool of up to 16 daemon threads and
+   * caches results for 30 seconds. Lookups that would queue behind more than 1024 others
+   * fail with a {@code RejectedExecutionException} rather than waiting indefinitely.
+   */
+  public static CachingAddressResolverGroup getDefault() {
+    return DEFAULT_INSTANCE.get();
+  }
+
+  /**
+   * Creates a group that performs lookups on {@code lookupExecutor}, which must not be
+   * a Netty event loop, and caches the results for {@code ttl}.
+   */
+  public CachingAddressResolverGroup(Executor lookupExecutor, Duration ttl) {
+    this(lookupExecutor, ttl, Ticker.systemTicker(), InetAddress::getAllByName);
+  }
+
+  @VisibleForTesting
+  CachingAddressResolverGroup(Executor lookupExecutor, Duration ttl, Ticker ticker, HostLookup hostLookup) {
+    Preconditions.checkArgument(!ttl.isNegative(), "ttl must not be negative");
+
+    long ttlNanos = ttl.toNanos();
+
+    this.lookupExecutor = lookupExecutor;
+    this.hostLookup = hostLookup;
+    this.cache = new AsyncTtlCache<>(this::lookup, addresses -> ttlNanos, ticker);
+  }
+
+  @Override
+  protected AddressResolver<InetSocketAddress> newResolver(EventExecutor executor) {
+    return new CachingNameResolver(executor).asAddressResolver();
+  }
+
+  @VisibleForTesting
+  CompletableFuture<List<InetAddress>> getAddresses(String host) {
+    byte[] ipAddress = NetUtil.createByteArrayFromIpAddressString(host);
+    if (ipAddress != null) {
+      try {
+        return CompletableFuture.completedFuture(Arrays.asList(InetAddress.getByAddress(host, ipAddress)));
+      } catch (UnknownHostException e) {
+        // only thrown for addresses of illegal length, which createByteArrayFromIpAddressString never returns
+        throw new IllegalStateException(e);
+      }
+    }
+
+    return cache.get(host.toLowerCase(Locale.ROOT));
+  }
+
+  private CompletableFuture<List<InetAddress>> lookup(String host) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return Arrays.asList(hostLookup.lookup(host));
+      } catch (UnknownHostException e) {
+        throw new CompletionException(e);
+      }
+    }, lookupExecutor);
+  }
+
+  private static Throwable unwrap(Throwable throwable) {
+    return throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+  }
+
+  @VisibleForTesting
+  interface HostLookup {
+    InetAddress[] lookup(String host) throws UnknownHostException;
+  }
+
+  private class CachingNameResolver extends InetNameResolver {
+    CachingNameResolver(EventExecutor executor) {
+      super(executor);
+    }
+
+    @Override
+    protected void doResolve(String inetHost, Promise<InetAddress> promise) {
+      getAddresses(inetHost).whenComplete((addresses, throwable) -> {
+        if (throwable != null) {
+          promise.tryFailure(unwrap(throwable));
+        } else {
+          promise.trySuccess(addresses.get(0));
+        }
+      });
+    }
+
+    @Override
+    protected void doResolveAll(String inetHost, Promise<List<InetAddress>> promise) {
+      getAddresses(inetHost).whenComplete((addresses, throwable) -> {
+        if (throwable != null) {
+          promise.tryFailure(unwrap(throwable));
+        } else {
+          promise.trySuccess(addresses);
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.hubspot.smtp.client;
+
+/**
+ * Chooses the size of the chunks a session reads message content in, from the round
+ * trip time and throughput it has measured so far.
+ *
+ * <p>Chunks are sized to the bandwidth-delay product, so that with the chunk window
+ * one chunk can be in flight while the next is read and written, but are kept between
+ * {@link #MIN_CHUNK_SIZE} and the configured maximum so that a slow or unmeasured link
+ * doesn't lead to tiny chunks and a fast one doesn't stall the event loop reading a
+ * huge one. Until both have been measured, {@link #INITIAL_CHUNK_SIZE} is used.
+ *
+ * <p>Samples are smoothed with the same weights TCP uses for its round trip time.
+ *
+ * <p>This class is thread-safe.
+ */
+class ChunkSizeEstimator {
+  static final int INITIAL_CHUNK_SIZE = 64 * 1024;
+  static final int MIN_CHUNK_SIZE = 8 * 1024;
+
+  private static final double SMOOTHING_FACTOR = 0.125;
+
+  private final int maxChunkSize;
+
+  private double smoothedRoundTripNanos;
+  private double smoothedBytesPerNano;
+
+  ChunkSizeEstimator(int maxChunkSize) {
+    this.maxChunkSize = Math.max(maxChunkSize, MIN_CHUNK_SIZE);
+  }
+
+  /**
+   * Records the time between writing commands and receiving their responses, for commands
+   * that were written when nothing else was in flight.
+   */
+  synchronized void addRoundTrip(long elapsedNanos) {
+    if (elapsedNanos <= 0) {
+      return;
+    }
+
+    smoothedRoundTripNanos = smooth(smoothedRoundTripNanos, elapsedNanos);
+  }
+
+  /**
+   * Records the time between writing a chunk of {@code bytes} and receiving its response,
+   * for a chunk that was written when nothing else was in flight.
+   */
+  synchronized void addTransfer(long bytes, long elapsedNanos) {
+    if (bytes <= 0 || elapsedNanos <= 0) {
+      return;
+    }
+
+    // the elapsed time includes a round trip; at least half of it is counted as transfer
+    // time so a chunk that is small for the link at most doubles the estimate
+    double transferNanos = Math.max(elapsedNanos - smoothedRoundTripNanos, elapsedNanos / 2.0);
+    smoothedBytesPerNano = smooth(smoothedBytesPerNano, bytes / transferNanos);
+  }
+
+  /**
+   * Records the time between the response to the step before a chunk of {@code bytes} and
+   * the response to the chunk, for a chunk that was pipelined behind other steps.
+   *
+   * <p>The server answers pipelined steps in order, so the chunk's transfer began when the
+   * previous response was sent, and the time between the two responses is spent transferring
+   * the chunk rather than on a round trip or queued behind earlier chunks.
+   */
+  synchronized void addPipelinedTransfer(long bytes, long nanosSincePreviousResponse) {
+    if (bytes <= 0 || nanosSincePreviousResponse <= 0) {
+      return;
+    }
+
+    smoothedBytesPerNano = smooth(smoothedBytesPerNano, bytes / (double) nanosSincePreviousResponse);
+  }
+
+  /**
+   * Gets the chunk size to use, which is at most {@code limit}.
+   */
+  synchronized int getChunkSize(long limit) {
+    long chunkSize;
+    if (smoothedRoundTripNanos == 0 || smoothedBytesPerNano == 0) {
+      chunkSize = INITIAL_CHUNK_SIZE;
+    } else {
+      chunkSize = (long) (smoothedBytesPerNano * smoothedRoundTripNanos);
+    }
+
+    chunkSize = Math.max(chunkSize, MIN_CHUNK_SIZE);
+    chunkSize = Math.min(chunkSize, maxChunkSize);
+    return (int) Math.max(1, Math.min(chunkSize, limit));
+  }
+
+  private static double smooth(double smoothed, double sample) {
+    return smoothed == 0 ? sample : smoothed + SMOOTHING_FACTOR * (sample - smoothed);
+  }
+}
@@ -0,0 +1,90 @@
+package com.hubspot.smtp.client;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Tracks failures talking to a single remote server, so that connections to a server
+ * that is down can fail immediately instead of waiting for a timeout.
+ *
+ * <p>The circuit starts {@link State#CLOSED}, and opens after
+ * {@link CircuitBreakerConfig#getFailureThreshold()} consecutive failures. While it is
+ * {@link State#OPEN}, {@link #tryAcquirePermission()} returns false. Once
+ * {@link CircuitBreakerConfig#getOpenDuration()} has passed, the circuit becomes
+ * {@link State#HALF_OPEN} and a single caller is allowed through; the circuit closes
+ * if that attempt succeeds, and opens again if it fails.
+ *
+ * <p>This class is thread-safe.
+ */
+public class CircuitBreaker {
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final CircuitBreakerConfig config;
+  private final Ticker ticker;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAtNanos;
+  private boolean isProbeInProgress;
+
+  CircuitBreaker(CircuitBreakerConfig config, Ticker ticker) {
+    this.config = config;
+    this.ticker = ticker;
+  }
+
+  /**
+   * Returns true if an attempt to use the server may be made, in which case its outcome
+   * must be reported with {@link #recordSuccess()} or {@link #recordFailure()}.
+   */
+  public synchronized boolean tryAcquirePermission() {
+    switch (getState()) {
+      case CLOSED:
+        return true;
+
+      case HALF_OPEN:
+        if (isProbeInProgress) {
+          return false;
+        }
+
+        isProbeInProgress = true;
+        return true;
+
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Records a successful attempt, closing the circuit.
+   */
+  public synchronized void recordSuccess() {
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+    isProbeInProgress = false;
+  }
+
+  /**
+   * Records a failed attempt, opening the circuit if the failure threshold has been
+   * reached or the attempt was a probe.
+   */
+  public synchronized void recordFailure() {
+    consecutiveFailures++;
+
+    if (getState() == State.HALF_OPEN || consecutiveFailures >= config.getFailureThreshold()) {
+      state = State.OPEN;
+      openedAtNanos = ticker.read();
+      isProbeInProgress = false;
+    }
+  }
+
+  public synchronized State getState() {
+    if (state == State.OPEN && ticker.read() - openedAtNanos >= config.getOpenDuration().toNanos()) {
+      state = State.HALF_OPEN;
+    }
+
+    return state;
+  }
+}
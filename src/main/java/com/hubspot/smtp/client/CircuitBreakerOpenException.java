@@ -0,0 +1,15 @@
+package com.hubspot.smtp.client;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Unchecked exception thrown when a connection or a message is not attempted because too
+ * many recent attempts to reach the remote server have failed.
+ *
+ * @see CircuitBreakerRegistry
+ */
+public class CircuitBreakerOpenException extends SmtpException {
+  public CircuitBreakerOpenException(String connectionId, InetSocketAddress remoteAddress) {
+    super(connectionId, String.format("Not using %s because its circuit breaker is open", remoteAddress));
+  }
+}
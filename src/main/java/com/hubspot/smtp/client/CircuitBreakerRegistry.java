@@ -0,0 +1,41 @@
+package com.hubspot.smtp.client;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+/**
+ * Holds a {@link CircuitBreaker} for each remote server.
+ *
+ * <p>Set {@link SmtpSessionFactoryConfig#getCircuitBreakerRegistry()} to make every factory
+ * using that configuration fail {@link SmtpSessionFactory#connect()} immediately with a
+ * {@link CircuitBreakerOpenException} while the circuit for its remote address is open.
+ * Connection failures, greeting timeouts and 421 responses count as failures.
+ *
+ * <p>This class is thread-safe.
+ */
+public class CircuitBreakerRegistry {
+  private final CircuitBreakerConfig config;
+  private final Ticker ticker;
+  private final ConcurrentMap<InetSocketAddress, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+  public CircuitBreakerRegistry(CircuitBreakerConfig config) {
+    this(config, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  CircuitBreakerRegistry(CircuitBreakerConfig config, Ticker ticker) {
+    this.config = config;
+    this.ticker = ticker;
+  }
+
+  /**
+   * Gets the circuit breaker for {@code remoteAddress}, creating it if necessary.
+   */
+  public CircuitBreaker get(InetSocketAddress remoteAddress) {
+    return circuitBreakers.computeIfAbsent(remoteAddress, ignored -> new CircuitBreaker(config, ticker));
+  }
+}
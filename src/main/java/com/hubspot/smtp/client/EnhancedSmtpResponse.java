@@ -0,0 +1,63 @@
+package com.hubspot.smtp.client;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.netty.handler.codec.smtp.SmtpResponse;
+
+/**
+ * An {@link SmtpResponse} whose details begin with an {@link EnhancedStatusCode}, which
+ * has already been parsed.
+ *
+ * <p>This class is immutable.
+ */
+public final class EnhancedSmtpResponse implements SmtpResponse {
+  private final int code;
+  private final EnhancedStatusCode enhancedStatusCode;
+  private final List<CharSequence> details;
+
+  public EnhancedSmtpResponse(int code, EnhancedStatusCode enhancedStatusCode, CharSequence... details) {
+    this.code = code;
+    this.enhancedStatusCode = enhancedStatusCode;
+    this.details = Collections.unmodifiableList(Arrays.asList(details));
+  }
+
+  @Override
+  public int code() {
+    return code;
+  }
+
+  @Override
+  public List<CharSequence> details() {
+    return details;
+  }
+
+  public EnhancedStatusCode getEnhancedStatusCode() {
+    return enhancedStatusCode;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+
+    if (!(o instanceof EnhancedSmtpResponse)) {
+      return false;
+    }
+
+    EnhancedSmtpResponse other = (EnhancedSmtpResponse) o;
+    return code == other.code && enhancedStatusCode.equals(other.enhancedStatusCode) && details.equals(other.details);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 * code + enhancedStatusCode.hashCode()) + details.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "EnhancedSmtpResponse{code=" + code + ", enhancedStatusCode=" + enhancedStatusCode + ", details=" + details + '}';
+  }
+}
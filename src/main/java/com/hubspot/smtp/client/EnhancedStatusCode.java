@@ -0,0 +1,208 @@
+package com.hubspot.smtp.client;
+
+import java.util.Optional;
+
+import com.google.common.base.Preconditions;
+
+import io.netty.handler.codec.smtp.SmtpResponse;
+
+/**
+ * An enhanced mail system status code, as defined by RFC 3463, e.g. {@code 5.1.1}.
+ *
+ * <p>When a server supports {@link Extension#ENHANCEDSTATUSCODES}, {@link SmtpSession}
+ * parses the code at the start of each response, so it can be read from the response
+ * with {@link #fromResponse(SmtpResponse)} without examining the response's details.
+ *
+ * <p>This class is immutable.
+ */
+public final class EnhancedStatusCode {
+  /**
+   * A coarse category for an enhanced status code, to help decide what to do about a
+   * failure.
+   */
+  public enum Classification {
+    /**
+     * The mailbox does not exist or will never accept mail, e.g. {@code 5.1.1}.
+     * Covers X.1.1, X.1.3, X.1.6 and 5.2.1.
+     */
+    BAD_MAILBOX,
+
+    /**
+     * The mailbox is full, i.e. X.2.2.
+     */
+    MAILBOX_FULL,
+
+    /**
+     * The server is refusing mail because of a security or policy decision, i.e. X.7.X.
+     */
+    POLICY,
+
+    /**
+     * The server is refusing mail because it is receiving too much, i.e. X.4.5 or 4.2.1,
+     * which large providers use to say a mailbox is receiving mail too quickly.
+     */
+    RATE_LIMIT,
+
+    /**
+     * Any other code, including every success code.
+     */
+    OTHER
+  }
+
+  private final int packedCode;
+  private final Classification classification;
+
+  private EnhancedStatusCode(int statusClass, int subject, int detail) {
+    this.packedCode = statusClass * 1_000_000 + subject * 1000 + detail;
+    this.classification = classify(statusClass, subject, detail);
+  }
+
+  /**
+   * Creates a code from its parts.
+   *
+   * @throws IllegalArgumentException if {@code statusClass} is not 2, 4 or 5, or
+   *         {@code subject} or {@code detail} is not between 0 and 999
+   */
+  public static EnhancedStatusCode of(int statusClass, int subject, int detail) {
+    Preconditions.checkArgument(isValidClass(statusClass), "statusClass must be 2, 4 or 5");
+    Preconditions.checkArgument(subject >= 0 && subject <= 999, "subject must be between 0 and 999");
+    Preconditions.checkArgument(detail >= 0 && detail <= 999, "detail must be between 0 and 999");
+
+    return new EnhancedStatusCode(statusClass, subject, detail);
+  }
+
+  /**
+   * Parses the code at the start of {@code text}, e.g. the details of a response
+   * like "5.1.1 No such user".
+   */
+  public static Optional<EnhancedStatusCode> parse(CharSequence text) {
+    return Optional.ofNullable(parseOrNull(text));
+  }
+
+  /**
+   * Gets the code that {@link SmtpSession} parsed from {@code response}, if the server
+   * supports enhanced status codes and the response began with one.
+   */
+  public static Optional<EnhancedStatusCode> fromResponse(SmtpResponse response) {
+    if (response instanceof EnhancedSmtpResponse) {
+      return Optional.of(((EnhancedSmtpResponse) response).getEnhancedStatusCode());
+    }
+
+    return Optional.empty();
+  }
+
+  // reads the characters directly so that parsing an AsciiString doesn't create a String
+  static EnhancedStatusCode parseOrNull(CharSequence text) {
+    int length = text.length();
+    if (length < 5) {
+      return null;
+    }
+
+    int statusClass = Character.digit(text.charAt(0), 10);
+    if (!isValidClass(statusClass) || text.charAt(1) != '.') {
+      return null;
+    }
+
+    int subject = 0;
+    int i = 2;
+    for (; i < length && i < 5 && isDigit(text.charAt(i)); i++) {
+      subject = subject * 10 + (text.charAt(i) - '0');
+    }
+
+    if (i == 2 || i == length || text.charAt(i) != '.') {
+      return null;
+    }
+
+    int detailStart = ++i;
+    int detail = 0;
+    for (; i < length && i < detailStart + 3 && isDigit(text.charAt(i)); i++) {
+      detail = detail * 10 + (text.charAt(i) - '0');
+    }
+
+    if (i == detailStart || (i < length && text.charAt(i) != ' ')) {
+      return null;
+    }
+
+    return new EnhancedStatusCode(statusClass, subject, detail);
+  }
+
+  // the packed form is never 0, so 0 can stand for "no code" in arrays of packed codes
+  int getPackedCode() {
+    return packedCode;
+  }
+
+  static EnhancedStatusCode fromPackedCode(int packedCode) {
+    return new EnhancedStatusCode(packedCode / 1_000_000, (packedCode / 1000) % 1000, packedCode % 1000);
+  }
+
+  private static boolean isValidClass(int statusClass) {
+    return statusClass == 2 || statusClass == 4 || statusClass == 5;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static Classification classify(int statusClass, int subject, int detail) {
+    switch (subject) {
+      case 1:
+        return detail == 1 || detail == 3 || detail == 6 ? Classification.BAD_MAILBOX : Classification.OTHER;
+      case 2:
+        if (detail == 2) {
+          return Classification.MAILBOX_FULL;
+        } else if (detail == 1) {
+          return statusClass == 4 ? Classification.RATE_LIMIT : Classification.BAD_MAILBOX;
+        }
+        return Classification.OTHER;
+      case 4:
+        return detail == 5 ? Classification.RATE_LIMIT : Classification.OTHER;
+      case 7:
+        return Classification.POLICY;
+      default:
+        return Classification.OTHER;
+    }
+  }
+
+  /**
+   * Gets the class, which is 2 for success, 4 for a transient failure or 5 for a
+   * permanent failure.
+   */
+  public int getStatusClass() {
+    return packedCode / 1_000_000;
+  }
+
+  public int getSubject() {
+    return (packedCode / 1000) % 1000;
+  }
+
+  public int getDetail() {
+    return packedCode % 1000;
+  }
+
+  public Classification getClassification() {
+    return classification;
+  }
+
+  public boolean isTransientFailure() {
+    return getStatusClass() == 4;
+  }
+
+  public boolean isPermanentFailure() {
+    return getStatusClass() == 5;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof EnhancedStatusCode && ((EnhancedStatusCode) o).packedCode == packedCode;
+  }
+
+  @Override
+  public int hashCode() {
+    return packedCode;
+  }
+
+  @Override
+  public String toString() {
+    return getStatusClass() + "." + getSubject() + "." + getDetail();
+  }
+}
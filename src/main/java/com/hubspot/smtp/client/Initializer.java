@@ -27,6 +27,7 @@ class Initializer extends ChannelInitializer<SocketChannel> {
   private ChannelHandler[] getChannelHandlers() {
     List<ChannelHandler> handlers = new ArrayList<>();
 
+    handlers.add(new ByteCountingHandler());
     handlers.add(new Utf8SmtpRequestEncoder());
     handlers.add(new Utf8SmtpResponseDecoder(MAX_LINE_LENGTH));
     handlers.add(new ChunkedWriteHandler());
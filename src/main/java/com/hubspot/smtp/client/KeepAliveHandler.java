@@ -16,8 +16,6 @@ import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
 
-import static com.hubspot.smtp.client.SmtpSessionFactory.CHANNEL_KEY;
-
 class KeepAliveHandler extends IdleStateHandler {
   private static final Logger LOG = LoggerFactory.getLogger(KeepAliveHandler.class);
 
@@ -44,7 +42,7 @@ class KeepAliveHandler extends IdleStateHandler {
       return;
     }
 
-    Optional<String> debugString = responseHandler.getPendingResponseDebugString(ctx.channel().attr(CHANNEL_KEY).get());
+    Optional<String> debugString = responseHandler.getPendingResponseDebugString(ctx.channel());
     if (debugString.isPresent()) {
       LOG.warn("[{}] Waiting for a response to [{}], will not send a NOOP to keep the connection alive", connectionId, debugString.get());
     } else {
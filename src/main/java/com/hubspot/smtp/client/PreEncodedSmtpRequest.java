@@ -0,0 +1,92 @@
+package com.hubspot.smtp.client;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.smtp.SmtpCommand;
+import io.netty.handler.codec.smtp.SmtpRequest;
+
+/**
+ * An {@link SmtpRequest} that is encoded once, when it is created, and is then written
+ * to the server from the same bytes each time it is sent.
+ *
+ * <p>This is useful for commands that are sent over and over, like the MAIL command for
+ * a sender that sends many messages, since sending them skips encoding entirely.
+ *
+ * <p>This class is immutable.
+ */
+public final class PreEncodedSmtpRequest implements SmtpRequest {
+  private final SmtpRequest request;
+  private final byte[] bytes;
+
+  private PreEncodedSmtpRequest(SmtpRequest request, byte[] bytes) {
+    this.request = request;
+    this.bytes = bytes;
+  }
+
+  /**
+   * Encodes {@code request}.
+   *
+   * @throws NullPointerException if {@code request} is null
+   */
+  public static PreEncodedSmtpRequest of(SmtpRequest request) {
+    Preconditions.checkNotNull(request);
+
+    if (request instanceof PreEncodedSmtpRequest) {
+      return (PreEncodedSmtpRequest) request;
+    }
+
+    ByteBuf buffer = Unpooled.buffer(Utf8SmtpRequestEncoder.getEncodedLength(request));
+    try {
+      Utf8SmtpRequestEncoder.writeRequest(request, buffer);
+
+      byte[] bytes = new byte[buffer.readableBytes()];
+      buffer.readBytes(bytes);
+      return new PreEncodedSmtpRequest(request, bytes);
+    } finally {
+      buffer.release();
+    }
+  }
+
+  @Override
+  public SmtpCommand command() {
+    return request.command();
+  }
+
+  @Override
+  public List<CharSequence> parameters() {
+    return request.parameters();
+  }
+
+  int getLength() {
+    return bytes.length;
+  }
+
+  void writeTo(ByteBuf out) {
+    out.writeBytes(bytes);
+  }
+
+  // wraps the bytes without copying them; nothing writes to the returned buffer
+  ByteBuf toByteBuf() {
+    return Unpooled.wrappedBuffer(bytes);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof PreEncodedSmtpRequest && Arrays.equals(bytes, ((PreEncodedSmtpRequest) o).bytes);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(bytes);
+  }
+
+  @Override
+  public String toString() {
+    return "PreEncodedSmtpRequest{" + request + '}';
+  }
+}
@@ -1,11 +1,11 @@
 package com.hubspot.smtp.client;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 
 import io.netty.handler.codec.smtp.SmtpResponse;
 
@@ -14,16 +14,29 @@ import io.netty.handler.codec.smtp.SmtpResponse;
  *
  */
 class ResponseCollector {
+  static final long NO_DEADLINE = Long.MAX_VALUE;
+
   private final CompletableFuture<List<SmtpResponse>> future;
   private final List<SmtpResponse> responses;
   private final Supplier<String> debugString;
+  private final long deadlineNanos;
   private int remainingResponses;
 
   ResponseCollector(int expectedResponses, Supplier<String> debugString) {
+    this(expectedResponses, debugString, NO_DEADLINE);
+  }
+
+  /**
+   * Creates a collector which should time out when {@link System#nanoTime()} reaches
+   * {@code deadlineNanos}, or never if it is {@link #NO_DEADLINE}.
+   */
+  ResponseCollector(int expectedResponses, Supplier<String> debugString, long deadlineNanos) {
     this.remainingResponses = expectedResponses;
     this.debugString = debugString;
+    this.deadlineNanos = deadlineNanos;
 
-    responses = Lists.newArrayListWithExpectedSize(expectedResponses);
+    // sized exactly, since we know how many responses to expect
+    responses = new ArrayList<>(expectedResponses);
     future = new CompletableFuture<>();
   }
 
@@ -31,6 +44,14 @@ class ResponseCollector {
     return future;
   }
 
+  boolean hasDeadline() {
+    return deadlineNanos != NO_DEADLINE;
+  }
+
+  long getDeadlineNanos() {
+    return deadlineNanos;
+  }
+
   public String getDebugString() {
     return debugString.get();
   }
@@ -45,7 +66,9 @@ class ResponseCollector {
   }
 
   void complete() {
-    Preconditions.checkState(remainingResponses == 0, "Still waiting for " + remainingResponses + " responses");
+    if (remainingResponses != 0) {
+      throw new IllegalStateException("Still waiting for " + remainingResponses + " responses");
+    }
 
     future.complete(responses);
   }
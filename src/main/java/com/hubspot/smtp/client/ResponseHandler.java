@@ -1,23 +1,22 @@
 package com.hubspot.smtp.client;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.smtp.SmtpResponse;
 import io.netty.handler.timeout.ReadTimeoutException;
 import io.netty.util.Attribute;
-import io.netty.util.HashedWheelTimer;
-import io.netty.util.Timeout;
+import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
@@ -27,12 +26,20 @@ import static com.hubspot.smtp.client.SmtpSessionFactory.CHANNEL_KEY;
 
 /**
  * A Netty handler that collects responses to SMTP commands and makes them available.
+ *
+ * <p>Each channel keeps a queue of the collectors waiting for responses, in the order their
+ * commands were sent, so several groups of commands can be in flight at once. Responses are
+ * given to the collector at the head of the queue until it has all the responses it expects.
+ *
+ * <p>Response timeouts are checked by a single task per channel, scheduled on the channel's
+ * event loop for the earliest deadline of the pending collectors. The task is not cancelled
+ * when responses arrive; when it runs it fails any collectors that have expired and
+ * reschedules itself for the next deadline, if there is one.
  */
 @ChannelHandler.Sharable
 class ResponseHandler extends SimpleChannelInboundHandler<SmtpResponse> {
     private static final Logger LOG = LoggerFactory.getLogger(ResponseHandler.class);
-    private static final HashedWheelTimer TIMER = new HashedWheelTimer(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("response-timer-%d").build());
-    private final Map<String, ResponseCollector> responseCollector = new ConcurrentHashMap<>();
+    private static final AttributeKey<PendingResponses> PENDING_RESPONSES_KEY = AttributeKey.valueOf("sm-smtp-pending-responses");
     private final Optional<Duration> defaultResponseTimeout;
     private final Optional<Consumer<Throwable>> exceptionHandler;
 
@@ -41,57 +48,85 @@ class ResponseHandler extends SimpleChannelInboundHandler<SmtpResponse> {
         this.exceptionHandler = exceptionHandler;
     }
 
-    CompletableFuture<List<SmtpResponse>> createResponseFuture(String channelId, int expectedResponses, Supplier<String> debugStringSupplier) {
-        return createResponseFuture(channelId, expectedResponses, defaultResponseTimeout, debugStringSupplier);
+    CompletableFuture<List<SmtpResponse>> createResponseFuture(Channel channel, int expectedResponses, Supplier<String> debugStringSupplier) {
+        return createResponseFuture(channel, expectedResponses, defaultResponseTimeout, debugStringSupplier);
     }
 
-    CompletableFuture<List<SmtpResponse>> createResponseFuture(String channelId, int expectedResponses, Optional<Duration> responseTimeout, Supplier<String> debugStringSupplier) {
-        ResponseCollector collector = new ResponseCollector(expectedResponses, debugStringSupplier);
-        responseCollector.put(channelId, collector);
-        CompletableFuture<List<SmtpResponse>> responseFuture = collector.getFuture();
+    /**
+     * Creates a future that will complete with the next {@code expectedResponses} responses
+     * received on {@code channel} after those expected by previously created futures. The future
+     * must be created before the commands it is waiting for are written to the channel.
+     */
+    CompletableFuture<List<SmtpResponse>> createResponseFuture(Channel channel, int expectedResponses, Optional<Duration> responseTimeout, Supplier<String> debugStringSupplier) {
+        responseTimeout = responseTimeout.isPresent() ? responseTimeout : defaultResponseTimeout;
+        long deadlineNanos = responseTimeout.isPresent() ? System.nanoTime() + responseTimeout.get().toNanos() : ResponseCollector.NO_DEADLINE;
+
+        ResponseCollector collector = new ResponseCollector(expectedResponses, debugStringSupplier, deadlineNanos);
+        PendingResponses pendingResponses = getOrCreatePendingResponses(channel);
+        pendingResponses.collectors.add(collector);
+
+        if (collector.hasDeadline() && pendingResponses.armDeadline(deadlineNanos)) {
+            scheduleDeadlineCheck(channel, pendingResponses, deadlineNanos);
+        }
 
-        applyResponseTimeout(channelId, responseFuture, responseTimeout, debugStringSupplier);
+        return collector.getFuture();
+    }
 
-        return responseFuture;
+    private void scheduleDeadlineCheck(Channel channel, PendingResponses pendingResponses, long deadlineNanos) {
+        channel.eventLoop().schedule(() -> checkDeadlines(channel, pendingResponses),
+                deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
     }
 
-    private void applyResponseTimeout(String connectionId, CompletableFuture<List<SmtpResponse>> responseFuture, Optional<Duration> responseTimeout, Supplier<String> debugStringSupplier) {
-        responseTimeout = responseTimeout.isPresent() ? responseTimeout : defaultResponseTimeout;
+    private void checkDeadlines(Channel channel, PendingResponses pendingResponses) {
+        // disarm before scanning, so a collector added during the scan arms its own check
+        pendingResponses.disarmDeadline();
 
-        responseTimeout.ifPresent(timeout -> {
-            Timeout hwtTimeout = TIMER.newTimeout(ignored -> {
+        long nowNanos = System.nanoTime();
+        long nextDeadlineNanos = ResponseCollector.NO_DEADLINE;
+
+        // a collector that times out stays in the queue so that, if its responses
+        // arrive late, they aren't mistaken for responses to later commands
+        for (ResponseCollector collector : pendingResponses.collectors) {
+            if (!collector.hasDeadline() || collector.getFuture().isDone()) {
+                continue;
+            }
+
+            if (nowNanos - collector.getDeadlineNanos() >= 0) {
                 String message = String.format("[%s] Timed out waiting for a response to [%s]",
-                        connectionId, debugStringSupplier.get());
+                        getConnectionId(channel), collector.getDebugString());
 
-                responseFuture.completeExceptionally(new TimeoutException(message));
-            }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+                collector.getFuture().completeExceptionally(new TimeoutException(message));
+            } else if (nextDeadlineNanos == ResponseCollector.NO_DEADLINE || collector.getDeadlineNanos() - nextDeadlineNanos < 0) {
+                nextDeadlineNanos = collector.getDeadlineNanos();
+            }
+        }
 
-            responseFuture.whenComplete((ignored1, ignored2) -> hwtTimeout.cancel());
-        });
+        if (nextDeadlineNanos != ResponseCollector.NO_DEADLINE && pendingResponses.armDeadline(nextDeadlineNanos)) {
+            scheduleDeadlineCheck(channel, pendingResponses, nextDeadlineNanos);
+        }
     }
 
-    Optional<String> getPendingResponseDebugString(String channelId) {
-        return Optional.ofNullable(this.responseCollector.get(channelId)).map(ResponseCollector::getDebugString);
+    Optional<String> getPendingResponseDebugString(Channel channel) {
+        Queue<ResponseCollector> collectors = getPendingCollectors(channel);
+        return Optional.ofNullable(collectors == null ? null : collectors.peek()).map(ResponseCollector::getDebugString);
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, SmtpResponse msg) throws Exception {
-        String key = Optional
-                .ofNullable(ctx).map(ChannelHandlerContext::channel)
-                .map(c -> c.attr(CHANNEL_KEY))
-                .map(Attribute::get)
-                .map(String::toString).orElse("");
-        ResponseCollector collector = responseCollector.get(key);
+        Queue<ResponseCollector> collectors = getPendingCollectors(ctx.channel());
+        ResponseCollector collector = collectors == null ? null : collectors.peek();
         if (collector == null) {
-            LOG.warn("[{}] Unexpected response received: {}", key, msg);
+            LOG.warn("[{}] Unexpected response received: {}", getConnectionId(ctx.channel()), msg);
         } else {
-            LOG.info("{} Received response from channel {} is: {}", Thread.currentThread().getName(), ctx.channel(), msg);
+            WireTrace.SessionTrace wireTrace = WireTrace.forChannel(ctx.channel());
+            if (wireTrace != null) {
+                wireTrace.received(msg);
+            }
             boolean complete = collector.addResponse(msg);
             if (complete) {
-                // because only the event loop code sets this field when it is non-null,
-                // and because channelRead is always run in the same thread, we can
-                // be sure this value hasn't changed since we read it earlier in this method
-                responseCollector.remove(key);
+                // only the event loop removes collectors, so the head
+                // can't have changed since we peeked at it
+                collectors.poll();
                 collector.complete();
             }
         }
@@ -99,18 +134,12 @@ class ResponseHandler extends SimpleChannelInboundHandler<SmtpResponse> {
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        Channel channel = ctx == null ? null : ctx.channel();
         if (cause instanceof ReadTimeoutException) {
-            LOG.warn("[{}] The channel was closed because a read timed out", ctx.channel().attr(CHANNEL_KEY).get());
+            LOG.warn("[{}] The channel was closed because a read timed out", getConnectionId(channel));
         }
-        String key = Optional
-                .ofNullable(ctx).map(ChannelHandlerContext::channel)
-                .map(c -> c.attr(CHANNEL_KEY))
-                .map(Attribute::get)
-                .map(String::toString).orElse("");
-        ResponseCollector collector = responseCollector.remove(key);
-        if (collector != null) {
-            collector.completeExceptionally(cause);
-        } else {
+
+        if (!failPendingCollectors(channel, cause)) {
             // this exception can't get back to the client via a future,
             // use the connection exception handler if possible
             if (exceptionHandler.isPresent()) {
@@ -123,16 +152,76 @@ class ResponseHandler extends SimpleChannelInboundHandler<SmtpResponse> {
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        String key = Optional
-                .ofNullable(ctx).map(ChannelHandlerContext::channel)
-                .map(c -> c.attr(CHANNEL_KEY))
-                .map(Attribute::get)
-                .map(String::toString).orElse("");
-        ResponseCollector collector = responseCollector.get(key);
+        Channel channel = ctx.channel();
+        Queue<ResponseCollector> collectors = getPendingCollectors(channel);
+        ResponseCollector collector = collectors == null ? null : collectors.peek();
         if (collector != null) {
-            collector.completeExceptionally(new ChannelClosedException(key, "Handled channelInactive while waiting for a response to [" + collector.getDebugString() + "]"));
+            failPendingCollectors(channel, new ChannelClosedException(getConnectionId(channel),
+                    "Handled channelInactive while waiting for a response to [" + collector.getDebugString() + "]"));
         }
 
         super.channelInactive(ctx);
     }
+
+    // returns true if any collectors were waiting for responses
+    private boolean failPendingCollectors(Channel channel, Throwable cause) {
+        Queue<ResponseCollector> collectors = getPendingCollectors(channel);
+        if (collectors == null) {
+            return false;
+        }
+
+        boolean failedAny = false;
+        ResponseCollector collector;
+        while ((collector = collectors.poll()) != null) {
+            collector.completeExceptionally(cause);
+            failedAny = true;
+        }
+
+        return failedAny;
+    }
+
+    private static Queue<ResponseCollector> getPendingCollectors(Channel channel) {
+        PendingResponses pendingResponses = channel == null ? null : channel.attr(PENDING_RESPONSES_KEY).get();
+        return pendingResponses == null ? null : pendingResponses.collectors;
+    }
+
+    private static PendingResponses getOrCreatePendingResponses(Channel channel) {
+        Attribute<PendingResponses> attribute = channel.attr(PENDING_RESPONSES_KEY);
+        PendingResponses pendingResponses = attribute.get();
+        if (pendingResponses != null) {
+            return pendingResponses;
+        }
+
+        PendingResponses newPendingResponses = new PendingResponses();
+        pendingResponses = attribute.setIfAbsent(newPendingResponses);
+        return pendingResponses == null ? newPendingResponses : pendingResponses;
+    }
+
+    private static String getConnectionId(Channel channel) {
+        return channel == null ? "" : Optional.ofNullable(channel.attr(CHANNEL_KEY)).map(Attribute::get).orElse("");
+    }
+
+    private static class PendingResponses {
+        final Queue<ResponseCollector> collectors = new ConcurrentLinkedQueue<>();
+
+        // the deadline the check task is scheduled for, if it is scheduled
+        private boolean isDeadlineArmed;
+        private long armedDeadlineNanos;
+
+        // returns true if a check must be scheduled, which is only when
+        // none is scheduled or the new deadline is before the armed one
+        synchronized boolean armDeadline(long deadlineNanos) {
+            if (isDeadlineArmed && deadlineNanos - armedDeadlineNanos >= 0) {
+                return false;
+            }
+
+            isDeadlineArmed = true;
+            armedDeadlineNanos = deadlineNanos;
+            return true;
+        }
+
+        synchronized void disarmDeadline() {
+            isDeadlineArmed = false;
+        }
+    }
 }
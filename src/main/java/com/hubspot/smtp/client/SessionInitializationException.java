@@ -0,0 +1,17 @@
+package com.hubspot.smtp.client;
+
+/**
+ * Unchecked exception thrown when a pooled session could not be prepared for use,
+ * e.g. because the server rejected its EHLO or AUTH command or couldn't
+ * authenticate it securely.
+ *
+ */
+public class SessionInitializationException extends SmtpException {
+  public SessionInitializationException(String connectionId, SmtpClientResponse response) {
+    super(connectionId, String.format("Could not initialize the session (%s)", response));
+  }
+
+  public SessionInitializationException(String connectionId, String message) {
+    super(connectionId, String.format("Could not initialize the session: %s", message));
+  }
+}
@@ -1,6 +1,8 @@
 package com.hubspot.smtp.client;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 import com.google.common.collect.ImmutableList;
@@ -16,20 +18,46 @@ import io.netty.handler.codec.smtp.SmtpResponse;
 public class SmtpClientResponse  {
   private final SmtpSession session;
   private final List<SmtpResponse> responses;
+  private final TransactionResult transactionResult;
 
   public SmtpClientResponse(SmtpSession session, SmtpResponse response) {
     this.responses = ImmutableList.of(response);
     this.session = session;
+    this.transactionResult = null;
   }
 
   public SmtpClientResponse(SmtpSession session, Iterable<SmtpResponse> responses) {
     this.responses = ImmutableList.copyOf(responses);
     this.session = session;
+    this.transactionResult = null;
   }
 
   public SmtpClientResponse(SmtpSession session, List<SmtpResponse> responses) {
     this.responses = ImmutableList.copyOf(responses);
     this.session = session;
+    this.transactionResult = null;
+  }
+
+  private SmtpClientResponse(List<SmtpResponse> responses, SmtpSession session, TransactionResult transactionResult) {
+    this.responses = Collections.unmodifiableList(responses);
+    this.session = session;
+    this.transactionResult = transactionResult;
+  }
+
+  /**
+   * Wraps {@code responses} without copying them. The caller must not modify
+   * the list afterwards.
+   */
+  static SmtpClientResponse wrap(SmtpSession session, List<SmtpResponse> responses) {
+    return new SmtpClientResponse(responses, session, null);
+  }
+
+  /**
+   * Wraps the responses to a transaction without copying them, along with the
+   * {@link TransactionResult} parsed from them.
+   */
+  static SmtpClientResponse wrap(SmtpSession session, List<SmtpResponse> responses, TransactionResult transactionResult) {
+    return new SmtpClientResponse(responses, session, transactionResult);
   }
 
   /**
@@ -53,6 +81,15 @@ public class SmtpClientResponse  {
     return responses;
   }
 
+  /**
+   * Gets the outcome of the transaction for each recipient, if these are the responses
+   * to {@link SmtpSession#send(String, java.util.Collection, MessageContent)} or one of
+   * its overloads.
+   */
+  public Optional<TransactionResult> getTransactionResult() {
+    return Optional.ofNullable(transactionResult);
+  }
+
   @Override
   public String toString() {
     return responses.stream().map(SmtpResponses::toString).collect(Collectors.joining("; "));
@@ -32,15 +32,18 @@ import com.google.common.collect.ObjectArrays;
 import com.google.common.collect.Sets;
 import com.hubspot.smtp.messages.MessageContent;
 import com.hubspot.smtp.messages.MessageContentEncoding;
+import com.hubspot.smtp.messages.SevenBitMessageContent;
 import com.hubspot.smtp.utils.SmtpResponses;
 import com.sun.mail.util.MailLogger;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
 import io.netty.handler.codec.smtp.*;
 import io.netty.handler.codec.smtp.DefaultSmtpRequest;
 import io.netty.handler.codec.smtp.SmtpCommand;
@@ -49,15 +52,15 @@ import io.netty.handler.codec.smtp.SmtpRequest;
 import io.netty.handler.codec.smtp.SmtpRequests;
 import io.netty.handler.codec.smtp.SmtpResponse;
 import io.netty.handler.ssl.SslHandler;
-import io.netty.handler.stream.ChunkedInput;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import io.netty.util.ReferenceCountUtil;
 
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSession;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -76,7 +79,6 @@ import static io.netty.handler.codec.smtp.LastSmtpContent.EMPTY_LAST_CONTENT;
  * <p>This class is thread-safe.
  */
 public class SmtpSession {
-  private static final Logger LOG = LoggerFactory.getLogger(SmtpSession.class);
   // https://tools.ietf.org/html/rfc2920#section-3.1
   // In particular, the commands RSET, MAIL FROM, SEND FROM, SOML FROM, SAML FROM,
   // and RCPT TO can all appear anywhere in a pipelined command group.
@@ -105,6 +107,7 @@ public class SmtpSession {
   private static final String AUTH_PLAIN_MECHANISM = "PLAIN";
   private static final String AUTH_LOGIN_MECHANISM = "LOGIN";
   private static final String AUTH_XOAUTH2_MECHANISM = "XOAUTH2";
+  static final int SERVICE_NOT_AVAILABLE_CODE = 421;
   private static final String CRLF = "\r\n";
 
   private final Channel channel;
@@ -112,19 +115,33 @@ public class SmtpSession {
   private final SmtpSessionConfig config;
   private final Executor executor;
   private final Supplier<SSLEngine> sslEngineSupplier;
+  private final Optional<CircuitBreaker> circuitBreaker;
+
+  // null unless this session was sampled for tracing, so untraced sessions only pay for a null check
+  private final WireTrace.SessionTrace wireTrace;
   private final CompletableFuture<Void> closeFuture;
+  private final ChunkSizeEstimator chunkSizeEstimator;
   private final AtomicInteger chunkedBytesSent = new AtomicInteger(0);
+  private final AtomicInteger transactionCount = new AtomicInteger(0);
 
-  private volatile boolean requiresRset = false;
+  private volatile TransactionState transactionState = TransactionState.READY;
   private volatile EhloResponse ehloResponse = EhloResponse.EMPTY;
 
   SmtpSession(Channel channel, ResponseHandler responseHandler, SmtpSessionConfig config, Executor executor, Supplier<SSLEngine> sslEngineSupplier) {
+    this(channel, responseHandler, config, executor, sslEngineSupplier, Optional.empty());
+  }
+
+  SmtpSession(Channel channel, ResponseHandler responseHandler, SmtpSessionConfig config, Executor executor, Supplier<SSLEngine> sslEngineSupplier,
+              Optional<CircuitBreaker> circuitBreaker) {
     this.channel = channel;
     this.responseHandler = responseHandler;
     this.config = config;
     this.executor = executor;
     this.sslEngineSupplier = sslEngineSupplier;
+    this.circuitBreaker = circuitBreaker;
+    this.chunkSizeEstimator = new ChunkSizeEstimator(config.getMaxChunkSize());
     this.closeFuture = new CompletableFuture<>();
+    this.wireTrace = WireTrace.forChannel(channel);
 
     this.channel.pipeline().addLast(new ErrorHandler());
   }
@@ -154,6 +171,31 @@ public class SmtpSession {
     return ehloResponse;
   }
 
+  /**
+   * Returns the state of the current mail transaction, as tracked from the commands sent
+   * by this session and the responses received.
+   */
+  public TransactionState getTransactionState() {
+    return transactionState;
+  }
+
+  /**
+   * Returns the number of mail transactions the server has completed on this session,
+   * whether or not the messages were accepted.
+   */
+  public int getTransactionCount() {
+    return transactionCount.get();
+  }
+
+  /**
+   * Returns the number of bytes this session has written to the server, including commands
+   * but excluding any TLS overhead.
+   */
+  public long getBytesSent() {
+    ByteCountingHandler handler = channel.pipeline().get(ByteCountingHandler.class);
+    return handler == null ? 0 : handler.getBytesWritten();
+  }
+
   /**
    * Closes this session.
    *
@@ -298,7 +340,8 @@ public class SmtpSession {
    * @param  content a {@link MessageContent} with the contents of the message
    * @param  sendInterceptor a {@link SendInterceptor} which will be called before commands and data are sent
    * @return a {@code CompletableFuture<SmtpClientResponse>} that will contain each of the responses received
-   *         from the remote server, or an exception if the send failed unexpectedly.
+   *         from the remote server, or an exception if the send failed unexpectedly. If the remote server's
+   *         circuit breaker is open, it fails with a {@link CircuitBreakerOpenException} and nothing is sent.
    * @throws NullPointerException if any of the arguments are null
    * @throws IllegalArgumentException if {@code recipients} is empty
    * @throws MessageTooLargeException if the EHLO response indicated a maximum message size that would be
@@ -309,11 +352,64 @@ public class SmtpSession {
     return send(from, recipients, content, Optional.of(sendInterceptor));
   }
 
+  /**
+   * Sends a series of messages, one after another, and waits for the responses to all of them.
+   *
+   * <p>Each message is sent as by {@link SmtpSession#send(String, Collection, MessageContent)}.
+   * If the server supports pipelining, each message's envelope is sent as soon as the previous
+   * message's content has been written, without waiting for the server to accept it, as the
+   * pipelining spec allows. Each of these envelopes begins with RSET, so it doesn't depend on
+   * the outcome of the previous message. This saves at least one round trip per message.
+   *
+   * <p>Messages are taken from {@code messages} only when they are about to be sent, so it may
+   * produce them lazily.
+   *
+   * @param  messages the messages to send
+   * @return a {@code CompletableFuture<List<SmtpClientResponse>>} that will contain the responses
+   *         to each message, in order, or an exception if a send failed unexpectedly, in which
+   *         case no further messages are sent, or a {@link CircuitBreakerOpenException} if the
+   *         remote server's circuit breaker is open
+   * @throws NullPointerException if {@code messages} is null
+   */
+  public CompletableFuture<List<SmtpClientResponse>> sendAll(Iterator<OutgoingMessage> messages) {
+    Preconditions.checkNotNull(messages);
+
+    if (isCircuitBreakerOpen()) {
+      return failedFuture(newCircuitBreakerOpenException());
+    }
+
+    return new MessageStream(messages).start();
+  }
+
   private CompletableFuture<SmtpClientResponse> send(String from, Collection<String> recipients, MessageContent content, Optional<SendInterceptor> sequenceInterceptor) {
+    if (isCircuitBreakerOpen()) {
+      return failedFuture(newCircuitBreakerOpenException());
+    }
+
     return sendInternal(from, recipients, content, sequenceInterceptor);
   }
 
+  // a session that was connected before the circuit opened mustn't keep sending to a
+  // server that is refusing mail; once the circuit is half-open, sends may probe it again
+  private boolean isCircuitBreakerOpen() {
+    return circuitBreaker.isPresent() && circuitBreaker.get().getState() == CircuitBreaker.State.OPEN;
+  }
+
+  private CircuitBreakerOpenException newCircuitBreakerOpenException() {
+    return new CircuitBreakerOpenException(config.getConnectionId(), config.getRemoteAddress());
+  }
+
+  private static <T> CompletableFuture<T> failedFuture(Throwable cause) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(cause);
+    return future;
+  }
+
   private CompletableFuture<SmtpClientResponse> sendInternal(String from, Collection<String> recipients, MessageContent content, Optional<SendInterceptor> sequenceInterceptor) {
+    return beginTransaction(from, recipients, content, sequenceInterceptor).toTransactionResponses(recipients.size());
+  }
+
+  private SendSequence beginTransaction(String from, Collection<String> recipients, MessageContent content, Optional<SendInterceptor> sequenceInterceptor) {
     Preconditions.checkNotNull(from);
     Preconditions.checkNotNull(recipients);
     Preconditions.checkArgument(!recipients.isEmpty(), "recipients must be > 0");
@@ -341,13 +437,13 @@ public class SmtpSession {
     return sendAs7Bit(from, recipients, encodeContentAs7Bit(content), sequenceInterceptor);
   }
 
-  private CompletableFuture<SmtpClientResponse> sendAsChunked(String from, Collection<String> recipients, MessageContent content, Optional<SendInterceptor> sequenceInterceptor) {
+  private SendSequence sendAsChunked(String from, Collection<String> recipients, MessageContent content, Optional<SendInterceptor> sequenceInterceptor) {
     if (ehloResponse.isSupported(Extension.PIPELINING)) {
       List<Object> objects = Lists.newArrayListWithExpectedSize(3 + recipients.size());
       objects.add(mailCommand(from, recipients));
       objects.addAll(rpctCommands(recipients));
 
-      Iterator<ByteBuf> chunkIterator = content.getContentChunkIterator(channel.alloc());
+      Iterator<ByteBuf> chunkIterator = content.getContentChunkIterator(channel.alloc(), getChunkSize(content));
 
       ByteBuf firstChunk = chunkIterator.next();
       if (firstChunk == null) {
@@ -355,11 +451,11 @@ public class SmtpSession {
             (content.size().isPresent() ? Integer.toString(content.size().getAsInt()) : "not present"));
       }
 
-      objects.add(getBdatRequestWithData(firstChunk, !chunkIterator.hasNext()));
+      boolean isLast = !chunkIterator.hasNext();
+      objects.add(new BdatChunk(getBdatRequestWithData(firstChunk, isLast), isLast));
 
-      return beginSequence(sequenceInterceptor, objects.size(), objects.toArray())
-          .thenSendInTurn(getBdatIterator(chunkIterator))
-          .toResponses();
+      return beginPipelinedSequence(sequenceInterceptor, objects)
+          .thenPipelineChunks(getBdatIterator(chunkIterator));
 
     } else {
       SendSequence sequence = beginSequence(sequenceInterceptor, 1, mailCommand(from, recipients));
@@ -369,11 +465,29 @@ public class SmtpSession {
       }
 
       return sequence
-          .thenSendInTurn(getBdatIterator(content.getContentChunkIterator(channel.alloc())))
-          .toResponses();
+          .thenSendInTurn(getBdatIterator(content.getContentChunkIterator(channel.alloc(), getChunkSize(content))));
     }
   }
 
+  // a message whose size is known and fits in one chunk is read into a chunk of exactly
+  // that size, so it goes in a single BDAT LAST
+  private int getChunkSize(MessageContent content) {
+    long limit = ehloResponse.getMaxMessageSize().orElse(Long.MAX_VALUE);
+    if (config.getChunkWindowBytes() > 0) {
+      // leave room for the next chunk to be written while one is waiting for its response
+      limit = Math.min(limit, Math.max(config.getChunkWindowBytes() / 2, ChunkSizeEstimator.MIN_CHUNK_SIZE));
+    }
+
+    int chunkSize = chunkSizeEstimator.getChunkSize(limit);
+
+    OptionalInt size = content.size();
+    if (size.isPresent() && size.getAsInt() > 0 && size.getAsInt() <= chunkSize) {
+      return size.getAsInt();
+    }
+
+    return chunkSize;
+  }
+
   @SuppressFBWarnings("VA_FORMAT_STRING_USES_NEWLINE") // we shouldn't use platform-specific newlines for SMTP
   private ByteBuf getBdatRequestWithData(ByteBuf data, boolean isLast) {
     String request = String.format("BDAT %d%s\r\n", data.readableBytes(), isLast ? " LAST" : "");
@@ -393,31 +507,30 @@ public class SmtpSession {
       @Override
       public Object next() {
         ByteBuf buf = chunkIterator.next();
-        return getBdatRequestWithData(buf, !chunkIterator.hasNext());
+        boolean isLast = !chunkIterator.hasNext();
+        return new BdatChunk(getBdatRequestWithData(buf, isLast), isLast);
       }
     };
   }
 
-  private CompletableFuture<SmtpClientResponse> sendAs7Bit(String from, Collection<String> recipients, MessageContent content, Optional<SendInterceptor> sequenceInterceptor) {
+  private SendSequence sendAs7Bit(String from, Collection<String> recipients, MessageContent content, Optional<SendInterceptor> sequenceInterceptor) {
     return sendPipelinedIfPossible(mailCommand(from, recipients), recipients, SmtpRequests.data(), sequenceInterceptor)
-        .thenSend(content.getDotStuffedContent(), DotCrlfBuffer.get())
-        .toResponses();
+        .thenSend(content.getDotStuffedContent(getChunkSize(content)), DotCrlfBuffer.get());
   }
 
-  private CompletableFuture<SmtpClientResponse> sendAs8BitMime(String from, Collection<String> recipients, MessageContent content, Optional<SendInterceptor> sequenceInterceptor) {
+  private SendSequence sendAs8BitMime(String from, Collection<String> recipients, MessageContent content, Optional<SendInterceptor> sequenceInterceptor) {
     return sendPipelinedIfPossible(mailCommandWith8BitMime(from, recipients), recipients, SmtpRequests.data(), sequenceInterceptor)
-        .thenSend(content.getDotStuffedContent(), DotCrlfBuffer.get())
-        .toResponses();
+        .thenSend(content.getDotStuffedContent(getChunkSize(content)), DotCrlfBuffer.get());
   }
 
   private SendSequence sendPipelinedIfPossible(SmtpRequest mailRequest, Collection<String> recipients, SmtpRequest dataRequest, Optional<SendInterceptor> sequenceInterceptor) {
-    List<SmtpRequest> requests = Lists.newArrayListWithExpectedSize(2 + recipients.size());
+    List<Object> requests = Lists.newArrayListWithExpectedSize(2 + recipients.size());
     requests.add(mailRequest);
     requests.addAll(rpctCommands(recipients));
     requests.add(dataRequest);
 
     if (ehloResponse.isSupported(Extension.PIPELINING)) {
-      return beginSequence(sequenceInterceptor, requests.size(), requests.toArray());
+      return beginPipelinedSequence(sequenceInterceptor, requests);
     } else {
       SendSequence s = beginSequence(sequenceInterceptor, 1, requests.get(0));
 
@@ -429,6 +542,26 @@ public class SmtpSession {
     }
   }
 
+  // Pipelines the objects in one write if they fit in the recipient window. Otherwise they
+  // are written in groups of half the window, so that the next group can be written while
+  // the server is still responding to the previous one, without the server ever having
+  // more than a window's worth of commands to buffer.
+  private SendSequence beginPipelinedSequence(Optional<SendInterceptor> sequenceInterceptor, List<Object> objects) {
+    int windowSize = config.getRecipientWindowSize();
+    if (objects.size() <= windowSize) {
+      return beginSequence(sequenceInterceptor, objects.size(), objects.toArray());
+    }
+
+    List<List<Object>> groups = Lists.partition(objects, (windowSize + 1) / 2);
+    SendSequence sequence = beginSequence(sequenceInterceptor, groups.get(0).size(), groups.get(0).toArray());
+
+    for (int i = 1; i < groups.size(); i++) {
+      sequence.thenPipeline(groups.get(i).toArray());
+    }
+
+    return sequence;
+  }
+
   private Collection<SmtpRequest> rpctCommands(Collection<String> recipients) {
     return recipients.stream().map(SmtpRequests::rcpt).collect(Collectors.toList());
   }
@@ -458,21 +591,28 @@ public class SmtpSession {
   }
 
   private SendSequence beginSequence(Optional<SendInterceptor> sequenceInterceptor, int expectedResponses, Object... objects) {
+    boolean requiresRset = transactionState != TransactionState.READY;
+
+    // until the server responds, assume the transaction is underway so that
+    // a send which overlaps this one will reset it first
+    transactionState = TransactionState.IN_ENVELOPE;
+
     if (requiresRset) {
+      SendSequence sequence;
       if (ehloResponse.isSupported(Extension.PIPELINING)) {
-        return new SendSequence(sequenceInterceptor, expectedResponses + 1, ObjectArrays.concat(SmtpRequests.rset(), objects));
+        sequence = new SendSequence(sequenceInterceptor, expectedResponses + 1, ObjectArrays.concat(SmtpRequests.rset(), objects));
       } else {
-        return new SendSequence(sequenceInterceptor, 1,  SmtpRequests.rset()).thenSend(objects);
+        sequence = new SendSequence(sequenceInterceptor, 1,  SmtpRequests.rset()).thenSend(objects);
       }
+      sequence.startsWithRset = true;
+      return sequence;
     } else {
-      requiresRset = true;
       return new SendSequence(sequenceInterceptor, expectedResponses, objects);
     }
   }
 
   private MessageContent encodeContentAs7Bit(MessageContent content) {
-    // todo: implement rewriting 8 bit mails as 7 bit
-    return content;
+    return new SevenBitMessageContent(content);
   }
 
   /**
@@ -489,8 +629,8 @@ public class SmtpSession {
   public CompletableFuture<SmtpClientResponse> send(SmtpRequest request) {
     Preconditions.checkNotNull(request);
     return applyOnExecutor(executeRequestInterceptor(config.getSendInterceptor(), request, () -> {
-      CompletableFuture<List<SmtpResponse>> responseFuture = responseHandler.createResponseFuture(channel.attr(CHANNEL_KEY).get(), 1, () -> createDebugString(request));
-      LOG.info("{} Sending request: {} to channel {}", Thread.currentThread().getName(), request, channel);
+      CompletableFuture<List<SmtpResponse>> responseFuture = trackTransactionState(
+          responseHandler.createResponseFuture(channel, 1, () -> createDebugString(request)), request.command());
       writeAndFlush(request);
       if (request.command().equals(SmtpCommand.EHLO)) {
         responseFuture = responseFuture.whenComplete((responses, ignored) -> {
@@ -509,6 +649,13 @@ public class SmtpSession {
     return channel.isOpen();
   }
 
+  /**
+   * Gets the Netty event loop that handles this session's connection.
+   */
+  public EventLoop getEventLoop() {
+    return channel.eventLoop();
+  }
+
   /**
    * Sends message content to the remote server and waits for a response.
    *
@@ -528,8 +675,8 @@ public class SmtpSession {
     checkMessageSize(content.size());
 
     return applyOnExecutor(executeDataInterceptor(config.getSendInterceptor(), () -> {
-      CompletableFuture<List<SmtpResponse>> responseFuture = responseHandler.createResponseFuture(channel.attr(CHANNEL_KEY).get(), 1, () -> "message contents");
-      LOG.info("{} Message content: {} to channel {}", Thread.currentThread().getName(), content, channel);
+      CompletableFuture<List<SmtpResponse>> responseFuture = trackTransactionState(
+          responseHandler.createResponseFuture(channel, 1, () -> "message contents"), MessagePart.MESSAGE_DATA);
       writeContent(content);
       channel.flush();
 
@@ -566,7 +713,9 @@ public class SmtpSession {
     }
 
     return applyOnExecutor(executeDataInterceptor(config.getSendInterceptor(), () -> {
-      CompletableFuture<List<SmtpResponse>> responseFuture = responseHandler.createResponseFuture(channel.attr(CHANNEL_KEY).get(), 1, () -> "BDAT message chunk");
+      CompletableFuture<List<SmtpResponse>> responseFuture = trackTransactionState(
+          responseHandler.createResponseFuture(channel, 1, () -> "BDAT message chunk"),
+          isLast ? MessagePart.LAST_BDAT_CHUNK : MessagePart.BDAT_CHUNK);
 
       String size = Integer.toString(data.readableBytes());
       if (isLast) {
@@ -626,14 +775,14 @@ public class SmtpSession {
 
     return applyOnExecutor(executePipelineInterceptor(config.getSendInterceptor(), Lists.newArrayList(requests), () -> {
       int expectedResponses = requests.length + (content == null ? 0 : 1);
-      CompletableFuture<List<SmtpResponse>> responseFuture = responseHandler.createResponseFuture(channel.attr(CHANNEL_KEY).get(), expectedResponses, () -> createDebugString((Object[]) requests));
+      CompletableFuture<List<SmtpResponse>> responseFuture = trackTransactionState(
+          responseHandler.createResponseFuture(channel, expectedResponses, () -> createDebugString((Object[]) requests)),
+          content == null ? getTransactionSteps(requests) : ObjectArrays.concat(MessagePart.MESSAGE_DATA, getTransactionSteps(requests)));
 
       if (content != null) {
         writeContent(content);
       }
-      for (SmtpRequest r : requests) {
-        write(r);
-      }
+      writeRequests(requests, 0, requests.length);
 
       channel.flush();
 
@@ -641,8 +790,92 @@ public class SmtpSession {
     }), this::wrapResponses);
   }
 
+  private CompletableFuture<List<SmtpResponse>> trackTransactionState(CompletableFuture<List<SmtpResponse>> responseFuture, Object... steps) {
+    return responseFuture.whenComplete((responses, e) -> {
+      if (e != null) {
+        transactionState = TransactionState.FAILED;
+        return;
+      }
+
+      TransactionState state = transactionState;
+      for (int i = 0; i < steps.length && i < responses.size(); i++) {
+        state = getNextTransactionState(state, steps[i], responses.get(i));
+
+        if (responses.get(i).code() == SERVICE_NOT_AVAILABLE_CODE) {
+          circuitBreaker.ifPresent(CircuitBreaker::recordFailure);
+        }
+
+        if (steps[i] == MessagePart.MESSAGE_DATA || steps[i] == MessagePart.LAST_BDAT_CHUNK) {
+          transactionCount.incrementAndGet();
+
+          // a completed transaction shows the server is working, so the breaker
+          // only counts 421s that aren't separated by one
+          if (responses.get(i).code() < 400) {
+            circuitBreaker.ifPresent(CircuitBreaker::recordSuccess);
+          }
+        }
+      }
+      transactionState = state;
+    });
+  }
+
+  // returns the command or part of the message that each response will relate to,
+  // treating each run of message content as a single part
+  private static Object[] getTransactionSteps(Object[] objects) {
+    List<Object> steps = Lists.newArrayListWithExpectedSize(objects.length);
+
+    boolean previousWasContent = false;
+    for (Object obj : objects) {
+      if (obj instanceof SmtpRequest) {
+        steps.add(((SmtpRequest) obj).command());
+        previousWasContent = false;
+      } else if (obj instanceof BdatChunk) {
+        steps.add(((BdatChunk) obj).isLast ? MessagePart.LAST_BDAT_CHUNK : MessagePart.BDAT_CHUNK);
+        previousWasContent = false;
+      } else if (!previousWasContent) {
+        steps.add(MessagePart.MESSAGE_DATA);
+        previousWasContent = true;
+      }
+    }
+
+    return steps.toArray();
+  }
+
+  private static TransactionState getNextTransactionState(TransactionState state, Object step, SmtpResponse response) {
+    boolean isError = SmtpResponses.isError(response);
+
+    if (step == MessagePart.MESSAGE_DATA) {
+      // the transaction is over once the server responds to the message data, whether or not it was accepted
+      return TransactionState.READY;
+    } else if (step == MessagePart.BDAT_CHUNK || step == MessagePart.LAST_BDAT_CHUNK) {
+      // https://tools.ietf.org/html/rfc3030#section-4.2
+      // the transaction must be reset after any BDAT command fails
+      if (isError) {
+        return TransactionState.FAILED;
+      }
+
+      return step == MessagePart.LAST_BDAT_CHUNK ? TransactionState.READY : TransactionState.IN_DATA;
+    }
+
+    if (isError) {
+      return state;
+    }
+
+    SmtpCommand command = (SmtpCommand) step;
+    if (command.equals(SmtpCommand.MAIL)) {
+      return TransactionState.IN_ENVELOPE;
+    } else if (command.equals(SmtpCommand.DATA)) {
+      return TransactionState.IN_DATA;
+    } else if (command.equals(SmtpCommand.RSET) || command.equals(SmtpCommand.EHLO) || command.equals(SmtpCommand.HELO) || command.equals(STARTTLS_COMMAND)) {
+      return TransactionState.READY;
+    } else {
+      return state;
+    }
+  }
+
   private SmtpClientResponse wrapResponses(List<SmtpResponse> responses) {
-    return new SmtpClientResponse(this, responses);
+    // the lists come from ResponseCollector or SendSequence and aren't modified once complete
+    return SmtpClientResponse.wrap(this, responses);
   }
 
   private SmtpClientResponse wrapFirstResponse(List<SmtpResponse> responses) {
@@ -721,18 +954,23 @@ public class SmtpSession {
       } else {
         String r1 = String.join("", r.getResponses().iterator().next().details()).trim();
         String type3 = ntlm.generateType3Msg(r1);
-        return send(new DefaultSmtpRequest(type3));
+        return sendAuthContinuation(type3, "auth ntlm type 3 message");
       }
     });
   }
 
   private CompletionStage<SmtpClientResponse> sendAuthLoginPassword(String password) {
+    return sendAuthContinuation(encodeBase64(password), "auth login password");
+  }
+
+  // credentials sent in reply to a 334 challenge are written as a raw buffer rather
+  // than a request, so they are never logged as a command
+  private CompletableFuture<SmtpClientResponse> sendAuthContinuation(String encodedResponse, String debugString) {
     return applyOnExecutor(executeRequestInterceptor(config.getSendInterceptor(), new DefaultSmtpRequest(AUTH_COMMAND), () -> {
 
-      CompletableFuture<List<SmtpResponse>> responseFuture = responseHandler.createResponseFuture(channel.attr(CHANNEL_KEY).get(), 1, () -> "auth login password");
-      String passwordResponse = encodeBase64(password) + CRLF;
-      ByteBuf passwordBuffer = channel.alloc().buffer().writeBytes(passwordResponse.getBytes(StandardCharsets.UTF_8));
-      writeAndFlush(passwordBuffer);
+      CompletableFuture<List<SmtpResponse>> responseFuture = responseHandler.createResponseFuture(channel, 1, () -> debugString);
+      ByteBuf responseBuffer = channel.alloc().buffer().writeBytes((encodedResponse + CRLF).getBytes(StandardCharsets.UTF_8));
+      writeAndFlush(responseBuffer);
       return responseFuture;
     }), this::wrapFirstResponse);
   }
@@ -753,46 +991,73 @@ public class SmtpSession {
   }
 
   private void writeContent(MessageContent content) {
-    write(content.getDotStuffedContent());
+    write(content.getDotStuffedContent(getChunkSize(content)));
     write(DotCrlfBuffer.get());
   }
 
-  private void write(Object obj) {
+  private ChannelFuture write(Object obj) {
+    traceSent(obj);
+    return writeUntraced(obj);
+  }
+
+  private ChannelFuture writeUntraced(Object obj) {
+    ChannelFuture writeFuture = channel.write(obj);
+
     // adding ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE ensures we'll find out
     // about errors that occur when writing
-    channel.write(obj).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+    writeFuture.addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+    return writeFuture;
+  }
+
+  // Writes a run of pipelined commands as a single buffer, so that they pass through the
+  // pipeline once, with one promise, and go out in one TLS record rather than one each.
+  // A lone command is written as is, so the encoder can use its shared buffers.
+  private ChannelFuture writeRequests(Object[] requests, int start, int end) {
+    if (end - start <= 1) {
+      return end > start ? write(requests[start]) : null;
+    }
+
+    int length = 0;
+    for (int i = start; i < end; i++) {
+      length += Utf8SmtpRequestEncoder.getEncodedLength((SmtpRequest) requests[i]);
+    }
+
+    ByteBuf buffer = channel.alloc().buffer(length);
+    for (int i = start; i < end; i++) {
+      traceSent(requests[i]);
+      Utf8SmtpRequestEncoder.writeRequest((SmtpRequest) requests[i], buffer);
+    }
+
+    return writeUntraced(buffer);
   }
 
   private void writeAndFlush(Object obj) {
+    traceSent(obj);
+
     // adding ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE ensures we'll find out
     // about errors that occur when writing
     channel.writeAndFlush(obj).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
   }
 
+  private void traceSent(Object obj) {
+    if (wireTrace != null) {
+      wireTrace.sent(obj);
+    }
+  }
+
   @VisibleForTesting
   void parseEhloResponse(String ehloDomain, Iterable<CharSequence> response) {
     ehloResponse = EhloResponse.parse(ehloDomain, response, config.getDisabledExtensions());
+
+    Utf8SmtpResponseDecoder decoder = channel.pipeline().get(Utf8SmtpResponseDecoder.class);
+    if (decoder != null) {
+      decoder.setParseEnhancedStatusCodes(ehloResponse.isSupported(Extension.ENHANCEDSTATUSCODES));
+    }
   }
 
   @VisibleForTesting
   static String createDebugString(Object... objects) {
-    return COMMA_JOINER.join(Arrays.stream(objects).map(SmtpSession::objectToString).collect(Collectors.toList()));
-  }
-
-  private static String objectToString(Object o) {
-    if (o instanceof SmtpRequest) {
-      SmtpRequest request = (SmtpRequest) o;
-
-      if (request.command().equals(AUTH_COMMAND)) {
-        return "<redacted-auth-command>";
-      } else {
-        return String.format("%s %s", request.command().name(), Joiner.on(" ").join(request.parameters()));
-      }
-    } else if (o instanceof SmtpContent || o instanceof ByteBuf || o instanceof ChunkedInput) {
-      return "[CONTENT]";
-    } else {
-      return o.toString();
-    }
+    return COMMA_JOINER.join(Arrays.stream(objects).map(WireTrace::describe).collect(Collectors.toList()));
   }
 
   private static void checkValidPipelinedRequest(SmtpRequest[] requests) {
@@ -840,66 +1105,374 @@ public class SmtpSession {
     return interceptor.map(h -> h.aroundPipelinedSequence(requests, supplier)).orElseGet(supplier);
   }
 
+  // Sends the messages given to sendAll, beginning each one when the previous message's
+  // content has been written if the server supports pipelining, or when its responses
+  // have arrived if not. Like SendSequence, it loops rather than recursing when the
+  // previous message has already finished.
+  private class MessageStream {
+    final Iterator<OutgoingMessage> messages;
+    final List<CompletableFuture<SmtpClientResponse>> responseFutures = new ArrayList<>();
+    final CompletableFuture<List<SmtpClientResponse>> allResponsesFuture = new CompletableFuture<>();
+
+    CompletableFuture<?> previousResponseFuture = CompletableFuture.completedFuture(null);
+
+    MessageStream(Iterator<OutgoingMessage> messages) {
+      this.messages = messages;
+    }
+
+    CompletableFuture<List<SmtpClientResponse>> start() {
+      sendNextMessages();
+      return allResponsesFuture;
+    }
+
+    private void sendNextMessages() {
+      while (messages.hasNext()) {
+        if (allResponsesFuture.isDone()) {
+          return;
+        }
+
+        OutgoingMessage message = messages.next();
+
+        SendSequence sequence;
+        CompletableFuture<SmtpClientResponse> responseFuture;
+        try {
+          sequence = beginTransaction(message.getSender(), message.getRecipients(), message.getContent(), Optional.empty());
+          responseFuture = sequence.toTransactionResponses(message.getRecipients().size());
+        } catch (RuntimeException e) {
+          allResponsesFuture.completeExceptionally(e);
+          return;
+        }
+
+        responseFutures.add(responseFuture);
+        responseFuture.whenComplete((r, e) -> {
+          if (e != null) {
+            allResponsesFuture.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+          }
+        });
+
+        // with pipelining, at most two messages are outstanding, so that content isn't
+        // buffered for messages far ahead of the server's responses
+        CompletableFuture<?> readyForNextMessage = ehloResponse.isSupported(Extension.PIPELINING) ?
+            CompletableFuture.allOf(sequence.lastStepWritten, previousResponseFuture) : responseFuture;
+        previousResponseFuture = responseFuture;
+
+        if (!readyForNextMessage.isDone()) {
+          readyForNextMessage.whenComplete((r, e) -> sendNextMessages());
+          return;
+        }
+      }
+
+      CompletableFuture.allOf(responseFutures.toArray(new CompletableFuture<?>[0]))
+          .whenComplete((v, e) -> {
+            if (e == null) {
+              allResponsesFuture.complete(responseFutures.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+            }
+          });
+    }
+  }
+
+  // Sends the commands and content of a transaction in steps, where each step is sent
+  // once the responses to the previous step have arrived, stopping early if a step's
+  // last response is an error. Steps are queued until toResponses is called, then a
+  // single callback per step advances the sequence as responses arrive on the event loop,
+  // and one future is completed at the end with the responses to every step.
+  //
+  // Pipelined steps are the exception: they continue the previous step's pipelined group,
+  // so they may be written before its responses arrive, as long as the responses
+  // outstanding stay within the recipient window, and an error doesn't stop the group.
   private class SendSequence {
     final Optional<SendInterceptor> sequenceInterceptor;
-    CompletableFuture<List<SmtpResponse>> responseFuture;
+
+    // each step is either a Step, or a ChunkSource whose items are sent one at a time
+    final Deque<Object> steps = new ArrayDeque<>();
+    final CompletableFuture<List<SmtpResponse>> responseFuture = new CompletableFuture<>();
+
+    // completed once the last step has been written, or the sequence has ended early,
+    // so that sendAll can write the next message's envelope behind it
+    final CompletableFuture<Void> lastStepWritten = new CompletableFuture<>();
+
+    Step lastAddedStep;
+    boolean startsWithRset;
+    boolean isFirstStep = true;
+    int stepsInFlight;
+    int responsesInFlight;
+    int chunkBytesInFlight;
+    long lastResponseAtNanos;
+
+    // the write of the last chunk, which is waited for when the channel isn't writable
+    ChannelFuture lastChunkWrite;
+    boolean isWaitingForLastChunkWrite;
+
+    // responses from every step are appended to this list, created when the
+    // second step completes, rather than copying the responses so far each time
+    List<SmtpResponse> allResponses;
+    List<SmtpResponse> firstResponses;
 
     SendSequence(Optional<SendInterceptor> sequenceInterceptor, int expectedResponses, Object... objects) {
       this.sequenceInterceptor = sequenceInterceptor;
-      responseFuture = writeObjectsAndCollectResponses(expectedResponses, objects);
+      addStep(new Step(objects, expectedResponses, false));
+      responseFuture.whenComplete((responses, throwable) -> {
+        releaseUnsentChunks();
+        lastStepWritten.complete(null);
+      });
     }
 
     SendSequence thenSend(Object... objects) {
-      responseFuture = responseFuture.thenCompose(responses -> {
-        if (SmtpResponses.isError(responses.get(responses.size() - 1))) {
-          return CompletableFuture.completedFuture(responses);
-        }
-
-        return writeObjectsAndCollectResponses(1, objects)
-            .thenApply(mergeResponses(responses));
-      });
+      addStep(new Step(objects, 1, false));
+      return this;
+    }
 
+    // continues the previous step's pipelined group; one response is expected per object
+    SendSequence thenPipeline(Object... objects) {
+      lastAddedStep.isContinuedByPipeline = true;
+      addStep(new Step(objects, objects.length, true));
       return this;
     }
 
     // sends the next item from the iterator only when the response for the previous one
     // has arrived, continuing until the iterator is empty or the response is an error
     SendSequence thenSendInTurn(Iterator<Object> iterator) {
-      responseFuture = sendNext(responseFuture, iterator);
+      lastAddedStep = null;
+      steps.add(new ChunkSource(iterator, false));
+      return this;
+    }
+
+    // sends the items from the iterator, which must be BdatChunks, without waiting for
+    // responses while the chunks outstanding fit in the chunk window and the channel is
+    // writable, still stopping at the first error response
+    SendSequence thenPipelineChunks(Iterator<Object> iterator) {
+      lastAddedStep = null;
+      steps.add(new ChunkSource(iterator, config.getChunkWindowBytes() > 0));
       return this;
     }
 
-    private CompletableFuture<List<SmtpResponse>> sendNext(CompletableFuture<List<SmtpResponse>> prevFuture, Iterator<Object> iterator) {
-      if (!iterator.hasNext()) {
-        return prevFuture;
+    private void addStep(Step step) {
+      lastAddedStep = step;
+      steps.add(step);
+    }
+
+    CompletableFuture<SmtpClientResponse> toResponses() {
+      sendNextSteps();
+      return applyOnExecutor(responseFuture, SmtpSession.this::wrapResponses);
+    }
+
+    // the sequence must be a MAIL command, the given number of RCPT commands and the content
+    CompletableFuture<SmtpClientResponse> toTransactionResponses(int recipientCount) {
+      sendNextSteps();
+      return applyOnExecutor(responseFuture, responses -> SmtpClientResponse.wrap(SmtpSession.this, responses,
+          TransactionResult.of(responses, startsWithRset ? 1 : 0, recipientCount)));
+    }
+
+    // synchronized because responses to an earlier pipelined step may arrive on the
+    // event loop while the caller's thread is still writing later ones
+    private synchronized void sendNextSteps() {
+      // loops rather than recursing when a step's responses are already available,
+      // e.g. from an interceptor, so that long sequences don't grow the stack
+      while (!responseFuture.isDone()) {
+        Object head = steps.peek();
+        if (head == null) {
+          if (stepsInFlight == 0) {
+            responseFuture.complete(getResponses());
+          }
+          return;
+        }
+
+        if (head instanceof ChunkSource) {
+          ChunkSource source = (ChunkSource) head;
+          if (!source.iterator.hasNext()) {
+            steps.poll();
+            continue;
+          } else if (stepsInFlight > 0 && !source.isPipelined) {
+            return;
+          }
+
+          // the chunk is queued ahead of the rest of the source, where it waits until
+          // there's room for it in the window
+          steps.addFirst(new Step(source.iterator.next(), source.isPipelined));
+          continue;
+        }
+
+        Step step = (Step) head;
+        if (stepsInFlight > 0 && !canSendWithinWindow(step)) {
+          return;
+        }
+        steps.poll();
+
+        step.writtenAtNanos = System.nanoTime();
+        step.isQueued = stepsInFlight > 0;
+
+        stepsInFlight++;
+        responsesInFlight += step.expectedResponses;
+        chunkBytesInFlight += step.chunkBytes;
+
+        CompletableFuture<List<SmtpResponse>> stepFuture;
+        if (isFirstStep) {
+          // exceptions sending the first step are thrown to the caller
+          isFirstStep = false;
+          stepFuture = writeObjectsAndCollectResponses(step.expectedResponses, step.objects);
+        } else {
+          try {
+            stepFuture = writeObjectsAndCollectResponses(step.expectedResponses, step.objects);
+          } catch (RuntimeException e) {
+            responseFuture.completeExceptionally(e);
+            return;
+          }
+        }
+
+        if (isLastStepWritten()) {
+          lastStepWritten.complete(null);
+        }
+
+        if (!stepFuture.isDone()) {
+          stepFuture.whenComplete((responses, throwable) -> {
+            synchronized (this) {
+              if (throwable == null) {
+                addTimingSample(step);
+              }
+
+              if (onStepComplete(step, responses, throwable)) {
+                sendNextSteps();
+              }
+            }
+          });
+          continue;
+        }
+
+        List<SmtpResponse> responses;
+        try {
+          responses = stepFuture.join();
+        } catch (CompletionException | CancellationException e) {
+          onStepComplete(step, null, e);
+          return;
+        }
+
+        if (!onStepComplete(step, responses, null)) {
+          return;
+        }
       }
+    }
 
-      return prevFuture.thenCompose(responses -> {
-        if (SmtpResponses.isError(responses.get(responses.size() - 1))) {
-          return CompletableFuture.completedFuture(responses);
+    // chunks may be waiting for room in a window when the sequence ends early
+    private synchronized void releaseUnsentChunks() {
+      for (Object step : steps) {
+        if (step instanceof Step) {
+          for (Object obj : ((Step) step).objects) {
+            if (obj instanceof BdatChunk) {
+              ReferenceCountUtil.safeRelease(((BdatChunk) obj).data);
+            }
+          }
         }
+      }
+      steps.clear();
+    }
 
-        Object nextObject = iterator.next();
+    private boolean isLastStepWritten() {
+      Object head = steps.peek();
+      return head == null || (steps.size() == 1 && head instanceof ChunkSource && !((ChunkSource) head).iterator.hasNext());
+    }
 
-        CompletableFuture<List<SmtpResponse>> f = writeObjectsAndCollectResponses(1, nextObject)
-            .thenApply(mergeResponses(responses));
+    private boolean canSendWithinWindow(Step step) {
+      if (!step.isPipelined) {
+        return false;
+      } else if (step.chunkBytes > 0) {
+        return chunkBytesInFlight + step.chunkBytes <= config.getChunkWindowBytes() && isWritableOrWaiting();
+      } else {
+        return responsesInFlight + step.expectedResponses <= config.getRecipientWindowSize();
+      }
+    }
 
-        return sendNext(f, iterator);
-      });
+    // if the channel isn't writable, tries again once the last chunk has been written
+    // to the socket, as well as when the next response arrives
+    private boolean isWritableOrWaiting() {
+      if (channel.isWritable()) {
+        return true;
+      }
+
+      if (lastChunkWrite != null && !lastChunkWrite.isDone() && !isWaitingForLastChunkWrite) {
+        isWaitingForLastChunkWrite = true;
+        lastChunkWrite.addListener(f -> {
+          synchronized (this) {
+            isWaitingForLastChunkWrite = false;
+            sendNextSteps();
+          }
+        });
+      }
+
+      return false;
     }
 
-    private Function<List<SmtpResponse>, List<SmtpResponse>> mergeResponses(List<SmtpResponse> existingResponses) {
-      return newResponses -> {
-        List<SmtpResponse> newList = Lists.newArrayList(existingResponses);
-        newList.addAll(newResponses);
-        return newList;
-      };
+    // only steps whose responses came from the server are timed, because the responses
+    // for other steps were already available. A step written while others were in flight
+    // waited behind them, so a chunk is timed from the previous response instead, once
+    // that response arrived after the chunk was written, and commands aren't timed at all
+    private void addTimingSample(Step step) {
+      long nowNanos = System.nanoTime();
+      boolean isPipelinedBehindResponse = step.isQueued && lastResponseAtNanos - step.writtenAtNanos > 0;
+
+      if (step.chunkBytes > 0) {
+        if (isPipelinedBehindResponse) {
+          chunkSizeEstimator.addPipelinedTransfer(step.chunkBytes, nowNanos - lastResponseAtNanos);
+        } else if (!step.isQueued) {
+          chunkSizeEstimator.addTransfer(step.chunkBytes, nowNanos - step.writtenAtNanos);
+        }
+      } else if (step.isCommandsOnly && !step.isQueued) {
+        chunkSizeEstimator.addRoundTrip(nowNanos - step.writtenAtNanos);
+      }
+
+      lastResponseAtNanos = nowNanos;
+    }
+
+    // returns true if the next steps should be sent
+    private boolean onStepComplete(Step step, List<SmtpResponse> responses, Throwable throwable) {
+      stepsInFlight--;
+      responsesInFlight -= step.expectedResponses;
+      chunkBytesInFlight -= step.chunkBytes;
+
+      if (responseFuture.isDone()) {
+        // an earlier step failed while this one was in flight
+        return false;
+      }
+
+      if (throwable != null) {
+        responseFuture.completeExceptionally(throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable);
+        return false;
+      }
+
+      addResponses(responses);
+
+      if (!step.isContinuedByPipeline && SmtpResponses.isError(responses.get(responses.size() - 1))) {
+        responseFuture.complete(getResponses());
+        return false;
+      }
+
+      return true;
+    }
+
+    private void addResponses(List<SmtpResponse> responses) {
+      if (firstResponses == null) {
+        firstResponses = responses;
+        return;
+      }
+
+      if (allResponses == null) {
+        allResponses = new ArrayList<>(firstResponses.size() + responses.size() + 1);
+        allResponses.addAll(firstResponses);
+      }
+
+      allResponses.addAll(responses);
+    }
+
+    private List<SmtpResponse> getResponses() {
+      return allResponses != null ? allResponses : firstResponses;
     }
 
     private CompletableFuture<List<SmtpResponse>> writeObjectsAndCollectResponses(int expectedResponses, Object... objects) {
       return executeInterceptor(expectedResponses, objects, () -> {
-        CompletableFuture<List<SmtpResponse>> nextFuture = createFuture(expectedResponses, objects);
-        writeObjects(objects);
+        CompletableFuture<List<SmtpResponse>> nextFuture = trackTransactionState(createFuture(expectedResponses, objects), getTransactionSteps(objects));
+        ChannelFuture writeFuture = writeObjects(objects);
+        if (objects[objects.length - 1] instanceof BdatChunk) {
+          lastChunkWrite = writeFuture;
+        }
         return nextFuture;
       });
     }
@@ -926,19 +1499,90 @@ public class SmtpSession {
       }
     }
 
-    CompletableFuture<SmtpClientResponse> toResponses() {
-      return applyOnExecutor(responseFuture, SmtpSession.this::wrapResponses);
-    }
+    // returns the future for the last write
+    private ChannelFuture writeObjects(Object[] objects) {
+      ChannelFuture writeFuture = null;
+
+      int i = 0;
+      while (i < objects.length) {
+        if (objects[i] instanceof SmtpRequest) {
+          int end = i + 1;
+          while (end < objects.length && objects[end] instanceof SmtpRequest) {
+            end++;
+          }
 
-    private void writeObjects(Object[] objects) {
-      for (Object obj : objects) {
-        write(obj);
+          writeFuture = writeRequests(objects, i, end);
+          i = end;
+        } else {
+          Object obj = objects[i++];
+          writeFuture = write(obj instanceof BdatChunk ? ((BdatChunk) obj).data : obj);
+        }
       }
       channel.flush();
+
+      return writeFuture;
     }
 
     private CompletableFuture<List<SmtpResponse>> createFuture(int expectedResponses, Object[] objects) {
-      return responseHandler.createResponseFuture(channel.attr(CHANNEL_KEY).get(), expectedResponses, () -> createDebugString(objects));
+      return responseHandler.createResponseFuture(channel, expectedResponses, () -> createDebugString(objects));
+    }
+
+    private class Step {
+      final Object[] objects;
+      final int expectedResponses;
+      final boolean isPipelined;
+      final int chunkBytes;
+      final boolean isCommandsOnly;
+      long writtenAtNanos;
+      boolean isQueued;
+
+      // set when the next step continues this step's pipelined group, so an error
+      // response from this step shouldn't end the sequence
+      boolean isContinuedByPipeline;
+
+      Step(Object[] objects, int expectedResponses, boolean isPipelined) {
+        this.objects = objects;
+        this.expectedResponses = expectedResponses;
+        this.isPipelined = isPipelined;
+        this.chunkBytes = 0;
+        this.isCommandsOnly = Arrays.stream(objects).allMatch(o -> o instanceof SmtpRequest);
+      }
+
+      Step(Object chunk, boolean isPipelined) {
+        this.objects = new Object[] { chunk };
+        this.expectedResponses = 1;
+        this.isPipelined = isPipelined;
+        this.chunkBytes = chunk instanceof BdatChunk ? ((BdatChunk) chunk).data.readableBytes() : 0;
+        this.isCommandsOnly = chunk instanceof SmtpRequest;
+      }
+    }
+
+    private class ChunkSource {
+      final Iterator<Object> iterator;
+      final boolean isPipelined;
+
+      ChunkSource(Iterator<Object> iterator, boolean isPipelined) {
+        this.iterator = iterator;
+        this.isPipelined = isPipelined;
+      }
+    }
+  }
+
+  // the parts of a message which receive a response, other than commands
+  private enum MessagePart {
+    MESSAGE_DATA,
+    BDAT_CHUNK,
+    LAST_BDAT_CHUNK
+  }
+
+  // a BDAT command and its chunk of message data, combined in one buffer
+  static class BdatChunk {
+    private final ByteBuf data;
+    private final boolean isLast;
+
+    BdatChunk(ByteBuf data, boolean isLast) {
+      this.data = data;
+      this.isLast = isLast;
     }
   }
 
@@ -1,22 +1,37 @@
 package com.hubspot.smtp.client;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.handler.codec.smtp.SmtpResponse;
+import io.netty.resolver.AddressResolver;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * Creates {@link SmtpSession} instances by connecting to remote servers.
@@ -31,6 +46,7 @@ public class SmtpSessionFactory implements Closeable {
   private Bootstrap bootstrap;
   private SmtpSessionConfig config;
   private ResponseHandler responseHandler;
+  private final Optional<CircuitBreaker> circuitBreaker;
   public static final AttributeKey<String> CHANNEL_KEY = AttributeKey.valueOf("sm-smtp-channel-id");
 
   /**
@@ -41,12 +57,14 @@ public class SmtpSessionFactory implements Closeable {
     this.config = config;
     allChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
     responseHandler = new ResponseHandler(config.getReadTimeout(), config.getExceptionHandler());
+    circuitBreaker = factoryConfig.getCircuitBreakerRegistry().map(registry -> registry.get(config.getRemoteAddress()));
     bootstrap = new Bootstrap()
             .group(factoryConfig.getEventLoopGroup())
             .channel(factoryConfig.getChannelClass())
             .option(ChannelOption.ALLOCATOR, factoryConfig.getAllocator())
             .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) config.getConnectionTimeout().toMillis())
             .option(ChannelOption.SO_KEEPALIVE, true)
+            .resolver(factoryConfig.getAddressResolverGroup())
             .remoteAddress(config.getRemoteAddress())
             .localAddress(config.getLocalAddress().orElse(null))
             .handler(new Initializer(responseHandler, config));
@@ -55,20 +73,76 @@ public class SmtpSessionFactory implements Closeable {
   /**
    * Connects to a remote server.
    *
+   * <p>If the remote address is unresolved and its host resolves to several addresses,
+   * connections are attempted in turn, alternating between IPv6 and IPv4 addresses, as
+   * described in RFC 8305. A new attempt is started whenever the previous one fails or
+   * {@link SmtpSessionConfig#getConnectionAttemptDelay()} passes without a greeting,
+   * so attempts may race each other. The first connection to receive a greeting is used,
+   * and the others are closed.
+   *
+   * <p>If {@link SmtpSessionFactoryConfig#getCircuitBreakerRegistry()} is set and the circuit
+   * for the remote address is open, the returned future fails immediately with a
+   * {@link CircuitBreakerOpenException}.
+   *
    * @return a future representing the initial response from the server
    */
   public CompletableFuture<SmtpClientResponse> connect() {
+    return connect(factoryConfig.getEventLoopGroup().next());
+  }
+
+  /**
+   * Connects to a remote server, handling the connection on {@code eventLoop}, which must
+   * belong to this factory's {@code EventLoopGroup}.
+   */
+  CompletableFuture<SmtpClientResponse> connect(EventLoop eventLoop) {
     CompletableFuture<SmtpClientResponse> connectFuture = new CompletableFuture<>();
-    LOG.info("{} Connect: ", Thread.currentThread().getName());
-    ChannelFuture channelFuture = bootstrap.connect();
+    InetSocketAddress remoteAddress = config.getRemoteAddress();
+
+    if (circuitBreaker.isPresent() && !circuitBreaker.get().tryAcquirePermission()) {
+      connectFuture.completeExceptionally(new CircuitBreakerOpenException(config.getConnectionId(), remoteAddress));
+      return connectFuture;
+    }
+
+    if (remoteAddress.isUnresolved()) {
+      resolveAndConnect(factoryConfig.getAddressResolverGroup().getResolver(eventLoop), eventLoop, connectFuture);
+    } else {
+      // attempts must start on the event loop, otherwise the connection can complete and the
+      // greeting be read before the listener that waits for the greeting has been added
+      eventLoop.execute(new ConnectionRace(eventLoop, Collections.singletonList(remoteAddress), connectFuture)::startNextAttempt);
+    }
+
+    // the outcome is recorded before the caller sees it
+    return circuitBreaker.map(breaker -> connectFuture.whenComplete((response, e) -> {
+      if (e != null || response.getResponses().get(0).code() == SmtpSession.SERVICE_NOT_AVAILABLE_CODE) {
+        breaker.recordFailure();
+      } else {
+        breaker.recordSuccess();
+      }
+    })).orElse(connectFuture);
+  }
+
+  private <T extends SocketAddress> void resolveAndConnect(AddressResolver<T> resolver, EventLoop eventLoop, CompletableFuture<SmtpClientResponse> connectFuture) {
+    resolver.resolveAll(config.getRemoteAddress()).addListener((Future<List<T>> f) -> {
+      if (f.isSuccess()) {
+        new ConnectionRace(eventLoop, interleaveAddressFamilies(f.getNow()), connectFuture).startNextAttempt();
+      } else {
+        factoryConfig.getExecutor().execute(() -> connectFuture.completeExceptionally(f.cause()));
+      }
+    });
+  }
+
+  private Channel connect(EventLoop eventLoop, SocketAddress remoteAddress, CompletableFuture<SmtpClientResponse> connectFuture) {
+    LOG.debug("[{}] Connecting to {}", config.getConnectionId(), remoteAddress);
+    ChannelFuture channelFuture = bootstrap.clone(eventLoop).connect(remoteAddress);
     channelFuture.addListener(f -> {
       if (f.isSuccess()) {
         Channel channel = ((ChannelFuture) f).channel();
-        LOG.info("Connected: {}", channel);
+        LOG.debug("[{}] Connected: {}", config.getConnectionId(), channel);
         channel.attr(CHANNEL_KEY).set(channel.toString());
+        factoryConfig.getWireTrace().startSession(channel, config.getConnectionId());
         allChannels.add(channel);
-        CompletableFuture<List<SmtpResponse>> initialResponseFuture = responseHandler.createResponseFuture(channel.attr(CHANNEL_KEY).get(), 1, config.getInitialResponseReadTimeout(), () -> "initial response");
-        SmtpSession session = new SmtpSession(channel, responseHandler, config, factoryConfig.getExecutor(), factoryConfig.getSslEngineSupplier());
+        CompletableFuture<List<SmtpResponse>> initialResponseFuture = responseHandler.createResponseFuture(channel, 1, config.getInitialResponseReadTimeout(), () -> "initial response");
+        SmtpSession session = new SmtpSession(channel, responseHandler, config, factoryConfig.getExecutor(), factoryConfig.getSslEngineSupplier(), circuitBreaker);
         initialResponseFuture.handleAsync((rs, e) -> {
           if (e != null) {
             session.close();
@@ -85,10 +159,60 @@ public class SmtpSessionFactory implements Closeable {
       }
     });
     channelFuture.channel().closeFuture().addListener(future -> {
-      LOG.info("{} Channel closed: {}", Thread.currentThread().getName(), ((ChannelFuture) future).channel());
-      LOG.info("Cause of: {}", future.cause());
+      LOG.debug("[{}] Channel closed: {}", config.getConnectionId(), ((ChannelFuture) future).channel());
     });
-    return connectFuture;
+    return channelFuture.channel();
+  }
+
+  // orders addresses so that each IPv6 address is followed by an IPv4 address and vice versa,
+  // starting with the family of the first address
+  @VisibleForTesting
+  static List<SocketAddress> interleaveAddressFamilies(List<? extends SocketAddress> addresses) {
+    if (addresses.size() < 2) {
+      return Lists.newArrayList(addresses);
+    }
+
+    boolean firstIsIpv6 = isIpv6(addresses.get(0));
+    Deque<SocketAddress> firstFamily = new ArrayDeque<>(addresses.size());
+    Deque<SocketAddress> secondFamily = new ArrayDeque<>(addresses.size());
+    for (SocketAddress address : addresses) {
+      (isIpv6(address) == firstIsIpv6 ? firstFamily : secondFamily).add(address);
+    }
+
+    List<SocketAddress> interleaved = Lists.newArrayListWithCapacity(addresses.size());
+    while (!firstFamily.isEmpty() || !secondFamily.isEmpty()) {
+      if (!firstFamily.isEmpty()) {
+        interleaved.add(firstFamily.poll());
+      }
+      if (!secondFamily.isEmpty()) {
+        interleaved.add(secondFamily.poll());
+      }
+    }
+
+    return interleaved;
+  }
+
+  private static boolean isIpv6(SocketAddress address) {
+    return address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() instanceof Inet6Address;
+  }
+
+  /**
+   * Creates a pool of sessions connected to this factory's remote server.
+   *
+   * <p>The pool should be closed when it is no longer needed, which will close
+   * its idle sessions. Closing this factory closes every session, including
+   * those held by pools.
+   */
+  public SmtpSessionPool newPool(SmtpSessionPoolConfig poolConfig) {
+    return new SmtpSessionPool(this, poolConfig);
+  }
+
+  SmtpSessionFactoryConfig getFactoryConfig() {
+    return factoryConfig;
+  }
+
+  SmtpSessionConfig getConfig() {
+    return config;
   }
 
   @Override
@@ -119,4 +243,92 @@ public class SmtpSessionFactory implements Closeable {
 
     return returnedFuture;
   }
+  /**
+   * Connects to each of a list of addresses in turn until one of them sends a greeting.
+   */
+  private class ConnectionRace {
+    private final EventLoop eventLoop;
+    private final List<SocketAddress> addresses;
+    private final CompletableFuture<SmtpClientResponse> raceFuture;
+    private final List<Channel> channels;
+
+    private int attemptsStarted;
+    private int attemptsFailed;
+    private boolean isFinished;
+    private ScheduledFuture<?> nextAttemptTimer;
+
+    ConnectionRace(EventLoop eventLoop, List<SocketAddress> addresses, CompletableFuture<SmtpClientResponse> raceFuture) {
+      this.eventLoop = eventLoop;
+      this.addresses = addresses;
+      this.raceFuture = raceFuture;
+      this.channels = Lists.newArrayListWithCapacity(addresses.size());
+    }
+
+    synchronized void startNextAttempt() {
+      if (isFinished || attemptsStarted == addresses.size()) {
+        return;
+      }
+
+      cancelNextAttemptTimer();
+
+      CompletableFuture<SmtpClientResponse> attemptFuture = new CompletableFuture<>();
+      Channel channel = connect(eventLoop, addresses.get(attemptsStarted++), attemptFuture);
+      channels.add(channel);
+
+      if (attemptsStarted < addresses.size()) {
+        nextAttemptTimer = eventLoop.schedule(this::startNextAttempt, config.getConnectionAttemptDelay().toMillis(), TimeUnit.MILLISECONDS);
+      }
+
+      // added last because a failed attempt may complete immediately and start the next attempt
+      attemptFuture.whenComplete((response, throwable) -> {
+        if (throwable != null) {
+          onAttemptFailed(throwable);
+        } else {
+          onAttemptSucceeded(channel, response);
+        }
+      });
+    }
+
+    private void onAttemptSucceeded(Channel channel, SmtpClientResponse response) {
+      List<Channel> otherChannels;
+
+      synchronized (this) {
+        if (isFinished) {
+          response.getSession().close();
+          return;
+        }
+
+        isFinished = true;
+        cancelNextAttemptTimer();
+        otherChannels = channels.stream().filter(c -> c != channel).collect(Collectors.toList());
+      }
+
+      otherChannels.forEach(Channel::close);
+      raceFuture.complete(response);
+    }
+
+    private void onAttemptFailed(Throwable throwable) {
+      synchronized (this) {
+        if (isFinished) {
+          return;
+        }
+
+        if (++attemptsFailed < addresses.size()) {
+          startNextAttempt();
+          return;
+        }
+
+        isFinished = true;
+      }
+
+      raceFuture.completeExceptionally(throwable);
+    }
+
+    private void cancelNextAttemptTimer() {
+      if (nextAttemptTimer != null) {
+        nextAttemptTimer.cancel(false);
+        nextAttemptTimer = null;
+      }
+    }
+  }
 }
@@ -0,0 +1,589 @@
+package com.hubspot.smtp.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.smtp.SmtpRequests;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * A bounded pool of {@link SmtpSession} instances connected to the same remote server.
+ *
+ * <p>New sessions are connected by the {@link SmtpSessionFactory} that created the pool and
+ * prepared with {@link SmtpSessionPoolConfig#getSessionInitializer()}, so sessions returned by
+ * {@link #acquire()} have already been greeted and, if required, authenticated. Each acquired
+ * session must be handed back with {@link #release(SmtpSession)} once the caller has finished
+ * with it, after which it can be reused by another caller.
+ *
+ * <p>If {@link SmtpSessionPoolConfig#getPrefillSize()} is set, the pool connects and initializes
+ * sessions in the background so that that many are always idle, bounded by the maximum size.
+ *
+ * <p>Sessions can be given a limited lifetime with {@link SmtpSessionPoolConfig#getMaxTransactionsPerSession()},
+ * {@link SmtpSessionPoolConfig#getMaxBytesPerSession()} and {@link SmtpSessionPoolConfig#getMaxSessionAge()}.
+ * Sessions that exceed their limits are retired with QUIT instead of being reused, and new
+ * sessions are connected in their place.
+ *
+ * <p>When every session is in use and the pool has reached {@link SmtpSessionPoolConfig#getMaxSize()},
+ * callers wait for a session to be released, and are served in the order they called {@code acquire}.
+ *
+ * <p>Idle sessions are kept apart by the event loop that handles them. A caller running on one of
+ * the factory's event loops is given an idle session handled by the same loop if there is one, and
+ * new sessions connected on its behalf are handled by its loop, so that a transaction started from
+ * an event loop doesn't have to hand work to another thread. Use
+ * {@link SmtpSessionFactoryConfig#DIRECT_EXECUTOR} to also run the session's callbacks on its loop.
+ *
+ * <p>This class is thread-safe.
+ */
+public class SmtpSessionPool implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(SmtpSessionPool.class);
+  private static final Duration MAINTENANCE_INTERVAL = Duration.ofSeconds(1);
+  private static final Duration MAX_CONNECT_RETRY_DELAY = Duration.ofSeconds(30);
+
+  private final SmtpSessionFactory factory;
+  private final SmtpSessionPoolConfig config;
+  private final EventLoopGroup eventLoopGroup;
+  private final ConcurrentMap<Thread, EventLoop> eventLoopsByThread = new ConcurrentHashMap<>();
+  private final Map<SmtpSession, SessionLimits> sessions = Maps.newIdentityHashMap();
+  private final IdleSessions idleSessions = new IdleSessions();
+  private final Deque<CompletableFuture<SmtpSession>> waiters = new ArrayDeque<>();
+  private final ScheduledFuture<?> maintenanceTask;
+
+  private int pendingConnections;
+  private int consecutiveConnectFailures;
+  private long connectRetryAtNanos;
+  private boolean closed;
+
+  SmtpSessionPool(SmtpSessionFactory factory, SmtpSessionPoolConfig config) {
+    this.factory = factory;
+    this.config = config;
+    this.eventLoopGroup = factory.getFactoryConfig().getEventLoopGroup();
+
+    long intervalMillis = MAINTENANCE_INTERVAL.toMillis();
+    this.maintenanceTask = eventLoopGroup.scheduleAtFixedRate(this::performMaintenance, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+
+    growIfRequired();
+  }
+
+  /**
+   * Gets a session from the pool, connecting a new one if none are idle and the pool
+   * has not reached its maximum size.
+   *
+   * @return a future that will complete with a ready-to-use session, or exceptionally if
+   *         a session could not be connected or the acquire timeout was exceeded
+   */
+  public CompletableFuture<SmtpSession> acquire() {
+    CompletableFuture<SmtpSession> waiter = new CompletableFuture<>();
+    EventLoop callerEventLoop = getCallerEventLoop();
+    SmtpSession idleSession = null;
+
+    synchronized (this) {
+      if (closed) {
+        waiter.completeExceptionally(new IllegalStateException("This pool has been closed"));
+        return waiter;
+      }
+
+      // callers that are already waiting take precedence over idle sessions,
+      // though in practice sessions are only idle when nobody is waiting
+      if (waiters.isEmpty()) {
+        idleSession = pollIdleSession(callerEventLoop);
+      }
+
+      if (idleSession == null) {
+        waiters.add(waiter);
+      }
+    }
+
+    if (idleSession != null) {
+      // replace the session we took if the pool is being kept prefilled
+      growIfRequired(callerEventLoop);
+      waiter.complete(idleSession);
+      return waiter;
+    }
+
+    applyAcquireTimeout(waiter);
+    growIfRequired(callerEventLoop);
+
+    return waiter;
+  }
+
+  /**
+   * Returns a session obtained from {@link #acquire()} to the pool.
+   *
+   * <p>The session must not be used by the caller after it has been released. Sessions
+   * that have been closed are discarded, and a replacement will be connected if required.
+   *
+   * @throws IllegalArgumentException if the session was not created by this pool
+   */
+  public void release(SmtpSession session) {
+    Preconditions.checkNotNull(session);
+
+    synchronized (this) {
+      Preconditions.checkArgument(sessions.containsKey(session) || !session.isActive(),
+          "This session does not belong to this pool");
+    }
+
+    offer(session);
+  }
+
+  /**
+   * Gets the number of open and connecting sessions in the pool, including those that are in use.
+   */
+  public synchronized int getSessionCount() {
+    return sessions.size() + pendingConnections;
+  }
+
+  /**
+   * Gets the number of sessions waiting in the pool to be acquired.
+   */
+  public synchronized int getIdleSessionCount() {
+    return idleSessions.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    closeAsync().join();
+  }
+
+  /**
+   * Closes all idle sessions and fails any callers waiting for a session. Sessions that are
+   * in use will be closed when they are released.
+   *
+   * @return a future that will be completed when the idle sessions have been closed
+   */
+  public CompletableFuture<Void> closeAsync() {
+    List<SmtpSession> sessionsToClose = Lists.newArrayList();
+    List<CompletableFuture<SmtpSession>> waitersToFail;
+
+    synchronized (this) {
+      closed = true;
+
+      for (SmtpSession session : idleSessions.removeAll()) {
+        sessions.remove(session);
+        sessionsToClose.add(session);
+      }
+
+      waitersToFail = Lists.newArrayList(waiters);
+      waiters.clear();
+    }
+
+    maintenanceTask.cancel(false);
+
+    for (CompletableFuture<SmtpSession> waiter : waitersToFail) {
+      waiter.completeExceptionally(new IllegalStateException("This pool has been closed"));
+    }
+
+    return CompletableFuture.allOf(sessionsToClose.stream().map(this::retire).toArray(CompletableFuture[]::new));
+  }
+
+  private void offer(SmtpSession session) {
+    boolean shouldRetire = false;
+
+    while (true) {
+      CompletableFuture<SmtpSession> waiter;
+
+      synchronized (this) {
+        if (closed || !session.isActive() || hasExceededLimits(session)) {
+          SessionLimits limits = sessions.remove(session);
+          shouldRetire = limits != null && session.isActive();
+          break;
+        }
+
+        waiter = pollWaiter();
+        if (waiter == null) {
+          idleSessions.push(session);
+          return;
+        }
+      }
+
+      // the waiter may have timed out since it was taken from the queue,
+      // in which case we try the next one
+      if (waiter.complete(session)) {
+        return;
+      }
+    }
+
+    if (shouldRetire) {
+      retire(session);
+    }
+
+    growIfRequired();
+  }
+
+  // must be called while holding the lock
+  private boolean hasExceededLimits(SmtpSession session) {
+    SessionLimits limits = sessions.get(session);
+    return limits != null && limits.hasBeenExceededBy(session, System.nanoTime());
+  }
+
+  private void growIfRequired() {
+    growIfRequired(null);
+  }
+
+  // the first new session is connected on preferredEventLoop, if it isn't null
+  private void growIfRequired(EventLoop preferredEventLoop) {
+    int connectionsToOpen;
+
+    synchronized (this) {
+      if (closed || isBackingOff()) {
+        return;
+      }
+
+      // pending connections serve waiters first, and any left over will become idle
+      int total = sessions.size() + pendingConnections;
+      int spare = idleSessions.size() + pendingConnections - waiters.size();
+      int wanted = Math.max(config.getPrefillSize() - spare, config.getMinSize() - total);
+
+      connectionsToOpen = Math.max(0, Math.min(wanted, config.getMaxSize() - total));
+      pendingConnections += connectionsToOpen;
+    }
+
+    for (int i = 0; i < connectionsToOpen; i++) {
+      openSession(i == 0 ? preferredEventLoop : null);
+    }
+  }
+
+  private void openSession(EventLoop eventLoop) {
+    (eventLoop == null ? factory.connect() : factory.connect(eventLoop))
+        .thenCompose(this::initialize)
+        .whenComplete((session, e) -> {
+          if (e != null) {
+            onConnectFailed(e);
+          } else {
+            onConnected(session);
+          }
+        });
+  }
+
+  private CompletableFuture<SmtpSession> initialize(SmtpClientResponse greeting) {
+    SmtpSession session = greeting.getSession();
+
+    CompletableFuture<SmtpClientResponse> initialized = greeting.containsError() ?
+        CompletableFuture.completedFuture(greeting) : config.getSessionInitializer().apply(greeting);
+
+    return initialized.handle((response, e) -> {
+      if (e != null) {
+        session.close();
+        throw Throwables.propagate(e);
+      }
+
+      if (response.containsError()) {
+        session.close();
+        throw new SessionInitializationException(session.getConnectionId(), response);
+      }
+
+      return session;
+    });
+  }
+
+  private void onConnected(SmtpSession session) {
+    synchronized (this) {
+      pendingConnections--;
+      consecutiveConnectFailures = 0;
+      sessions.put(session, new SessionLimits(config));
+    }
+
+    session.getCloseFuture().whenComplete((ignored1, ignored2) -> onSessionClosed(session));
+
+    offer(session);
+  }
+
+  private void onConnectFailed(Throwable cause) {
+    CompletableFuture<SmtpSession> waiter;
+    long retryDelayNanos;
+
+    synchronized (this) {
+      pendingConnections--;
+      waiter = pollWaiter();
+
+      retryDelayNanos = getConnectRetryDelayNanos(++consecutiveConnectFailures);
+      connectRetryAtNanos = System.nanoTime() + retryDelayNanos;
+    }
+
+    LOG.warn("Could not open a pooled session", cause);
+
+    // let the longest waiting caller know why it can't have a session, rather
+    // than leaving it to wait for a connection that might never succeed
+    if (waiter != null) {
+      waiter.completeExceptionally(cause);
+    }
+
+    // replace the connection once the backoff has passed, so remaining waiters
+    // and the prefill target are served without hammering an unavailable server
+    eventLoopGroup.schedule(() -> growIfRequired(), retryDelayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  // must be called while holding the lock
+  private boolean isBackingOff() {
+    return consecutiveConnectFailures > 0 && System.nanoTime() - connectRetryAtNanos < 0;
+  }
+
+  private long getConnectRetryDelayNanos(int failures) {
+    long maxDelayNanos = MAX_CONNECT_RETRY_DELAY.toNanos();
+    long delayNanos = Math.min(config.getConnectRetryDelay().toNanos(), maxDelayNanos) << Math.min(failures - 1, 20);
+    return Math.min(delayNanos, maxDelayNanos);
+  }
+
+  private void onSessionClosed(SmtpSession session) {
+    synchronized (this) {
+      if (sessions.remove(session) == null) {
+        return;
+      }
+
+      idleSessions.remove(session);
+    }
+
+    growIfRequired();
+  }
+
+  private void performMaintenance() {
+    config.getMaxIdleTime().ifPresent(this::evictIdleSessions);
+    retireExpiredIdleSessions();
+    growIfRequired();
+  }
+
+  private void retireExpiredIdleSessions() {
+    List<SmtpSession> expiredSessions = Lists.newArrayList();
+
+    synchronized (this) {
+      for (SmtpSession session : idleSessions.removeIf(this::hasExceededLimits)) {
+        sessions.remove(session);
+        expiredSessions.add(session);
+      }
+    }
+
+    expiredSessions.forEach(this::retire);
+  }
+
+  private void evictIdleSessions(Duration maxIdleTime) {
+    List<SmtpSession> evictedSessions = Lists.newArrayList();
+
+    synchronized (this) {
+      long now = System.nanoTime();
+
+      while (sessions.size() + pendingConnections > config.getMinSize()
+          && idleSessions.size() > config.getPrefillSize()) {
+        SmtpSession session = idleSessions.pollIdleSince(now - maxIdleTime.toNanos());
+        if (session == null) {
+          break;
+        }
+
+        sessions.remove(session);
+        evictedSessions.add(session);
+      }
+    }
+
+    evictedSessions.forEach(this::retire);
+  }
+
+  private CompletableFuture<Void> retire(SmtpSession session) {
+    if (!session.isActive()) {
+      return session.close();
+    }
+
+    return session.send(SmtpRequests.quit()).handle((r, e) -> null).thenCompose(ignored -> session.close());
+  }
+
+  private void applyAcquireTimeout(CompletableFuture<SmtpSession> waiter) {
+    config.getAcquireTimeout().ifPresent(timeout -> {
+      ScheduledFuture<?> timeoutTask = eventLoopGroup.schedule(() -> {
+        if (waiter.completeExceptionally(new TimeoutException("Timed out waiting for a pooled session"))) {
+          synchronized (this) {
+            waiters.remove(waiter);
+          }
+        }
+      }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+
+      waiter.whenComplete((ignored1, ignored2) -> timeoutTask.cancel(false));
+    });
+  }
+
+  // must be called while holding the lock
+  private SmtpSession pollIdleSession(EventLoop preferredEventLoop) {
+    SmtpSession session;
+    while ((session = idleSessions.poll(preferredEventLoop)) != null) {
+      if (session.isActive()) {
+        return session;
+      }
+
+      sessions.remove(session);
+    }
+
+    return null;
+  }
+
+  private EventLoop getCallerEventLoop() {
+    Thread thread = Thread.currentThread();
+    EventLoop cachedEventLoop = eventLoopsByThread.get(thread);
+    if (cachedEventLoop != null) {
+      return cachedEventLoop;
+    }
+
+    // only event loop threads are cached, so callers on other threads keep scanning the group
+    for (EventExecutor executor : eventLoopGroup) {
+      if (executor.inEventLoop() && executor instanceof EventLoop) {
+        EventLoop eventLoop = (EventLoop) executor;
+        eventLoopsByThread.put(thread, eventLoop);
+        return eventLoop;
+      }
+    }
+
+    return null;
+  }
+
+  // must be called while holding the lock
+  private CompletableFuture<SmtpSession> pollWaiter() {
+    CompletableFuture<SmtpSession> waiter;
+    while ((waiter = waiters.poll()) != null) {
+      if (!waiter.isDone()) {
+        return waiter;
+      }
+    }
+
+    return null;
+  }
+
+  private static class SessionLimits {
+    private final long expiresAtNanos;
+    private final int maxTransactions;
+    private final long maxBytes;
+
+    SessionLimits(SmtpSessionPoolConfig config) {
+      // scale every limit for this session by the same random factor
+      double factor = 1 - config.getSessionLimitJitter() * ThreadLocalRandom.current().nextDouble();
+
+      this.expiresAtNanos = config.getMaxSessionAge()
+          .map(age -> System.nanoTime() + (long) (age.toNanos() * factor))
+          .orElse(Long.MAX_VALUE);
+      this.maxTransactions = config.getMaxTransactionsPerSession().isPresent() ?
+          Math.max(1, (int) (config.getMaxTransactionsPerSession().getAsInt() * factor)) : Integer.MAX_VALUE;
+      this.maxBytes = config.getMaxBytesPerSession().isPresent() ?
+          (long) (config.getMaxBytesPerSession().getAsLong() * factor) : Long.MAX_VALUE;
+    }
+
+    boolean hasBeenExceededBy(SmtpSession session, long nowNanos) {
+      return (expiresAtNanos != Long.MAX_VALUE && nowNanos - expiresAtNanos >= 0)
+          || session.getTransactionCount() >= maxTransactions
+          || session.getBytesSent() >= maxBytes;
+    }
+  }
+
+  private static class IdleSession {
+    private final SmtpSession session;
+    private final long idleSinceNanos;
+
+    IdleSession(SmtpSession session) {
+      this.session = session;
+      this.idleSinceNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * Idle sessions, partitioned by the event loop that handles them. Sessions are pushed onto the
+   * front of each partition, so the most recently used sessions are at the front and the longest
+   * idle are at the end. Not thread-safe; guarded by the pool's lock.
+   */
+  private static class IdleSessions {
+    private final Map<EventLoop, Deque<IdleSession>> partitions = Maps.newHashMap();
+    private int size;
+
+    int size() {
+      return size;
+    }
+
+    void push(SmtpSession session) {
+      partitions.computeIfAbsent(session.getEventLoop(), ignored -> new ArrayDeque<>()).push(new IdleSession(session));
+      size++;
+    }
+
+    // takes the most recently used session handled by preferredEventLoop, or else the most recently used of all
+    SmtpSession poll(EventLoop preferredEventLoop) {
+      Deque<IdleSession> partition = preferredEventLoop == null ? null : partitions.get(preferredEventLoop);
+
+      if (partition == null || partition.isEmpty()) {
+        partition = null;
+        for (Deque<IdleSession> candidate : partitions.values()) {
+          if (!candidate.isEmpty() && (partition == null || candidate.peek().idleSinceNanos - partition.peek().idleSinceNanos > 0)) {
+            partition = candidate;
+          }
+        }
+      }
+
+      if (partition == null) {
+        return null;
+      }
+
+      size--;
+      return partition.poll().session;
+    }
+
+    // takes the longest idle session, if it has been idle since before idleSinceNanos
+    SmtpSession pollIdleSince(long idleSinceNanos) {
+      Deque<IdleSession> partition = null;
+      for (Deque<IdleSession> candidate : partitions.values()) {
+        if (!candidate.isEmpty() && (partition == null || candidate.peekLast().idleSinceNanos - partition.peekLast().idleSinceNanos < 0)) {
+          partition = candidate;
+        }
+      }
+
+      if (partition == null || partition.peekLast().idleSinceNanos - idleSinceNanos > 0) {
+        return null;
+      }
+
+      size--;
+      return partition.pollLast().session;
+    }
+
+    void remove(SmtpSession session) {
+      Deque<IdleSession> partition = partitions.get(session.getEventLoop());
+      if (partition != null && partition.removeIf(idleSession -> idleSession.session == session)) {
+        size--;
+      }
+    }
+
+    List<SmtpSession> removeIf(Predicate<SmtpSession> predicate) {
+      List<SmtpSession> removedSessions = Lists.newArrayList();
+
+      for (Deque<IdleSession> partition : partitions.values()) {
+        Iterator<IdleSession> iterator = partition.iterator();
+        while (iterator.hasNext()) {
+          SmtpSession session = iterator.next().session;
+          if (predicate.test(session)) {
+            iterator.remove();
+            removedSessions.add(session);
+          }
+        }
+      }
+
+      size -= removedSessions.size();
+      return removedSessions;
+    }
+
+    List<SmtpSession> removeAll() {
+      return removeIf(session -> true);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package com.hubspot.smtp.client;
+
+import java.util.List;
+import java.util.Optional;
+
+import com.google.common.base.Preconditions;
+import com.hubspot.smtp.utils.SmtpResponses;
+
+import io.netty.handler.codec.smtp.SmtpResponse;
+
+/**
+ * The outcome of sending a message with {@link SmtpSession#send(String, java.util.Collection, MessageContent)},
+ * with the responses to the MAIL command, each RCPT command and the message content
+ * already picked out of the responses the server sent.
+ *
+ * <p>Recipients are numbered in the order they were passed to {@code send}. A recipient
+ * whose RCPT command was never answered, because the transaction was abandoned before
+ * it was sent, has a code of 0.
+ *
+ * <p>This class is immutable.
+ */
+public final class TransactionResult {
+  /**
+   * The code given to recipients that received no response.
+   */
+  public static final int NO_RESPONSE = 0;
+
+  private final List<SmtpResponse> responses;
+  private final int mailIndex;
+  private final int[] recipientCodes;
+  private final int[] recipientEnhancedCodes;
+  private final int acceptedRecipientCount;
+
+  private TransactionResult(List<SmtpResponse> responses, int mailIndex, int recipientCount) {
+    this.responses = responses;
+    this.mailIndex = mailIndex;
+    this.recipientCodes = new int[recipientCount];
+    this.recipientEnhancedCodes = new int[recipientCount];
+
+    int accepted = 0;
+    for (int i = 0; i < recipientCount && mailIndex + 1 + i < responses.size(); i++) {
+      SmtpResponse response = responses.get(mailIndex + 1 + i);
+      recipientCodes[i] = response.code();
+
+      if (response instanceof EnhancedSmtpResponse) {
+        recipientEnhancedCodes[i] = ((EnhancedSmtpResponse) response).getEnhancedStatusCode().getPackedCode();
+      }
+
+      if (!SmtpResponses.isError(response)) {
+        accepted++;
+      }
+    }
+    this.acceptedRecipientCount = accepted;
+  }
+
+  /**
+   * Creates a result from the responses to a transaction.
+   *
+   * @param responses the responses, which must not be modified afterwards
+   * @param mailIndex the index of the response to the MAIL command, which is 1 if
+   *        the transaction began with RSET
+   * @param recipientCount the number of RCPT commands that were to be sent
+   */
+  static TransactionResult of(List<SmtpResponse> responses, int mailIndex, int recipientCount) {
+    Preconditions.checkArgument(mailIndex >= 0, "mailIndex must not be negative");
+    Preconditions.checkArgument(recipientCount > 0, "recipientCount must be positive");
+
+    return new TransactionResult(responses, mailIndex, recipientCount);
+  }
+
+  /**
+   * Gets the response to the MAIL command, if one was received.
+   */
+  public Optional<SmtpResponse> getMailResponse() {
+    return mailIndex < responses.size() ? Optional.of(responses.get(mailIndex)) : Optional.empty();
+  }
+
+  /**
+   * Gets whether the server accepted the MAIL command.
+   */
+  public boolean isEnvelopeAccepted() {
+    return mailIndex < responses.size() && !SmtpResponses.isError(responses.get(mailIndex));
+  }
+
+  public int getRecipientCount() {
+    return recipientCodes.length;
+  }
+
+  /**
+   * Gets the number of recipients the server accepted.
+   */
+  public int getAcceptedRecipientCount() {
+    return acceptedRecipientCount;
+  }
+
+  /**
+   * Gets the code of the response to the RCPT command for the recipient at {@code index},
+   * or {@link #NO_RESPONSE}.
+   *
+   * @throws IndexOutOfBoundsException if {@code index} is not a valid recipient index
+   */
+  public int getRecipientCode(int index) {
+    return recipientCodes[index];
+  }
+
+  /**
+   * Gets the enhanced status code of the response to the RCPT command for the recipient
+   * at {@code index}, if the server supports enhanced status codes and sent one.
+   *
+   * @throws IndexOutOfBoundsException if {@code index} is not a valid recipient index
+   */
+  public Optional<EnhancedStatusCode> getRecipientEnhancedStatusCode(int index) {
+    int packedCode = recipientEnhancedCodes[index];
+    if (packedCode == 0) {
+      return Optional.empty();
+    }
+
+    return Optional.of(EnhancedStatusCode.fromPackedCode(packedCode));
+  }
+
+  /**
+   * Gets the response to the RCPT command for the recipient at {@code index}, if one
+   * was received.
+   *
+   * @throws IndexOutOfBoundsException if {@code index} is not a valid recipient index
+   */
+  public Optional<SmtpResponse> getRecipientResponse(int index) {
+    Preconditions.checkElementIndex(index, recipientCodes.length);
+    return recipientCodes[index] == NO_RESPONSE ? Optional.empty() : Optional.of(responses.get(mailIndex + 1 + index));
+  }
+
+  /**
+   * Gets whether the server accepted the recipient at {@code index}.
+   *
+   * @throws IndexOutOfBoundsException if {@code index} is not a valid recipient index
+   */
+  public boolean isRecipientAccepted(int index) {
+    int code = recipientCodes[index];
+    return code != NO_RESPONSE && code < 400;
+  }
+
+  /**
+   * Gets the final response to the message content, or to the DATA or BDAT command
+   * that refused it, if the transaction got that far.
+   */
+  public Optional<SmtpResponse> getDataResponse() {
+    int firstDataIndex = mailIndex + 1 + recipientCodes.length;
+    return responses.size() > firstDataIndex ? Optional.of(responses.get(responses.size() - 1)) : Optional.empty();
+  }
+
+  /**
+   * Gets whether the server accepted the message for at least one recipient.
+   */
+  public boolean isDelivered() {
+    return acceptedRecipientCount > 0 && getDataResponse().map(r -> !SmtpResponses.isError(r) && r.code() < 300).orElse(false);
+  }
+
+  @Override
+  public String toString() {
+    return "TransactionResult{recipients=" + recipientCodes.length +
+        ", accepted=" + acceptedRecipientCount +
+        ", delivered=" + isDelivered() + '}';
+  }
+}
@@ -0,0 +1,31 @@
+package com.hubspot.smtp.client;
+
+/**
+ * The state of the mail transaction on a {@link SmtpSession}, as tracked from the
+ * commands it has sent and the responses it has received.
+ *
+ * <p>A new transaction is only preceded by RSET when the session is not {@link #READY}.
+ */
+public enum TransactionState {
+  /**
+   * No transaction is in progress, so a new one can begin with MAIL.
+   */
+  READY,
+
+  /**
+   * A transaction has begun but the server has not yet been asked for message data,
+   * e.g. MAIL has been accepted and RCPT commands are being sent.
+   */
+  IN_ENVELOPE,
+
+  /**
+   * The server is receiving message data, after DATA or a BDAT chunk without LAST.
+   */
+  IN_DATA,
+
+  /**
+   * A transaction was abandoned part way through, or a command failed without a
+   * response, so the server's state is unknown until RSET has been sent.
+   */
+  FAILED
+}
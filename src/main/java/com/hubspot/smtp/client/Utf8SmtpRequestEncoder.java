@@ -1,21 +1,32 @@
 package com.hubspot.smtp.client;
 
-import java.util.Iterator;
 import java.util.List;
-import java.util.RandomAccess;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.smtp.SmtpCommand;
 import io.netty.handler.codec.smtp.SmtpRequest;
 
 // Based very closely on SmtpRequestEncoder, but supports utf8 parameters
-// and doesn't require the LastSmtpContent because we always send a single content object
+// and doesn't require the LastSmtpContent because we always send a single content object.
+//
+// Commands without parameters, like RSET and DATA, are written from shared buffers that
+// are encoded once. Other commands are written into buffers sized from their parameters,
+// which is exact when they are ASCII, and PreEncodedSmtpRequests are written from the
+// bytes they already hold.
 public final class Utf8SmtpRequestEncoder extends MessageToMessageEncoder<Object> {
   private static final byte[] CRLF = {'\r', '\n'};
   private static final byte SP = ' ';
 
+  private static final Map<SmtpCommand, ByteBuf> COMMAND_TEMPLATES = createCommandTemplates(
+      SmtpCommand.RSET, SmtpCommand.DATA, SmtpCommand.NOOP, SmtpCommand.QUIT, SmtpCommand.HELP, SmtpCommand.valueOf("STARTTLS"));
+
   @Override
   public boolean acceptOutboundMessage(Object msg) throws Exception {
     return msg instanceof SmtpRequest;
@@ -27,15 +38,26 @@ public final class Utf8SmtpRequestEncoder extends MessageToMessageEncoder<Object
       return;
     }
 
+    if (msg instanceof PreEncodedSmtpRequest) {
+      out.add(((PreEncodedSmtpRequest) msg).toByteBuf());
+      return;
+    }
+
+    final SmtpRequest req = (SmtpRequest) msg;
+
+    if (req.parameters().isEmpty()) {
+      ByteBuf template = COMMAND_TEMPLATES.get(req.command());
+      if (template != null) {
+        out.add(template.duplicate());
+        return;
+      }
+    }
+
     boolean release = true;
-    final ByteBuf buffer = ctx.alloc().buffer();
+    final ByteBuf buffer = ctx.alloc().buffer(getEncodedLength(req));
 
     try {
-      final SmtpRequest req = (SmtpRequest) msg;
-
-      ByteBufUtil.writeAscii(buffer, req.command().name());
-      writeParameters(req.parameters(), buffer);
-      buffer.writeBytes(CRLF);
+      writeRequest(req, buffer);
 
       out.add(buffer);
       release = false;
@@ -46,32 +68,67 @@ public final class Utf8SmtpRequestEncoder extends MessageToMessageEncoder<Object
     }
   }
 
-  private static void writeParameters(List<CharSequence> parameters, ByteBuf out) {
-    if (parameters.isEmpty()) {
+  // this is exact for ASCII parameters; others are counted at their maximum length, which
+  // writeUtf8 requires to be writable before it will write them without expanding the buffer
+  static int getEncodedLength(SmtpRequest req) {
+    if (req instanceof PreEncodedSmtpRequest) {
+      return ((PreEncodedSmtpRequest) req).getLength();
+    }
+
+    List<CharSequence> parameters = req.parameters();
+
+    int length = req.command().name().length() + CRLF.length;
+    for (int i = 0; i < parameters.size(); i++) {
+      CharSequence parameter = parameters.get(i);
+      length += 1 + (isAscii(parameter) ? parameter.length() : ByteBufUtil.utf8MaxBytes(parameter));
+    }
+    return length;
+  }
+
+  static void writeRequest(SmtpRequest req, ByteBuf out) {
+    if (req instanceof PreEncodedSmtpRequest) {
+      ((PreEncodedSmtpRequest) req).writeTo(out);
       return;
     }
 
-    out.writeByte(SP);
+    ByteBufUtil.writeAscii(out, req.command().name());
+
+    // parameters is always a RandomAccess list in DefaultSmtpRequest
+    List<CharSequence> parameters = req.parameters();
+    for (int i = 0; i < parameters.size(); i++) {
+      CharSequence parameter = parameters.get(i);
 
-    if (parameters instanceof RandomAccess) {
-      int sizeMinusOne = parameters.size() - 1;
-      for (int i = 0; i < sizeMinusOne; i++) {
-        ByteBufUtil.writeUtf8(out, parameters.get(i));
-        out.writeByte(SP);
+      out.writeByte(SP);
+      if (isAscii(parameter)) {
+        ByteBufUtil.writeAscii(out, parameter);
+      } else {
+        ByteBufUtil.writeUtf8(out, parameter);
       }
+    }
+
+    out.writeBytes(CRLF);
+  }
 
-      ByteBufUtil.writeUtf8(out, parameters.get(sizeMinusOne));
-
-    } else {
-      Iterator<CharSequence> params = parameters.iterator();
-      while (true) {
-        ByteBufUtil.writeUtf8(out, params.next());
-        if (params.hasNext()) {
-          out.writeByte(SP);
-        } else {
-          break;
-        }
+  private static boolean isAscii(CharSequence s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) >= 0x80) {
+        return false;
       }
     }
+    return true;
+  }
+
+  private static Map<SmtpCommand, ByteBuf> createCommandTemplates(SmtpCommand... commands) {
+    ImmutableMap.Builder<SmtpCommand, ByteBuf> templates = ImmutableMap.builder();
+
+    for (SmtpCommand command : commands) {
+      ByteBuf buffer = Unpooled.directBuffer(command.name().length() + CRLF.length);
+      ByteBufUtil.writeAscii(buffer, command.name());
+      buffer.writeBytes(CRLF);
+
+      templates.put(command, Unpooled.unreleasableBuffer(buffer));
+    }
+
+    return templates.build();
   }
 }
@@ -1,97 +1,264 @@
 package com.hubspot.smtp.client;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.DecoderException;
-import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.codec.TooLongFrameException;
 import io.netty.handler.codec.smtp.DefaultSmtpResponse;
 import io.netty.handler.codec.smtp.SmtpResponse;
+import io.netty.util.AsciiString;
+import io.netty.util.ByteProcessor;
 import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.FastThreadLocal;
 
-// A copy of Netty's SmtpResponseDecoder but parses responses using UTF8
-public final class Utf8SmtpResponseDecoder extends LineBasedFrameDecoder {
+// Based on Netty's SmtpResponseDecoder but parses responses using UTF8.
+//
+// Lines are parsed in place in the cumulation buffer rather than being copied to a frame
+// first. Details that are plain ASCII, which is almost all of them, are exposed as
+// AsciiStrings that share the line's bytes and only become Strings if toString is called.
+// Single line ASCII responses are looked up in a cache kept by each event loop, so the
+// replies servers send over and over, like "250 2.1.5 Ok", are only allocated once per
+// loop. A line is only cached the second time it is seen, so one-off replies like
+// "250 2.0.0 Ok: queued as 4F3A2C1" don't evict the common ones. Cached responses are
+// shared, so their details are Strings rather than AsciiStrings with exposed arrays.
+//
+// Once the server has said it supports ENHANCEDSTATUSCODES, responses that begin with
+// an enhanced status code are returned as EnhancedSmtpResponses with the code parsed.
+public final class Utf8SmtpResponseDecoder extends ByteToMessageDecoder {
+  private static final int CACHE_SIZE = 256; // must be a power of two
+  private static final int MAX_CACHED_LINE_LENGTH = 64;
 
+  // decoders run on their channel's event loop, so each cache is only used by one thread
+  private static final FastThreadLocal<ResponseCache> CACHE = new FastThreadLocal<ResponseCache>() {
+    @Override
+    protected ResponseCache initialValue() {
+      return new ResponseCache();
+    }
+  };
+
+  private final int maxLineLength;
   private List<CharSequence> details;
+  private boolean discarding;
+
+  // set by the session from outside the event loop
+  private volatile boolean parseEnhancedStatusCodes;
 
   /**
    * Creates a new instance that enforces the given {@code maxLineLength}.
    */
   public Utf8SmtpResponseDecoder(int maxLineLength) {
-    super(maxLineLength);
+    this.maxLineLength = maxLineLength;
+  }
+
+  void setParseEnhancedStatusCodes(boolean parseEnhancedStatusCodes) {
+    this.parseEnhancedStatusCodes = parseEnhancedStatusCodes;
   }
 
   @Override
-  protected SmtpResponse decode(ChannelHandlerContext ctx, ByteBuf buffer) throws Exception {
-    ByteBuf frame = (ByteBuf) super.decode(ctx, buffer);
-    if (frame == null) {
-      // No full line received yet.
-      return null;
-    }
-    try {
-      final int readable = frame.readableBytes();
-      final int readerIndex = frame.readerIndex();
-      if (readable < 3) {
-        throw newDecoderException(buffer, readerIndex, readable);
+  protected void decode(ChannelHandlerContext ctx, ByteBuf buffer, List<Object> out) throws Exception {
+    int endOfLine;
+    while ((endOfLine = buffer.forEachByte(ByteProcessor.FIND_LF)) >= 0) {
+      int start = buffer.readerIndex();
+      int end = endOfLine > start && buffer.getByte(endOfLine - 1) == '\r' ? endOfLine - 1 : endOfLine;
+      buffer.readerIndex(endOfLine + 1);
+
+      if (discarding) {
+        discarding = false;
+        throw newTooLongFrameException(endOfLine - start);
       }
-      final int code = parseCode(frame);
-      final int separator = frame.readByte();
-      final CharSequence detail = frame.isReadable() ? frame.toString(CharsetUtil.UTF_8) : null;
-
-      List<CharSequence> details = this.details;
-
-      switch (separator) {
-        case ' ':
-          // Marks the end of a response.
-          this.details = null;
-          if (details != null) {
-            if (detail != null) {
-              details.add(detail);
-            }
-          } else {
-            details = Collections.singletonList(detail);
-          }
-          return new DefaultSmtpResponse(code, details.toArray(new CharSequence[0]));
-        case '-':
-          // Multi-line response.
-          if (detail != null) {
-            if (details == null) {
-              // Using initial capacity as it is very unlikely that we will receive a multi-line response
-              // with more then 3 lines.
-              this.details = details = new ArrayList<>(4);
-            }
-            details.add(detail);
+
+      if (end - start > maxLineLength) {
+        details = null;
+        throw newTooLongFrameException(end - start);
+      }
+
+      SmtpResponse response = decodeLine(buffer, start, end - start);
+      if (response != null) {
+        out.add(response);
+      }
+    }
+
+    if (discarding || buffer.readableBytes() > maxLineLength) {
+      // no end of line yet, but the line is already too long
+      details = null;
+      discarding = true;
+      buffer.skipBytes(buffer.readableBytes());
+    }
+  }
+
+  private SmtpResponse decodeLine(ByteBuf buffer, int start, int length) {
+    if (length < 3) {
+      throw newDecoderException(buffer, start, length);
+    }
+
+    int code = parseCode(buffer, start);
+    byte separator = length == 3 ? (byte) ' ' : buffer.getByte(start + 3);
+
+    switch (separator) {
+      case ' ':
+        // Marks the end of a response.
+        List<CharSequence> details = this.details;
+        this.details = null;
+
+        if (details == null) {
+          return decodeSingleLineResponse(buffer, start, length, code);
+        }
+
+        if (length > 4) {
+          details.add(decodeDetail(buffer, start, length));
+        }
+        return newResponse(code, details.toArray(new CharSequence[details.size()]));
+
+      case '-':
+        // Multi-line response.
+        if (length > 4) {
+          if (this.details == null) {
+            // Using initial capacity as it is very unlikely that we will receive a multi-line response
+            // with more then 3 lines.
+            this.details = new ArrayList<>(4);
           }
-          break;
-        default:
-          throw newDecoderException(buffer, readerIndex, readable);
+          this.details.add(decodeDetail(buffer, start, length));
+        }
+        return null;
+
+      default:
+        throw newDecoderException(buffer, start, length);
+    }
+  }
+
+  private SmtpResponse decodeSingleLineResponse(ByteBuf buffer, int start, int length, int code) {
+    if (length <= 4) {
+      return new DefaultSmtpResponse(code);
+    }
+
+    if (length > MAX_CACHED_LINE_LENGTH || !isAscii(buffer, start, length)) {
+      return newResponse(code, decodeDetail(buffer, start, length));
+    }
+
+    boolean isEnhanced = parseEnhancedStatusCodes;
+    int hash = hash(buffer, start, length);
+    int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+
+    ResponseCache cache = CACHE.get();
+    CachedResponse cached = cache.entries[slot];
+    if (cached != null && cached.isEnhanced == isEnhanced && cached.matches(buffer, start, length)) {
+      return cached.response;
+    }
+
+    if (cache.candidateHashes[slot] != hash) {
+      // remember the line, but only cache it if it comes up again
+      cache.candidateHashes[slot] = hash;
+      return newResponse(code, isEnhanced, decodeDetail(buffer, start, length));
+    }
+
+    byte[] line = new byte[length];
+    buffer.getBytes(start, line);
+    SmtpResponse response = newResponse(code, isEnhanced, new String(line, 4, length - 4, CharsetUtil.US_ASCII));
+
+    cache.entries[slot] = new CachedResponse(line, isEnhanced, response);
+    return response;
+  }
+
+  private SmtpResponse newResponse(int code, CharSequence... details) {
+    return newResponse(code, parseEnhancedStatusCodes, details);
+  }
+
+  private static SmtpResponse newResponse(int code, boolean parseEnhancedStatusCode, CharSequence... details) {
+    if (parseEnhancedStatusCode && details.length > 0) {
+      EnhancedStatusCode enhancedStatusCode = EnhancedStatusCode.parseOrNull(details[0]);
+      if (enhancedStatusCode != null) {
+        return new EnhancedSmtpResponse(code, enhancedStatusCode, details);
+      }
+    }
+
+    return new DefaultSmtpResponse(code, details);
+  }
+
+  // decodes the text that follows the code and separator
+  private static CharSequence decodeDetail(ByteBuf buffer, int start, int length) {
+    int detailStart = start + 4;
+    int detailLength = length - 4;
+
+    if (isAscii(buffer, detailStart, detailLength)) {
+      byte[] bytes = new byte[detailLength];
+      buffer.getBytes(detailStart, bytes);
+      return new AsciiString(bytes, false);
+    }
+
+    return buffer.toString(detailStart, detailLength, CharsetUtil.UTF_8);
+  }
+
+  private static boolean isAscii(ByteBuf buffer, int start, int length) {
+    for (int i = start; i < start + length; i++) {
+      if (buffer.getByte(i) < 0) {
+        return false;
       }
-    } finally {
-      frame.release();
     }
-    return null;
+    return true;
   }
 
-  private static DecoderException newDecoderException(ByteBuf buffer, int readerIndex, int readable) {
+  private static int hash(ByteBuf buffer, int start, int length) {
+    int hash = 1;
+    for (int i = start; i < start + length; i++) {
+      hash = 31 * hash + buffer.getByte(i);
+    }
+    return hash;
+  }
+
+  private static DecoderException newDecoderException(ByteBuf buffer, int start, int length) {
     return new DecoderException(
-        "Received invalid line: '" + buffer.toString(readerIndex, readable, CharsetUtil.UTF_8) + '\'');
+        "Received invalid line: '" + buffer.toString(start, length, CharsetUtil.UTF_8) + '\'');
+  }
+
+  private TooLongFrameException newTooLongFrameException(int length) {
+    return new TooLongFrameException("Received a line of " + length + " bytes, which exceeds the maximum of " + maxLineLength);
   }
 
   /**
    * Parses the io.netty.handler.codec.smtp code without any allocation, which is three digits.
    */
-  private static int parseCode(ByteBuf buffer) {
-    final int first = parseNumber(buffer.readByte()) * 100;
-    final int second = parseNumber(buffer.readByte()) * 10;
-    final int third = parseNumber(buffer.readByte());
+  private static int parseCode(ByteBuf buffer, int start) {
+    final int first = parseNumber(buffer.getByte(start)) * 100;
+    final int second = parseNumber(buffer.getByte(start + 1)) * 10;
+    final int third = parseNumber(buffer.getByte(start + 2));
     return first + second + third;
   }
 
   private static int parseNumber(byte b) {
     return Character.digit((char) b, 10);
   }
-}
 
+  private static final class ResponseCache {
+    private final CachedResponse[] entries = new CachedResponse[CACHE_SIZE];
+    private final int[] candidateHashes = new int[CACHE_SIZE];
+  }
+
+  private static final class CachedResponse {
+    private final byte[] line;
+    private final boolean isEnhanced;
+    private final SmtpResponse response;
+
+    CachedResponse(byte[] line, boolean isEnhanced, SmtpResponse response) {
+      this.line = line;
+      this.isEnhanced = isEnhanced;
+      this.response = response;
+    }
+
+    boolean matches(ByteBuf buffer, int start, int length) {
+      if (line.length != length) {
+        return false;
+      }
+
+      for (int i = 0; i < length; i++) {
+        if (line[i] != buffer.getByte(start + i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package com.hubspot.smtp.client;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hubspot.smtp.utils.SmtpResponses;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.smtp.SmtpCommand;
+import io.netty.handler.codec.smtp.SmtpContent;
+import io.netty.handler.codec.smtp.SmtpRequest;
+import io.netty.handler.codec.smtp.SmtpResponse;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+/**
+ * Logs the commands sent to and the responses received from remote servers, at
+ * {@code DEBUG} on this class's logger.
+ *
+ * <p>Whether a session is traced is decided once, when it connects, so that the trace of
+ * a sampled session is complete. Events are formatted and logged on a separate daemon
+ * thread. If that thread falls behind and more than {@code maxPendingEvents} are waiting,
+ * further events are dropped and the number dropped is logged with the next event.
+ *
+ * <p>Authentication commands and message content are never logged.
+ *
+ * <p>This class is thread-safe.
+ */
+public class WireTrace {
+  private static final Logger LOG = LoggerFactory.getLogger(WireTrace.class);
+  private static final AttributeKey<SessionTrace> SESSION_TRACE_KEY = AttributeKey.valueOf("sm-smtp-wire-trace");
+  private static final SmtpCommand AUTH_COMMAND = SmtpCommand.valueOf("AUTH");
+  private static final String CONTENT = "[CONTENT]";
+  private static final int DEFAULT_MAX_PENDING_EVENTS = 10_000;
+
+  private static final com.google.common.base.Supplier<WireTrace> DEFAULT_INSTANCE = Suppliers.memoize(() -> new WireTrace(1.0, DEFAULT_MAX_PENDING_EVENTS));
+
+  private final double sampleRate;
+  private final BlockingQueue<Event> pendingEvents;
+  private final AtomicBoolean isAppenderStarted = new AtomicBoolean();
+  private final AtomicLong droppedEventCount = new AtomicLong();
+
+  /**
+   * Gets a shared instance that traces every session while debug logging is enabled,
+   * with up to 10,000 pending events.
+   */
+  public static WireTrace getDefault() {
+    return DEFAULT_INSTANCE.get();
+  }
+
+  /**
+   * Creates an instance that traces the given proportion of sessions while debug logging
+   * is enabled.
+   *
+   * @param sampleRate the proportion of sessions to trace, between 0 and 1
+   * @param maxPendingEvents the number of events that can wait to be logged before
+   *        further events are dropped
+   */
+  public WireTrace(double sampleRate, int maxPendingEvents) {
+    Preconditions.checkArgument(sampleRate >= 0 && sampleRate <= 1, "sampleRate must be between 0 and 1");
+    Preconditions.checkArgument(maxPendingEvents > 0, "maxPendingEvents must be positive");
+
+    this.sampleRate = sampleRate;
+    this.pendingEvents = new ArrayBlockingQueue<>(maxPendingEvents);
+  }
+
+  /**
+   * Gets the number of events that have been dropped because too many were waiting
+   * to be logged.
+   */
+  public long getDroppedEventCount() {
+    return droppedEventCount.get();
+  }
+
+  /**
+   * Decides whether the session on {@code channel} should be traced, and if so
+   * marks the channel so that {@link #forChannel(Channel)} will return its trace.
+   */
+  void startSession(Channel channel, String connectionId) {
+    if (LOG.isDebugEnabled() && (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate)) {
+      channel.attr(SESSION_TRACE_KEY).set(new SessionTrace(this, connectionId));
+    }
+  }
+
+  /**
+   * Gets the trace for the session on {@code channel}, or null if it is not traced.
+   */
+  static SessionTrace forChannel(Channel channel) {
+    if (!LOG.isDebugEnabled()) {
+      return null;
+    }
+
+    Attribute<SessionTrace> attribute = channel.attr(SESSION_TRACE_KEY);
+    return attribute == null ? null : attribute.get();
+  }
+
+  private void enqueue(Event event) {
+    if (!pendingEvents.offer(event)) {
+      droppedEventCount.incrementAndGet();
+      return;
+    }
+
+    if (!isAppenderStarted.get() && isAppenderStarted.compareAndSet(false, true)) {
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("niosmtpclient-wire-trace-%d").build()
+          .newThread(this::appendEvents).start();
+    }
+  }
+
+  private void appendEvents() {
+    long reportedDroppedEventCount = 0;
+
+    while (true) {
+      Event event;
+      try {
+        event = pendingEvents.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+
+      long dropped = droppedEventCount.get();
+      if (dropped != reportedDroppedEventCount) {
+        LOG.warn("Dropped {} wire trace events because too many were waiting to be logged", dropped - reportedDroppedEventCount);
+        reportedDroppedEventCount = dropped;
+      }
+
+      LOG.debug("[{}] {} {}", event.connectionId, event.direction, describe(event.payload));
+    }
+  }
+
+  /**
+   * Describes an object sent to or received from the server, redacting authentication
+   * commands and message content.
+   */
+  static String describe(Object o) {
+    if (o instanceof SmtpRequest) {
+      SmtpRequest request = (SmtpRequest) o;
+
+      if (request.command().equals(AUTH_COMMAND)) {
+        return "<redacted-auth-command>";
+      } else {
+        return String.format("%s %s", request.command().name(), Joiner.on(" ").join(request.parameters()));
+      }
+    } else if (o instanceof SmtpResponse) {
+      return SmtpResponses.toString((SmtpResponse) o);
+    } else if (o instanceof SmtpContent || o instanceof ByteBuf || o instanceof ChunkedInput || o instanceof SmtpSession.BdatChunk) {
+      return CONTENT;
+    } else {
+      return o.toString();
+    }
+  }
+
+  static class SessionTrace {
+    private final WireTrace wireTrace;
+    private final String connectionId;
+
+    private SessionTrace(WireTrace wireTrace, String connectionId) {
+      this.wireTrace = wireTrace;
+      this.connectionId = connectionId;
+    }
+
+    void sent(Object obj) {
+      // content is replaced now because buffers may be released before the event is logged
+      wireTrace.enqueue(new Event(connectionId, "C:", obj instanceof SmtpRequest ? obj : CONTENT));
+    }
+
+    void received(SmtpResponse response) {
+      wireTrace.enqueue(new Event(connectionId, "S:", response));
+    }
+  }
+
+  private static class Event {
+    private final String connectionId;
+    private final String direction;
+    private final Object payload;
+
+    Event(String connectionId, String direction, Object payload) {
+      this.connectionId = connectionId;
+      this.direction = direction;
+      this.payload = payload;
+    }
+  }
+}
@@ -47,11 +47,25 @@ public class ByteBufMessageContent extends MessageContent {
     return Iterators.singletonIterator((ByteBuf) getContent());
   }
 
+  /**
+   * Returns a singleton iterator that just contains the wrapped {@code ByteBuf}, whatever
+   * the chunk size, because the content is already in memory.
+   */
+  @Override
+  public Iterator<ByteBuf> getContentChunkIterator(ByteBufAllocator allocator, int chunkSize) {
+    return getContentChunkIterator(allocator);
+  }
+
   @Override
   public Object getDotStuffedContent() {
     return dotStuff(buffer);
   }
 
+  @Override
+  public Object getDotStuffedContent(int chunkSize) {
+    return getDotStuffedContent();
+  }
+
   @Override
   public MessageContentEncoding getEncoding() {
     return encoding;
@@ -77,7 +91,7 @@ public class ByteBufMessageContent extends MessageContent {
 
       if (0 != (bytes & LONG_WITH_HIGH_BITS_SET)) {
         for (int i = 0; i < 8; i++) {
-          if (0 != (bytes & (0x80 << i * 8))) {
+          if (0 != (bytes & (0x80L << i * 8))) {
             eightBitCharCount++;
           }
         }
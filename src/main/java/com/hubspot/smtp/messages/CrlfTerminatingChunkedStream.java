@@ -14,11 +14,10 @@ import io.netty.handler.stream.ChunkedStream;
 class CrlfTerminatingChunkedStream extends ChunkedStream {
   private static final byte CR = '\r';
   private static final byte LF = '\n';
-  private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
   private static final byte[] TRAILING_BYTES = { CR, LF };
 
   CrlfTerminatingChunkedStream(InputStream in) {
-    this(in, DEFAULT_CHUNK_SIZE);
+    this(in, MessageContent.DEFAULT_CHUNK_SIZE);
   }
 
   CrlfTerminatingChunkedStream(InputStream in, int chunkSize) {
@@ -15,12 +15,11 @@ import io.netty.handler.stream.ChunkedStream;
 class DotStuffingChunkedStream extends ChunkedStream {
   private static final byte CR = '\r';
   private static final byte LF = '\n';
-  private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
 
   private final byte[] trailingBytes = { CR, LF };
 
   DotStuffingChunkedStream(InputStream in) {
-    this(in, DEFAULT_CHUNK_SIZE);
+    this(in, MessageContent.DEFAULT_CHUNK_SIZE);
   }
 
   DotStuffingChunkedStream(InputStream in, int chunkSize) {
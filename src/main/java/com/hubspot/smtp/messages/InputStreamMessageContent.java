@@ -23,6 +23,13 @@ public class InputStreamMessageContent extends MessageContent {
   private static final float DEFAULT_8BIT_PROPORTION = 0.1F;
   private static final int READ_LIMIT = 8192;
 
+  /**
+   * The largest chunk read from the stream at once. Chunks are read on the session's
+   * event loop, so larger requested chunk sizes are clamped to keep each blocking
+   * read short.
+   */
+  public static final int MAX_CHUNK_SIZE = 256 * 1024;
+
   private final Supplier<InputStream> streamSupplier;
   private final OptionalInt size;
   private final MessageContentEncoding encoding;
@@ -56,7 +63,12 @@ public class InputStreamMessageContent extends MessageContent {
    */
   @Override
   public Iterator<ByteBuf> getContentChunkIterator(ByteBufAllocator allocator) {
-    CrlfTerminatingChunkedStream chunkedStream = new CrlfTerminatingChunkedStream(getStream());
+    return getContentChunkIterator(allocator, DEFAULT_CHUNK_SIZE);
+  }
+
+  @Override
+  public Iterator<ByteBuf> getContentChunkIterator(ByteBufAllocator allocator, int chunkSize) {
+    CrlfTerminatingChunkedStream chunkedStream = new CrlfTerminatingChunkedStream(getStream(), Math.min(chunkSize, MAX_CHUNK_SIZE));
 
     return new Iterator<ByteBuf>() {
       @Override
@@ -82,9 +94,14 @@ public class InputStreamMessageContent extends MessageContent {
 
   @Override
   public Object getDotStuffedContent() {
+    return getDotStuffedContent(DEFAULT_CHUNK_SIZE);
+  }
+
+  @Override
+  public Object getDotStuffedContent(int chunkSize) {
     // note: size is hard to predict for dot-stuffed content as
     // the transformation might add a few extra bytes
-    return new DotStuffingChunkedStream(getStream());
+    return new DotStuffingChunkedStream(getStream(), Math.min(chunkSize, MAX_CHUNK_SIZE));
   }
 
   @Override
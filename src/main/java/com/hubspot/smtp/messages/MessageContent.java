@@ -15,6 +15,11 @@ import io.netty.buffer.ByteBufAllocator;
  *
  */
 public abstract class MessageContent {
+  /**
+   * The size of the chunks content read from a stream is split into when no size is given.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
   /**
    * Creates a {@link MessageContent} from a {@code ByteBuf} that might contain eight-bit characters.
    */
@@ -84,11 +89,33 @@ public abstract class MessageContent {
    */
   public abstract Iterator<ByteBuf> getContentChunkIterator(ByteBufAllocator allocator);
 
+  /**
+   * Gets an iterator for chunks of content of at most {@code chunkSize} bytes, plus any
+   * terminating CRLF, suitable for use with the chunking SMTP extension.
+   *
+   * <p>The chunk size is a hint. By default it is ignored and this returns the same as
+   * {@link #getContentChunkIterator(ByteBufAllocator)}, and content that is already held in
+   * memory may be returned as a single chunk.
+   */
+  public Iterator<ByteBuf> getContentChunkIterator(ByteBufAllocator allocator, int chunkSize) {
+    return getContentChunkIterator(allocator);
+  }
+
   /**
    * Gets the message content with dot-stuffing applied in a form that can be written to a Netty channel.
    */
   public abstract Object getDotStuffedContent();
 
+  /**
+   * Gets the message content with dot-stuffing applied in a form that can be written to a Netty channel,
+   * reading content from a stream in chunks of at most {@code chunkSize} bytes.
+   *
+   * <p>By default the chunk size is ignored and this returns the same as {@link #getDotStuffedContent()}.
+   */
+  public Object getDotStuffedContent(int chunkSize) {
+    return getDotStuffedContent();
+  }
+
   /**
    * Gets the {@link MessageContentEncoding} of the content, indicating whether it
    * contains eight-bit characters.
@@ -0,0 +1,269 @@
+package com.hubspot.smtp.messages;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.OptionalInt;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+/**
+ * A {@link MessageContent} implementation that rewrites another so that it only contains
+ * seven-bit characters, for servers that don't support the 8BITMIME extension.
+ *
+ * <p>Body parts that contain eight-bit characters are encoded as quoted-printable or base64
+ * as the content is read, a chunk at a time, so the whole message is never held in memory.
+ * Like the content it wraps, the content can only be read once.
+ *
+ * @see SevenBitTranscoder
+ */
+public class SevenBitMessageContent extends MessageContent {
+  private static final byte CR = '\r';
+  private static final byte LF = '\n';
+
+  private final MessageContent content;
+
+  public SevenBitMessageContent(MessageContent content) {
+    this.content = content;
+  }
+
+  /**
+   * Returns an empty {@code OptionalInt}, because the size changes when the content is transcoded.
+   */
+  @Override
+  public OptionalInt size() {
+    return OptionalInt.empty();
+  }
+
+  @Override
+  public Object getContent() {
+    return new TranscodingChunkedInput(DEFAULT_CHUNK_SIZE, false);
+  }
+
+  @Override
+  public Iterator<ByteBuf> getContentChunkIterator(ByteBufAllocator allocator) {
+    return getContentChunkIterator(allocator, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Returns an iterator that transcodes chunks of at most {@code chunkSize} bytes of the
+   * wrapped content as they are read, so the chunks it returns may be larger or smaller.
+   */
+  @Override
+  public Iterator<ByteBuf> getContentChunkIterator(ByteBufAllocator allocator, int chunkSize) {
+    return new TranscodingIterator(allocator, chunkSize);
+  }
+
+  @Override
+  public Object getDotStuffedContent() {
+    return getDotStuffedContent(DEFAULT_CHUNK_SIZE);
+  }
+
+  @Override
+  public Object getDotStuffedContent(int chunkSize) {
+    return new TranscodingChunkedInput(chunkSize, true);
+  }
+
+  @Override
+  public MessageContentEncoding getEncoding() {
+    return MessageContentEncoding.SEVEN_BIT;
+  }
+
+  @Override
+  public float get8bitCharacterProportion() {
+    return 0;
+  }
+
+  @Override
+  public String getContentAsString() {
+    StringBuilder sb = new StringBuilder();
+
+    Iterator<ByteBuf> iterator = getContentChunkIterator(UnpooledByteBufAllocator.DEFAULT);
+    while (iterator.hasNext()) {
+      ByteBuf chunk = iterator.next();
+      sb.append(chunk.toString(StandardCharsets.US_ASCII));
+      chunk.release();
+    }
+
+    return sb.toString();
+  }
+
+  private class TranscodingIterator implements Iterator<ByteBuf> {
+    private final ByteBufAllocator allocator;
+    private final int chunkSize;
+    private final Iterator<ByteBuf> source;
+    private final SevenBitTranscoder transcoder = new SevenBitTranscoder();
+
+    private ByteBuf sourceChunk;
+    private ByteBuf nextChunk;
+    private boolean isFinished;
+
+    TranscodingIterator(ByteBufAllocator allocator, int chunkSize) {
+      this.allocator = allocator;
+      this.chunkSize = chunkSize;
+      this.source = content.getContentChunkIterator(allocator, chunkSize);
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (nextChunk == null) {
+        nextChunk = readNextChunk();
+      }
+
+      return nextChunk != null;
+    }
+
+    @Override
+    public ByteBuf next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      ByteBuf chunk = nextChunk;
+      nextChunk = null;
+      return chunk;
+    }
+
+    // releases the chunks that have been read but not returned
+    void close() {
+      releaseSourceChunk();
+
+      if (nextChunk != null) {
+        nextChunk.release();
+        nextChunk = null;
+      }
+    }
+
+    private ByteBuf readNextChunk() {
+      while (!isFinished) {
+        if (sourceChunk == null || !sourceChunk.isReadable()) {
+          releaseSourceChunk();
+
+          if (!source.hasNext()) {
+            isFinished = true;
+
+            ByteBuf out = allocator.buffer();
+            transcoder.finish(out);
+            return nonEmptyOrRelease(out);
+          }
+
+          sourceChunk = source.next();
+          continue;
+        }
+
+        // the wrapped content may return one large chunk, which is transcoded in pieces
+        int length = Math.min(sourceChunk.readableBytes(), chunkSize);
+        ByteBuf out = allocator.buffer(length + length / 3 + 64);
+        transcoder.transcode(sourceChunk.readSlice(length), out);
+
+        ByteBuf chunk = nonEmptyOrRelease(out);
+        if (chunk != null) {
+          return chunk;
+        }
+      }
+
+      return null;
+    }
+
+    private void releaseSourceChunk() {
+      if (sourceChunk != null) {
+        sourceChunk.release();
+        sourceChunk = null;
+      }
+    }
+
+    private ByteBuf nonEmptyOrRelease(ByteBuf buffer) {
+      if (buffer.isReadable()) {
+        return buffer;
+      }
+
+      buffer.release();
+      return null;
+    }
+  }
+
+  private class TranscodingChunkedInput implements ChunkedInput<ByteBuf> {
+    private final int chunkSize;
+    private final boolean isDotStuffed;
+    private final byte[] trailingBytes = { CR, LF };
+
+    private TranscodingIterator iterator;
+    private long progress;
+
+    TranscodingChunkedInput(int chunkSize, boolean isDotStuffed) {
+      this.chunkSize = chunkSize;
+      this.isDotStuffed = isDotStuffed;
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+      // the content is only read once the first chunk is requested, and is never empty
+      return iterator != null && !iterator.hasNext();
+    }
+
+    @Override
+    public void close() throws Exception {
+      if (iterator != null) {
+        iterator.close();
+      }
+    }
+
+    @Override
+    @Deprecated
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+      return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+      if (iterator == null) {
+        iterator = new TranscodingIterator(allocator, chunkSize);
+      }
+
+      if (!iterator.hasNext()) {
+        return null;
+      }
+
+      ByteBuf chunk = iterator.next();
+      progress += chunk.readableBytes();
+
+      if (!isDotStuffed) {
+        return chunk;
+      }
+
+      byte[] prevChunkTrailingBytes = { trailingBytes[0], trailingBytes[1] };
+      updateTrailingBytes(chunk);
+
+      boolean appendCRLF = !iterator.hasNext() && !(trailingBytes[0] == CR && trailingBytes[1] == LF);
+
+      return DotStuffing.createDotStuffedBuffer(allocator, chunk, prevChunkTrailingBytes,
+          appendCRLF ? MessageTermination.ADD_CRLF : MessageTermination.DO_NOT_TERMINATE);
+    }
+
+    @Override
+    public long length() {
+      return -1;
+    }
+
+    @Override
+    public long progress() {
+      return progress;
+    }
+
+    private void updateTrailingBytes(ByteBuf chunk) {
+      int length = chunk.readableBytes();
+
+      if (length == 1) {
+        trailingBytes[0] = trailingBytes[1];
+        trailingBytes[1] = chunk.getByte(chunk.readerIndex());
+      } else if (length > 1) {
+        trailingBytes[0] = chunk.getByte(chunk.writerIndex() - 2);
+        trailingBytes[1] = chunk.getByte(chunk.writerIndex() - 1);
+      }
+    }
+  }
+}
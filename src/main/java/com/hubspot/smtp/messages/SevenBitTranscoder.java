@@ -0,0 +1,581 @@
+package com.hubspot.smtp.messages;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Rewrites a MIME message so that it only contains seven-bit characters, reading it a
+ * chunk at a time.
+ *
+ * <p>Multipart and {@code message/rfc822} entities are descended into. The body of each
+ * other part whose transfer encoding is absent, {@code 7bit}, {@code 8bit} or {@code binary}
+ * is held back until up to 8KB of it has been read, and the proportion of eight-bit
+ * characters in that sample decides whether the part is encoded as quoted-printable or
+ * base64. A part that ends within its sample without any eight-bit characters is copied
+ * unchanged. Parts that are already encoded are copied unchanged.
+ *
+ * <p>Headers are copied as they are, apart from {@code Content-Transfer-Encoding}, so
+ * eight-bit characters in headers are not rewritten. An entity whose headers are longer
+ * than 64KB is copied unchanged.
+ *
+ * <p>Memory use is bounded by those limits whatever the size of the message.
+ *
+ * <p>This class is not thread-safe.
+ */
+final class SevenBitTranscoder {
+  private static final byte CR = '\r';
+  private static final byte LF = '\n';
+  private static final byte[] CR_LF = { CR, LF };
+
+  // longer lines are handled in pieces, which can't be boundaries or the end of the headers
+  private static final int MAX_LINE_LENGTH = 1024;
+  private static final int MAX_HEADER_BYTES = 64 * 1024;
+  private static final int SAMPLE_SIZE = 8192;
+
+  // quoted-printable takes three bytes for each eight-bit character, base64 four for every three
+  private static final float BASE64_THRESHOLD = 1F / 6;
+
+  private static final Pattern BOUNDARY_PATTERN = Pattern.compile(";\\s*boundary\\s*=\\s*(?:\"([^\"]*)\"|([^;\\s]+))", Pattern.CASE_INSENSITIVE);
+  private static final String CONTENT_TYPE = "content-type";
+  private static final String CONTENT_TRANSFER_ENCODING = "content-transfer-encoding";
+  private static final String MIME_VERSION = "mime-version";
+
+  private enum State {
+    HEADERS,
+    SAMPLING,
+    BODY
+  }
+
+  private final byte[] line = new byte[MAX_LINE_LENGTH];
+  private int lineLength;
+  private boolean isAtLineStart = true;
+
+  // the delimiters ("--" and the boundary) of the enclosing multiparts, innermost last
+  private final List<byte[]> delimiters = new ArrayList<>();
+
+  private State state = State.HEADERS;
+  private boolean isTopLevel = true;
+  private final ByteArrayOutputStream headers = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream sample = new ByteArrayOutputStream();
+  private String transferEncoding = "";
+  private BodyEncoder encoder = BodyEncoder.PASS_THROUGH;
+
+  // the line break after the last line of a body belongs to the delimiter that follows,
+  // so it isn't encoded until the next line shows it isn't one
+  private final byte[] heldLineBreak = new byte[2];
+  private int heldLineBreakLength;
+
+  /**
+   * Transcodes all of {@code in}, writing the result to {@code out}. Some of the input may be
+   * held back until more has been read.
+   */
+  void transcode(ByteBuf in, ByteBuf out) {
+    while (in.isReadable()) {
+      int endOfLine = in.indexOf(in.readerIndex(), in.writerIndex(), LF);
+      int end = endOfLine < 0 ? in.writerIndex() : endOfLine + 1;
+      int length = Math.min(end - in.readerIndex(), MAX_LINE_LENGTH - lineLength);
+
+      in.readBytes(line, lineLength, length);
+      lineLength += length;
+
+      if (line[lineLength - 1] == LF) {
+        handleLine(true, out);
+      } else if (lineLength == MAX_LINE_LENGTH) {
+        handleLine(false, out);
+      }
+    }
+  }
+
+  /**
+   * Writes anything held back to {@code out} once all the input has been transcoded.
+   */
+  void finish(ByteBuf out) {
+    if (lineLength > 0) {
+      handleLine(false, out);
+    }
+
+    endEntity(out);
+  }
+
+  private void handleLine(boolean isComplete, ByteBuf out) {
+    int contentLength = isComplete ? lineLength - lineBreakLength() : lineLength;
+    int delimiterIndex = isAtLineStart ? findDelimiter(contentLength) : -1;
+
+    if (delimiterIndex >= 0) {
+      onDelimiter(delimiterIndex, out);
+    } else if (state == State.HEADERS) {
+      onHeaderLine(contentLength, out);
+    } else {
+      onBodyLine(contentLength, out);
+    }
+
+    isAtLineStart = isComplete;
+    lineLength = 0;
+  }
+
+  private int lineBreakLength() {
+    return lineLength >= 2 && line[lineLength - 2] == CR ? 2 : 1;
+  }
+
+  private int findDelimiter(int contentLength) {
+    for (int i = delimiters.size() - 1; i >= 0; i--) {
+      if (isDelimiter(delimiters.get(i), contentLength)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // a delimiter may be followed by "--" if it's the last, and then by whitespace
+  private boolean isDelimiter(byte[] delimiter, int contentLength) {
+    if (contentLength < delimiter.length) {
+      return false;
+    }
+
+    for (int i = 0; i < delimiter.length; i++) {
+      if (line[i] != delimiter[i]) {
+        return false;
+      }
+    }
+
+    int i = delimiter.length;
+    if (isCloseDelimiter(delimiter, contentLength)) {
+      i += 2;
+    }
+
+    for (; i < contentLength; i++) {
+      if (line[i] != ' ' && line[i] != '\t') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isCloseDelimiter(byte[] delimiter, int contentLength) {
+    return contentLength >= delimiter.length + 2 && line[delimiter.length] == '-' && line[delimiter.length + 1] == '-';
+  }
+
+  private void onDelimiter(int delimiterIndex, ByteBuf out) {
+    endEntity(out);
+
+    byte[] delimiter = delimiters.get(delimiterIndex);
+    boolean isClose = isCloseDelimiter(delimiter, lineLength);
+
+    // a delimiter of an outer multipart also ends any inner ones that weren't closed
+    while (delimiters.size() > delimiterIndex + 1) {
+      delimiters.remove(delimiters.size() - 1);
+    }
+
+    if (isClose) {
+      // the epilogue is copied until the enclosing multipart's next delimiter
+      delimiters.remove(delimiterIndex);
+      startBody(BodyEncoder.PASS_THROUGH);
+    } else {
+      state = State.HEADERS;
+    }
+
+    out.writeBytes(line, 0, lineLength);
+  }
+
+  private void onHeaderLine(int contentLength, ByteBuf out) {
+    if (headers.size() + lineLength > MAX_HEADER_BYTES) {
+      out.writeBytes(headers.toByteArray());
+      out.writeBytes(line, 0, lineLength);
+      headers.reset();
+      isTopLevel = false;
+      startBody(BodyEncoder.PASS_THROUGH);
+      return;
+    }
+
+    headers.write(line, 0, lineLength);
+
+    if (isAtLineStart && contentLength == 0 && lineLength > 0) {
+      onHeadersComplete(out);
+    }
+  }
+
+  private void onHeadersComplete(ByteBuf out) {
+    String headerText = new String(headers.toByteArray(), StandardCharsets.ISO_8859_1);
+    String contentType = getHeaderValue(headerText, CONTENT_TYPE);
+    String mediaType = contentType == null ? "text/plain" : contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+    String boundary = contentType == null ? null : getBoundary(contentType);
+
+    String encoding = getHeaderValue(headerText, CONTENT_TRANSFER_ENCODING);
+    transferEncoding = encoding == null ? "" : encoding.trim().toLowerCase(Locale.ROOT);
+
+    if (mediaType.startsWith("multipart/") && boundary != null) {
+      // the parts will all be seven-bit, so the multipart is too
+      writeHeaders(out, isEightBit(transferEncoding) ? "7bit" : null);
+      delimiters.add(("--" + boundary).getBytes(StandardCharsets.ISO_8859_1));
+      startBody(BodyEncoder.PASS_THROUGH);
+    } else if (mediaType.equals("message/rfc822")) {
+      writeHeaders(out, isEightBit(transferEncoding) ? "7bit" : null);
+      state = State.HEADERS;
+    } else if (isEightBit(transferEncoding) || transferEncoding.isEmpty() || transferEncoding.equals("7bit")) {
+      state = State.SAMPLING;
+    } else {
+      writeHeaders(out, null);
+      startBody(BodyEncoder.PASS_THROUGH);
+    }
+  }
+
+  private void onBodyLine(int contentLength, ByteBuf out) {
+    if (heldLineBreakLength > 0) {
+      int length = heldLineBreakLength;
+      heldLineBreakLength = 0;
+      writeBody(heldLineBreak, length, out);
+    }
+
+    writeBody(line, contentLength, out);
+
+    heldLineBreakLength = lineLength - contentLength;
+    System.arraycopy(line, contentLength, heldLineBreak, 0, heldLineBreakLength);
+  }
+
+  private void writeBody(byte[] bytes, int length, ByteBuf out) {
+    if (state != State.SAMPLING) {
+      encoder.encode(bytes, 0, length, out);
+      return;
+    }
+
+    sample.write(bytes, 0, length);
+    if (sample.size() >= SAMPLE_SIZE) {
+      encodeSample(false, out);
+    }
+  }
+
+  private void encodeSample(boolean isComplete, ByteBuf out) {
+    byte[] sampledBytes = sample.toByteArray();
+    sample.reset();
+
+    float proportion = sampledBytes.length == 0 ? 0 : MessageContent.of(Unpooled.wrappedBuffer(sampledBytes)).get8bitCharacterProportion();
+
+    if (proportion == 0 && isComplete) {
+      writeHeaders(out, isEightBit(transferEncoding) ? "7bit" : null);
+      startBody(BodyEncoder.PASS_THROUGH);
+    } else if (proportion > BASE64_THRESHOLD) {
+      writeHeaders(out, "base64");
+      startBody(new Base64Encoder());
+    } else {
+      writeHeaders(out, "quoted-printable");
+      startBody(new QuotedPrintableEncoder());
+    }
+
+    encoder.encode(sampledBytes, 0, sampledBytes.length, out);
+  }
+
+  private void endEntity(ByteBuf out) {
+    switch (state) {
+      case HEADERS:
+        // the headers were never finished, so there's nothing to rewrite
+        out.writeBytes(headers.toByteArray());
+        headers.reset();
+        return;
+
+      case SAMPLING:
+        encodeSample(true, out);
+        break;
+
+      default:
+        break;
+    }
+
+    encoder.finish(out);
+    out.writeBytes(heldLineBreak, 0, heldLineBreakLength);
+    heldLineBreakLength = 0;
+  }
+
+  private void startBody(BodyEncoder encoder) {
+    this.encoder = encoder;
+    this.state = State.BODY;
+  }
+
+  // writes the held headers, replacing the transfer encoding if newEncoding isn't null
+  private void writeHeaders(ByteBuf out, String newEncoding) {
+    byte[] headerBytes = headers.toByteArray();
+    headers.reset();
+
+    boolean isTopLevel = this.isTopLevel;
+    this.isTopLevel = false;
+
+    if (newEncoding == null) {
+      out.writeBytes(headerBytes);
+      return;
+    }
+
+    String headerText = new String(headerBytes, StandardCharsets.ISO_8859_1);
+    boolean hasMimeVersion = getHeaderValue(headerText, MIME_VERSION) != null;
+
+    List<String> lines = splitLines(headerText);
+    String blankLine = lines.remove(lines.size() - 1);
+
+    StringBuilder rewritten = new StringBuilder(headerText.length() + 64);
+    boolean isSkipping = false;
+    for (String headerLine : lines) {
+      if (!isContinuation(headerLine)) {
+        isSkipping = isField(headerLine, CONTENT_TRANSFER_ENCODING);
+      }
+
+      if (!isSkipping) {
+        rewritten.append(headerLine);
+      }
+    }
+
+    if (isTopLevel && !hasMimeVersion) {
+      rewritten.append("MIME-Version: 1.0\r\n");
+    }
+
+    rewritten.append("Content-Transfer-Encoding: ").append(newEncoding).append("\r\n").append(blankLine);
+    out.writeBytes(rewritten.toString().getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  private static String getHeaderValue(String headerText, String name) {
+    StringBuilder value = null;
+
+    for (String headerLine : splitLines(headerText)) {
+      if (isContinuation(headerLine)) {
+        if (value != null) {
+          value.append(trimLineBreak(headerLine));
+        }
+      } else if (value != null) {
+        break;
+      } else if (isField(headerLine, name)) {
+        value = new StringBuilder(trimLineBreak(headerLine.substring(name.length() + 1)));
+      }
+    }
+
+    return value == null ? null : value.toString();
+  }
+
+  private static String getBoundary(String contentType) {
+    Matcher matcher = BOUNDARY_PATTERN.matcher(contentType);
+    if (!matcher.find()) {
+      return null;
+    }
+
+    return matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+  }
+
+  private static boolean isField(String headerLine, String name) {
+    return headerLine.length() > name.length() &&
+        headerLine.charAt(name.length()) == ':' &&
+        headerLine.regionMatches(true, 0, name, 0, name.length());
+  }
+
+  private static boolean isContinuation(String headerLine) {
+    return !headerLine.isEmpty() && (headerLine.charAt(0) == ' ' || headerLine.charAt(0) == '\t');
+  }
+
+  private static boolean isEightBit(String transferEncoding) {
+    return transferEncoding.equals("8bit") || transferEncoding.equals("binary");
+  }
+
+  private static String trimLineBreak(String s) {
+    int end = s.length();
+    while (end > 0 && (s.charAt(end - 1) == '\r' || s.charAt(end - 1) == '\n')) {
+      end--;
+    }
+    return s.substring(0, end);
+  }
+
+  // splits text into lines, keeping their line breaks
+  private static List<String> splitLines(String text) {
+    List<String> lines = new ArrayList<>();
+
+    int start = 0;
+    while (start < text.length()) {
+      int end = text.indexOf('\n', start);
+      end = end < 0 ? text.length() : end + 1;
+      lines.add(text.substring(start, end));
+      start = end;
+    }
+
+    return lines;
+  }
+
+  private interface BodyEncoder {
+    BodyEncoder PASS_THROUGH = new BodyEncoder() {
+      @Override
+      public void encode(byte[] bytes, int offset, int length, ByteBuf out) {
+        out.writeBytes(bytes, offset, length);
+      }
+
+      @Override
+      public void finish(ByteBuf out) {
+      }
+    };
+
+    void encode(byte[] bytes, int offset, int length, ByteBuf out);
+
+    // writes anything held back, without a trailing line break
+    void finish(ByteBuf out);
+  }
+
+  private static final class QuotedPrintableEncoder implements BodyEncoder {
+    private static final int MAX_LINE_LENGTH = 76;
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private int column;
+    private boolean isCrPending;
+
+    // whitespace must be encoded at the end of a line, which isn't known until the next byte
+    private int pendingWhitespace = -1;
+
+    @Override
+    public void encode(byte[] bytes, int offset, int length, ByteBuf out) {
+      for (int i = offset; i < offset + length; i++) {
+        int b = bytes[i] & 0xFF;
+
+        if (isCrPending) {
+          isCrPending = false;
+          if (b == LF) {
+            writeLineBreak(out);
+            continue;
+          }
+
+          writePendingWhitespace(out);
+          writeEncoded(CR, out);
+        }
+
+        if (b == CR) {
+          isCrPending = true;
+        } else if (b == LF) {
+          writeLineBreak(out);
+        } else if (b == ' ' || b == '\t') {
+          writePendingWhitespace(out);
+          pendingWhitespace = b;
+        } else {
+          writePendingWhitespace(out);
+
+          if (b >= 33 && b <= 126 && b != '=') {
+            makeRoom(1, out);
+            out.writeByte(b);
+            column++;
+          } else {
+            writeEncoded(b, out);
+          }
+        }
+      }
+    }
+
+    @Override
+    public void finish(ByteBuf out) {
+      if (isCrPending) {
+        isCrPending = false;
+        writePendingWhitespace(out);
+        writeEncoded(CR, out);
+      }
+
+      if (pendingWhitespace >= 0) {
+        writeEncoded(pendingWhitespace, out);
+        pendingWhitespace = -1;
+      }
+    }
+
+    private void writeLineBreak(ByteBuf out) {
+      if (pendingWhitespace >= 0) {
+        writeEncoded(pendingWhitespace, out);
+        pendingWhitespace = -1;
+      }
+
+      out.writeBytes(CR_LF);
+      column = 0;
+    }
+
+    private void writePendingWhitespace(ByteBuf out) {
+      if (pendingWhitespace >= 0) {
+        makeRoom(1, out);
+        out.writeByte(pendingWhitespace);
+        column++;
+        pendingWhitespace = -1;
+      }
+    }
+
+    private void writeEncoded(int b, ByteBuf out) {
+      makeRoom(3, out);
+      out.writeByte('=');
+      out.writeByte(HEX_DIGITS[b >> 4]);
+      out.writeByte(HEX_DIGITS[b & 0xF]);
+      column += 3;
+    }
+
+    // adds a soft line break if there isn't room for length bytes and the '=' that ends the line
+    private void makeRoom(int length, ByteBuf out) {
+      if (column + length > MAX_LINE_LENGTH - 1) {
+        out.writeByte('=');
+        out.writeBytes(CR_LF);
+        column = 0;
+      }
+    }
+  }
+
+  private static final class Base64Encoder implements BodyEncoder {
+    private static final int MAX_LINE_LENGTH = 76;
+    private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+
+    private int column;
+    private int bits;
+    private int byteCount;
+
+    @Override
+    public void encode(byte[] bytes, int offset, int length, ByteBuf out) {
+      for (int i = offset; i < offset + length; i++) {
+        bits = (bits << 8) | (bytes[i] & 0xFF);
+
+        if (++byteCount == 3) {
+          writeChar(bits >> 18, out);
+          writeChar(bits >> 12, out);
+          writeChar(bits >> 6, out);
+          writeChar(bits, out);
+          bits = 0;
+          byteCount = 0;
+        }
+      }
+    }
+
+    @Override
+    public void finish(ByteBuf out) {
+      if (byteCount == 1) {
+        writeChar(bits >> 2, out);
+        writeChar(bits << 4, out);
+        writePadding(out);
+        writePadding(out);
+      } else if (byteCount == 2) {
+        writeChar(bits >> 10, out);
+        writeChar(bits >> 4, out);
+        writeChar(bits << 2, out);
+        writePadding(out);
+      }
+
+      bits = 0;
+      byteCount = 0;
+    }
+
+    private void writeChar(int sixBits, ByteBuf out) {
+      startLineIfFull(out);
+      out.writeByte(ALPHABET[sixBits & 0x3F]);
+      column++;
+    }
+
+    private void writePadding(ByteBuf out) {
+      startLineIfFull(out);
+      out.writeByte('=');
+      column++;
+    }
+
+    private void startLineIfFull(ByteBuf out) {
+      if (column == MAX_LINE_LENGTH) {
+        out.writeBytes(CR_LF);
+        column = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.hubspot.smtp.routing;
+
+import java.time.Duration;
+
+import org.immutables.value.Value.Check;
+import org.immutables.value.Value.Immutable;
+import org.immutables.value.Value.Parameter;
+import org.immutables.value.Value.Style;
+import org.immutables.value.Value.Style.ImplementationVisibility;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A mail exchanger (MX) record for a domain.
+ */
+@Immutable
+@Style(typeImmutable = "*", visibility = ImplementationVisibility.PUBLIC)
+abstract class AbstractMxRecord {
+  /**
+   * The host name of the mail exchanger, without a trailing dot.
+   */
+  @Parameter
+  public abstract String getHost();
+
+  /**
+   * The preference of this mail exchanger; lower values are preferred.
+   */
+  @Parameter
+  public abstract int getPreference();
+
+  /**
+   * The time for which this record may be cached.
+   */
+  @Parameter
+  public abstract Duration getTtl();
+
+  @Check
+  protected void check() {
+    Preconditions.checkState(!getHost().isEmpty(), "host must not be empty");
+    Preconditions.checkState(!getHost().endsWith("."), "host must not end with a dot");
+    Preconditions.checkState(getPreference() >= 0, "preference must not be negative");
+    Preconditions.checkState(!getTtl().isNegative(), "ttl must not be negative");
+  }
+}
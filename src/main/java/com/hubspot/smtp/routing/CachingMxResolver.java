@@ -0,0 +1,58 @@
+package com.hubspot.smtp.routing;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.hubspot.smtp.utils.AsyncTtlCache;
+
+/**
+ * An {@link MxResolver} that caches the records returned by another resolver.
+ *
+ * <p>Records are cached for the smallest TTL among them, bounded by the minimum and maximum
+ * TTLs passed to the constructor. Domains without MX records are cached for the minimum TTL,
+ * while failed lookups are not cached at all. Concurrent lookups for a domain that is not
+ * cached share a single call to the underlying resolver. Expired records are dropped as
+ * the cache is used; see {@link AsyncTtlCache}.
+ *
+ * <p>This class is thread-safe.
+ */
+public class CachingMxResolver implements MxResolver {
+  private static final Duration DEFAULT_MIN_TTL = Duration.ofSeconds(30);
+  private static final Duration DEFAULT_MAX_TTL = Duration.ofHours(1);
+
+  private final long minTtlNanos;
+  private final long maxTtlNanos;
+  private final AsyncTtlCache<String, List<MxRecord>> cache;
+
+  public CachingMxResolver(MxResolver delegate) {
+    this(delegate, DEFAULT_MIN_TTL, DEFAULT_MAX_TTL);
+  }
+
+  public CachingMxResolver(MxResolver delegate, Duration minTtl, Duration maxTtl) {
+    this(delegate, minTtl, maxTtl, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  CachingMxResolver(MxResolver delegate, Duration minTtl, Duration maxTtl, Ticker ticker) {
+    Preconditions.checkArgument(!minTtl.isNegative(), "minTtl must not be negative");
+    Preconditions.checkArgument(minTtl.compareTo(maxTtl) <= 0, "minTtl must not be greater than maxTtl");
+
+    this.minTtlNanos = minTtl.toNanos();
+    this.maxTtlNanos = maxTtl.toNanos();
+    this.cache = new AsyncTtlCache<>(delegate::resolve, this::getTtlNanos, ticker);
+  }
+
+  @Override
+  public CompletableFuture<List<MxRecord>> resolve(String domain) {
+    return cache.get(DomainNames.normalize(domain));
+  }
+
+  private long getTtlNanos(List<MxRecord> records) {
+    long ttlNanos = records.stream().mapToLong(r -> r.getTtl().toNanos()).min().orElse(minTtlNanos);
+    return Math.min(maxTtlNanos, Math.max(minTtlNanos, ttlNanos));
+  }
+}
@@ -0,0 +1,15 @@
+package com.hubspot.smtp.routing;
+
+import java.util.Locale;
+
+final class DomainNames {
+  private DomainNames() {
+    throw new AssertionError("Cannot create static utility class");
+  }
+
+  // domain names are case-insensitive, and may be written with or without the trailing dot of the root
+  static String normalize(String domain) {
+    String lowerCaseDomain = domain.toLowerCase(Locale.ROOT);
+    return lowerCaseDomain.endsWith(".") ? lowerCaseDomain.substring(0, lowerCaseDomain.length() - 1) : lowerCaseDomain;
+  }
+}
@@ -0,0 +1,38 @@
+package com.hubspot.smtp.routing;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * An {@link MxResolver} that returns records added with {@link #setRecords(String, MxRecord...)}
+ * instead of querying DNS. This is useful for testing, and for sending mail for particular
+ * domains to fixed hosts.
+ *
+ * <p>This class is thread-safe.
+ */
+public class InMemoryMxResolver implements MxResolver {
+  private final Map<String, List<MxRecord>> recordsByDomain = new ConcurrentHashMap<>();
+
+  /**
+   * Sets the records that will be returned for {@code domain}, replacing any set before.
+   */
+  public void setRecords(String domain, MxRecord... records) {
+    recordsByDomain.put(DomainNames.normalize(domain), ImmutableList.copyOf(records));
+  }
+
+  /**
+   * Removes the records for {@code domain}, so that it will appear to have no MX records.
+   */
+  public void removeRecords(String domain) {
+    recordsByDomain.remove(DomainNames.normalize(domain));
+  }
+
+  @Override
+  public CompletableFuture<List<MxRecord>> resolve(String domain) {
+    return CompletableFuture.completedFuture(recordsByDomain.getOrDefault(DomainNames.normalize(domain), ImmutableList.of()));
+  }
+}
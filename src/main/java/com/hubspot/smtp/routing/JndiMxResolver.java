@@ -0,0 +1,113 @@
+package com.hubspot.smtp.routing;
+
+import java.time.Duration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * An {@link MxResolver} that queries the system's DNS servers using the JDK's JNDI DNS provider.
+ *
+ * <p>JNDI lookups block, so they are run on the {@link Executor} passed to the constructor.
+ * JNDI does not expose the TTLs of the records it returns, so every record is given the same
+ * TTL, which can be set in the constructor.
+ */
+public class JndiMxResolver implements MxResolver {
+  private static final Duration DEFAULT_TTL = Duration.ofMinutes(5);
+  private static final String DNS_CONTEXT_FACTORY = "com.sun.jndi.dns.DnsContextFactory";
+  private static final String MX_ATTRIBUTE = "MX";
+  private static final String[] MX_ATTRIBUTES = { MX_ATTRIBUTE };
+  private static final Splitter WHITESPACE_SPLITTER = Splitter.on(' ').trimResults().omitEmptyStrings();
+
+  private final Executor executor;
+  private final Duration ttl;
+
+  public JndiMxResolver(Executor executor) {
+    this(executor, DEFAULT_TTL);
+  }
+
+  public JndiMxResolver(Executor executor, Duration ttl) {
+    this.executor = executor;
+    this.ttl = ttl;
+  }
+
+  @Override
+  public CompletableFuture<List<MxRecord>> resolve(String domain) {
+    return CompletableFuture.supplyAsync(() -> lookup(DomainNames.normalize(domain)), executor);
+  }
+
+  private List<MxRecord> lookup(String domain) {
+    Hashtable<String, String> environment = new Hashtable<>();
+    environment.put(Context.INITIAL_CONTEXT_FACTORY, DNS_CONTEXT_FACTORY);
+
+    DirContext context = null;
+    try {
+      context = new InitialDirContext(environment);
+
+      Attribute attribute = context.getAttributes(domain, MX_ATTRIBUTES).get(MX_ATTRIBUTE);
+      if (attribute == null) {
+        return ImmutableList.of();
+      }
+
+      List<MxRecord> records = Lists.newArrayListWithCapacity(attribute.size());
+      NamingEnumeration<?> values = attribute.getAll();
+      while (values.hasMore()) {
+        parseRecord(values.next().toString(), records);
+      }
+
+      return records;
+    } catch (NameNotFoundException e) {
+      return ImmutableList.of();
+    } catch (NamingException e) {
+      throw new CompletionException(e);
+    } finally {
+      closeQuietly(context);
+    }
+  }
+
+  // records look like "10 mx.example.com."
+  private void parseRecord(String value, List<MxRecord> records) {
+    List<String> parts = WHITESPACE_SPLITTER.splitToList(value);
+    if (parts.size() != 2) {
+      return;
+    }
+
+    String host = DomainNames.normalize(parts.get(1));
+    if (host.isEmpty()) {
+      // a "null MX" record (RFC 7505) has no host
+      return;
+    }
+
+    try {
+      records.add(MxRecord.of(host, Integer.parseInt(parts.get(0)), ttl));
+    } catch (NumberFormatException e) {
+      // ignore malformed records
+    }
+  }
+
+  private static void closeQuietly(DirContext context) {
+    if (context == null) {
+      return;
+    }
+
+    try {
+      context.close();
+    } catch (NamingException e) {
+      // ignore
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package com.hubspot.smtp.routing;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Looks up the mail exchangers for a domain.
+ *
+ * <p>Implementations must not block the calling thread, which may be a Netty event loop.
+ */
+public interface MxResolver {
+  /**
+   * Resolves the MX records for {@code domain}.
+   *
+   * @return a future that will contain the domain's MX records in no particular order, which
+   *         will be empty if the domain has none, or an exception if the lookup failed
+   */
+  CompletableFuture<List<MxRecord>> resolve(String domain);
+}
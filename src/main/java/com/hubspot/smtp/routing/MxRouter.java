@@ -0,0 +1,282 @@
+package com.hubspot.smtp.routing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.hubspot.smtp.client.SmtpSession;
+import com.hubspot.smtp.client.SmtpSessionConfig;
+import com.hubspot.smtp.client.SmtpSessionFactory;
+import com.hubspot.smtp.client.SmtpSessionFactoryConfig;
+import com.hubspot.smtp.client.SmtpSessionPool;
+import com.hubspot.smtp.client.SmtpSessionPoolConfig;
+
+/**
+ * Hands out sessions connected to the mail exchangers of recipient domains.
+ *
+ * <p>{@link #acquire(String)} resolves the MX records for a domain and takes a session from a
+ * pool kept for each MX host, trying hosts in order of preference until one of them provides a
+ * session. Hosts with the same preference are tried in a random order to spread the load between
+ * them. If a domain has no MX records, the domain itself is used as its mail exchanger, as
+ * described in RFC 5321 section 5.1.
+ *
+ * <p>Pools are created the first time a host is used, and are shared by every domain that the
+ * host receives mail for. Pools that have had no sessions acquired from them for ten minutes are
+ * closed, along with their sessions, and created again if the host is used later. Use a
+ * {@link CachingMxResolver} to avoid looking up the MX records for each message.
+ *
+ * <p>This class is thread-safe.
+ */
+public class MxRouter implements Closeable {
+  private static final int SMTP_PORT = 25;
+  private static final Duration DEFAULT_POOL_IDLE_TIME = Duration.ofMinutes(10);
+  private static final long SWEEP_INTERVAL_NANOS = Duration.ofMinutes(1).toNanos();
+  private static final Comparator<MxRecord> BY_PREFERENCE = Comparator.comparingInt(MxRecord::getPreference);
+
+  private final MxResolver resolver;
+  private final Function<String, SmtpSessionPool> poolFactory;
+  private final long poolIdleTimeNanos;
+  private final Ticker ticker;
+  private final AtomicLong nextSweepNanos;
+  private final ConcurrentMap<String, PoolEntry> poolsByHost = new ConcurrentHashMap<>();
+  private final Map<SmtpSession, PoolEntry> leasedSessions = new ConcurrentHashMap<>();
+  private final Map<SmtpSessionPool, SmtpSessionFactory> factoriesByPool = new ConcurrentHashMap<>();
+
+  private volatile boolean closed;
+
+  /**
+   * Creates a router that connects to port 25 of each MX host.
+   *
+   * @param sessionConfig the configuration for each session; its remote address is
+   *                      replaced with the address of each MX host
+   */
+  public MxRouter(MxResolver resolver, SmtpSessionFactoryConfig factoryConfig, SmtpSessionConfig sessionConfig, SmtpSessionPoolConfig poolConfig) {
+    this(resolver, factoryConfig, sessionConfig, poolConfig, SMTP_PORT);
+  }
+
+  /**
+   * Creates a router that connects to the specified port of each MX host.
+   *
+   * @param sessionConfig the configuration for each session; its remote address is
+   *                      replaced with the address of each MX host
+   */
+  public MxRouter(MxResolver resolver, SmtpSessionFactoryConfig factoryConfig, SmtpSessionConfig sessionConfig, SmtpSessionPoolConfig poolConfig, int port) {
+    this.resolver = resolver;
+    this.poolFactory = host -> {
+      SmtpSessionFactory factory = new SmtpSessionFactory(factoryConfig,
+          sessionConfig.withRemoteAddress(InetSocketAddress.createUnresolved(host, port)));
+      SmtpSessionPool pool = factory.newPool(poolConfig);
+      factoriesByPool.put(pool, factory);
+      return pool;
+    };
+    this.poolIdleTimeNanos = DEFAULT_POOL_IDLE_TIME.toNanos();
+    this.ticker = Ticker.systemTicker();
+    this.nextSweepNanos = new AtomicLong(ticker.read() + SWEEP_INTERVAL_NANOS);
+  }
+
+  @VisibleForTesting
+  MxRouter(MxResolver resolver, Function<String, SmtpSessionPool> poolFactory) {
+    this(resolver, poolFactory, DEFAULT_POOL_IDLE_TIME, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  MxRouter(MxResolver resolver, Function<String, SmtpSessionPool> poolFactory, Duration poolIdleTime, Ticker ticker) {
+    this.resolver = resolver;
+    this.poolFactory = poolFactory;
+    this.poolIdleTimeNanos = poolIdleTime.toNanos();
+    this.ticker = ticker;
+    this.nextSweepNanos = new AtomicLong(ticker.read() + SWEEP_INTERVAL_NANOS);
+  }
+
+  /**
+   * Gets a session connected to a mail exchanger for {@code domain}.
+   *
+   * <p>The session must be handed back with {@link #release(SmtpSession)} once the caller
+   * has finished with it.
+   *
+   * @return a future that will complete with a ready-to-use session, or exceptionally
+   *         if the MX lookup failed or no mail exchanger could provide a session, in which
+   *         case it will contain the failure from the last mail exchanger tried
+   */
+  public CompletableFuture<SmtpSession> acquire(String domain) {
+    Preconditions.checkState(!closed, "this router has been closed");
+
+    String normalizedDomain = DomainNames.normalize(domain);
+    evictIdlePoolsIfDue();
+
+    return resolver.resolve(normalizedDomain)
+        .thenCompose(records -> acquire(getHostsInOrder(normalizedDomain, records).iterator()));
+  }
+
+  /**
+   * Hands back a session acquired with {@link #acquire(String)} to the pool it came from.
+   */
+  public void release(SmtpSession session) {
+    PoolEntry entry = leasedSessions.remove(session);
+    Preconditions.checkArgument(entry != null, "session was not acquired from this router");
+
+    entry.pool.release(session);
+    entry.returnLease(ticker.read());
+  }
+
+  /**
+   * Gets the MX hosts that sessions have been connected to.
+   */
+  public List<String> getHosts() {
+    return Lists.newArrayList(poolsByHost.keySet());
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      closeAsync().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Closes every pool and the sessions they hold.
+   *
+   * @return a future that will be completed when all sessions have been closed
+   */
+  public CompletableFuture<Void> closeAsync() {
+    closed = true;
+
+    CompletableFuture<?>[] poolFutures = poolsByHost.values().stream()
+        .map(entry -> closePool(entry.pool))
+        .toArray(CompletableFuture[]::new);
+
+    return CompletableFuture.allOf(poolFutures);
+  }
+
+  private CompletableFuture<SmtpSession> acquire(Iterator<String> hosts) {
+    PoolEntry entry = leasePool(hosts.next());
+
+    CompletableFuture<SmtpSession> acquireFuture;
+    try {
+      acquireFuture = entry.pool.acquire();
+    } catch (RuntimeException e) {
+      acquireFuture = new CompletableFuture<>();
+      acquireFuture.completeExceptionally(e);
+    }
+
+    return acquireFuture.handle((session, throwable) -> {
+      if (throwable == null) {
+        leasedSessions.put(session, entry);
+        return CompletableFuture.completedFuture(session);
+      }
+
+      entry.returnLease(ticker.read());
+
+      if (hosts.hasNext() && !closed) {
+        return acquire(hosts);
+      } else {
+        CompletableFuture<SmtpSession> failedFuture = new CompletableFuture<>();
+        failedFuture.completeExceptionally(throwable);
+        return failedFuture;
+      }
+    }).thenCompose(Function.identity());
+  }
+
+  // the lease keeps the pool from being evicted until it is returned
+  private PoolEntry leasePool(String host) {
+    Preconditions.checkState(!closed, "this router has been closed");
+
+    return poolsByHost.compute(host, (h, entry) -> {
+      PoolEntry leasedEntry = entry == null ? new PoolEntry(poolFactory.apply(h), ticker.read()) : entry;
+      leasedEntry.leases.incrementAndGet();
+      return leasedEntry;
+    });
+  }
+
+  private void evictIdlePoolsIfDue() {
+    long nowNanos = ticker.read();
+    long sweepAtNanos = nextSweepNanos.get();
+
+    // only one of the callers that find a sweep is due performs it
+    if (nowNanos - sweepAtNanos < 0 || !nextSweepNanos.compareAndSet(sweepAtNanos, nowNanos + SWEEP_INTERVAL_NANOS)) {
+      return;
+    }
+
+    List<SmtpSessionPool> idlePools = Lists.newArrayList();
+    for (String host : poolsByHost.keySet()) {
+      poolsByHost.computeIfPresent(host, (h, entry) -> {
+        if (entry.isIdleSince(nowNanos - poolIdleTimeNanos)) {
+          idlePools.add(entry.pool);
+          return null;
+        }
+
+        return entry;
+      });
+    }
+
+    idlePools.forEach(this::closePool);
+  }
+
+  private CompletableFuture<Void> closePool(SmtpSessionPool pool) {
+    return pool.closeAsync().thenCompose(v -> {
+      SmtpSessionFactory factory = factoriesByPool.remove(pool);
+      return factory == null ? CompletableFuture.completedFuture(null) : factory.closeAsync();
+    });
+  }
+
+  @VisibleForTesting
+  static List<String> getHostsInOrder(String domain, List<MxRecord> records) {
+    if (records.isEmpty()) {
+      return Collections.singletonList(domain);
+    }
+
+    // shuffle before the stable sort so hosts with equal preference end up in a random order
+    List<MxRecord> shuffledRecords = Lists.newArrayList(records);
+    Collections.shuffle(shuffledRecords, ThreadLocalRandom.current());
+
+    return shuffledRecords.stream()
+        .sorted(BY_PREFERENCE)
+        .map(r -> DomainNames.normalize(r.getHost()))
+        .distinct()
+        .collect(Collectors.toList());
+  }
+
+  private static class PoolEntry {
+    private final SmtpSessionPool pool;
+    private final AtomicInteger leases = new AtomicInteger();
+
+    private volatile long lastUsedNanos;
+
+    PoolEntry(SmtpSessionPool pool, long nowNanos) {
+      this.pool = pool;
+      this.lastUsedNanos = nowNanos;
+    }
+
+    void returnLease(long nowNanos) {
+      lastUsedNanos = nowNanos;
+      leases.decrementAndGet();
+    }
+
+    boolean isIdleSince(long idleSinceNanos) {
+      return leases.get() == 0 && lastUsedNanos - idleSinceNanos <= 0;
+    }
+  }
+}
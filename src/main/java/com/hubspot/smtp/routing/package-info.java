@@ -0,0 +1,10 @@
+/**
+ * This package contains classes to deliver email directly to the mail exchangers (MX hosts) of
+ * recipient domains.
+ *
+ * <p>An {@link com.hubspot.smtp.routing.MxRouter} looks up the MX records for a domain with an
+ * {@link com.hubspot.smtp.routing.MxResolver}, and hands out sessions from a
+ * {@link com.hubspot.smtp.client.SmtpSessionPool} kept for each MX host. Wrap the resolver in a
+ * {@link com.hubspot.smtp.routing.CachingMxResolver} to avoid a DNS lookup for every message.
+ */
+package com.hubspot.smtp.routing;
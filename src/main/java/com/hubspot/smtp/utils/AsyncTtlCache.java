@@ -0,0 +1,125 @@
+package com.hubspot.smtp.utils;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Caches values that are loaded asynchronously, each for a TTL chosen when it is loaded.
+ *
+ * <p>Concurrent requests for a key that is not cached share a single call to the loader.
+ * Failed loads are not cached. Expired entries are removed from time to time as the cache
+ * is used, so keys that are no longer requested don't hold on to memory.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class AsyncTtlCache<K, V> {
+  private static final long SWEEP_INTERVAL_NANOS = Duration.ofMinutes(1).toNanos();
+
+  private final Function<K, CompletableFuture<V>> loader;
+  private final ToLongFunction<V> ttlNanos;
+  private final Ticker ticker;
+  private final ConcurrentMap<K, CacheEntry<V>> cache = new ConcurrentHashMap<>();
+  private final AtomicLong nextSweepNanos;
+
+  /**
+   * Creates a cache that loads values with {@code loader} and keeps each of them for
+   * the number of nanoseconds returned by {@code ttlNanos}.
+   */
+  public AsyncTtlCache(Function<K, CompletableFuture<V>> loader, ToLongFunction<V> ttlNanos, Ticker ticker) {
+    this.loader = loader;
+    this.ttlNanos = ttlNanos;
+    this.ticker = ticker;
+    this.nextSweepNanos = new AtomicLong(ticker.read() + SWEEP_INTERVAL_NANOS);
+  }
+
+  /**
+   * Gets the value for {@code key}, loading it if it isn't cached or has expired.
+   *
+   * @return a future that will complete with the value, or exceptionally if it could not
+   *         be loaded. Each caller receives its own future, so completing or cancelling it
+   *         doesn't affect other callers.
+   */
+  public CompletableFuture<V> get(K key) {
+    long nowNanos = ticker.read();
+    sweepIfDue(nowNanos);
+
+    while (true) {
+      CacheEntry<V> entry = cache.get(key);
+      if (entry != null && !entry.isExpired(nowNanos)) {
+        return entry.value.thenApply(Function.identity());
+      }
+
+      CacheEntry<V> newEntry = new CacheEntry<>();
+      boolean added = entry == null ? cache.putIfAbsent(key, newEntry) == null : cache.replace(key, entry, newEntry);
+
+      if (added) {
+        load(key, newEntry);
+        return newEntry.value.thenApply(Function.identity());
+      }
+
+      // another thread started a load first, so use its result
+    }
+  }
+
+  /**
+   * Gets the number of entries in the cache, including those that have expired but
+   * have not been removed yet.
+   */
+  public int size() {
+    return cache.size();
+  }
+
+  private void load(K key, CacheEntry<V> entry) {
+    CompletableFuture<V> loadFuture;
+    try {
+      loadFuture = loader.apply(key);
+    } catch (RuntimeException e) {
+      loadFuture = new CompletableFuture<>();
+      loadFuture.completeExceptionally(e);
+    }
+
+    loadFuture.whenComplete((value, throwable) -> {
+      if (throwable != null) {
+        cache.remove(key, entry);
+        entry.value.completeExceptionally(unwrap(throwable));
+      } else {
+        entry.expiresAtNanos = ticker.read() + ttlNanos.applyAsLong(value);
+        entry.isResolved = true;
+        entry.value.complete(value);
+      }
+    });
+  }
+
+  private void sweepIfDue(long nowNanos) {
+    long sweepAtNanos = nextSweepNanos.get();
+
+    // only one of the callers that find a sweep is due performs it
+    if (nowNanos - sweepAtNanos >= 0 && nextSweepNanos.compareAndSet(sweepAtNanos, nowNanos + SWEEP_INTERVAL_NANOS)) {
+      cache.values().removeIf(entry -> entry.isExpired(nowNanos));
+    }
+  }
+
+  private static Throwable unwrap(Throwable throwable) {
+    return throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+  }
+
+  private static class CacheEntry<V> {
+    private final CompletableFuture<V> value = new CompletableFuture<>();
+
+    private volatile long expiresAtNanos;
+    private volatile boolean isResolved;
+
+    boolean isExpired(long nowNanos) {
+      // entries that are still being loaded never expire, so callers share the load
+      return isResolved && nowNanos - expiresAtNanos >= 0;
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package com.hubspot.smtp;
 
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.hubspot.smtp.client.Extension;
 import com.hubspot.smtp.client.SmtpSessionConfig;
 import com.hubspot.smtp.client.SmtpSessionFactory;
@@ -21,7 +22,6 @@ import org.apache.james.protocols.smtp.hook.MessageHook;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
-import sun.misc.IOUtils;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
@@ -151,7 +151,9 @@ public class AsyncClientTest {
             }
         };
 
-        SMTPProtocolHandlerChain chain = new SMTPProtocolHandlerChain(new CollectEmailsHook(), new ChunkingExtension());
+        // pipelining doesn't work with our James implementation of chunking, and the client
+        // can't be configured to disable it, so the server doesn't advertise it
+        SMTPProtocolHandlerChain chain = new SMTPProtocolHandlerChain(new CollectEmailsHook());
         SMTPProtocol protocol = new SMTPProtocol(chain, config, log);
         Encryption encryption = Encryption.createStartTls(FakeTlsContext.createContext());
 
@@ -187,6 +189,6 @@ public class AsyncClientTest {
         }
         countDownLatch.await(10, TimeUnit.SECONDS);
         assertThat(receivedMails.size()).isEqualTo(10);
-        assertThat(new String(IOUtils.readFully(receivedMails.get(0).getMessageInputStream(), -1, true)).contains("Hello world")).isTrue();
+        assertThat(new String(ByteStreams.toByteArray(receivedMails.get(0).getMessageInputStream())).contains("Hello world")).isTrue();
     }
 }
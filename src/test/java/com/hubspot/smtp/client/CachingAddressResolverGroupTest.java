@@ -0,0 +1,138 @@
+package com.hubspot.smtp.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+
+import io.netty.resolver.AddressResolver;
+
+public class CachingAddressResolverGroupTest {
+  private static final Duration TTL = Duration.ofSeconds(30);
+  private static final String HOST = "smtp.example.com";
+
+  private List<String> lookups;
+  private List<Runnable> pendingLookups;
+  private long nanos;
+  private boolean failLookups;
+  private CachingAddressResolverGroup group;
+
+  @Before
+  public void setup() {
+    lookups = Lists.newArrayList();
+    pendingLookups = Lists.newArrayList();
+
+    Executor executor = pendingLookups::add;
+    Ticker ticker = new Ticker() {
+      @Override
+      public long read() {
+        return nanos;
+      }
+    };
+
+    group = new CachingAddressResolverGroup(executor, TTL, ticker, this::lookup);
+  }
+
+  @Test
+  public void itLooksUpHostsOnTheExecutor() throws Exception {
+    CompletableFuture<List<InetAddress>> f = group.getAddresses(HOST);
+
+    assertThat(f.isDone()).isFalse();
+    assertThat(lookups).isEmpty();
+
+    runPendingLookups();
+
+    assertThat(f.get()).extracting(InetAddress::getHostAddress).containsExactly("192.0.2.1");
+  }
+
+  @Test
+  public void itCachesAddressesForTheTtl() throws Exception {
+    group.getAddresses(HOST);
+    runPendingLookups();
+
+    nanos += TTL.minusNanos(1).toNanos();
+    assertThat(group.getAddresses(HOST).isDone()).isTrue();
+    assertThat(group.getAddresses(HOST.toUpperCase()).isDone()).isTrue();
+
+    nanos += 1;
+    assertThat(group.getAddresses(HOST).isDone()).isFalse();
+    runPendingLookups();
+
+    assertThat(lookups).containsExactly(HOST, HOST);
+  }
+
+  @Test
+  public void itSharesLookupsInProgress() {
+    CompletableFuture<List<InetAddress>> f1 = group.getAddresses(HOST);
+    CompletableFuture<List<InetAddress>> f2 = group.getAddresses(HOST);
+    runPendingLookups();
+
+    assertThat(lookups).containsExactly(HOST);
+    assertThat(f1.join()).isEqualTo(f2.join());
+  }
+
+  @Test
+  public void itDoesNotCacheFailures() {
+    failLookups = true;
+    CompletableFuture<List<InetAddress>> f = group.getAddresses(HOST);
+    runPendingLookups();
+
+    assertThatThrownBy(f::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(UnknownHostException.class);
+
+    failLookups = false;
+    group.getAddresses(HOST);
+    runPendingLookups();
+
+    assertThat(lookups).containsExactly(HOST, HOST);
+  }
+
+  @Test
+  public void itDoesNotLookUpAddressLiterals() throws Exception {
+    assertThat(group.getAddresses("127.0.0.1").get()).extracting(InetAddress::getHostAddress).containsExactly("127.0.0.1");
+    assertThat(group.getAddresses("::1").get()).hasSize(1);
+
+    assertThat(lookups).isEmpty();
+  }
+
+  @Test
+  public void itResolvesUnresolvedSocketAddresses() throws Exception {
+    AddressResolver<InetSocketAddress> resolver = group.getResolver(SmtpSessionFactoryConfig.nonProductionConfig().getEventLoopGroup().next());
+
+    io.netty.util.concurrent.Future<InetSocketAddress> f = resolver.resolve(InetSocketAddress.createUnresolved(HOST, 25));
+    runPendingLookups();
+
+    InetSocketAddress address = f.get();
+    assertThat(address.isUnresolved()).isFalse();
+    assertThat(address.getAddress().getHostAddress()).isEqualTo("192.0.2.1");
+    assertThat(address.getPort()).isEqualTo(25);
+  }
+
+  private InetAddress[] lookup(String host) throws UnknownHostException {
+    lookups.add(host);
+
+    if (failLookups) {
+      throw new UnknownHostException(host);
+    }
+
+    return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { (byte) 192, 0, 2, 1 }) };
+  }
+
+  private void runPendingLookups() {
+    List<Runnable> runnables = Lists.newArrayList(pendingLookups);
+    pendingLookups.clear();
+    runnables.forEach(Runnable::run);
+  }
+}
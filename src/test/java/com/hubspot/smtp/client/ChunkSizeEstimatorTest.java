@@ -0,0 +1,72 @@
+package com.hubspot.smtp.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ChunkSizeEstimatorTest {
+  private static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+  private static final long ROUND_TRIP_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+  private final ChunkSizeEstimator estimator = new ChunkSizeEstimator(MAX_CHUNK_SIZE);
+
+  @Test
+  public void itUsesTheInitialSizeUntilTheLinkHasBeenMeasured() {
+    assertThat(estimator.getChunkSize(Long.MAX_VALUE)).isEqualTo(ChunkSizeEstimator.INITIAL_CHUNK_SIZE);
+
+    estimator.addRoundTrip(ROUND_TRIP_NANOS);
+
+    assertThat(estimator.getChunkSize(Long.MAX_VALUE)).isEqualTo(ChunkSizeEstimator.INITIAL_CHUNK_SIZE);
+  }
+
+  @Test
+  public void itSizesChunksToTheBandwidthDelayProduct() {
+    estimator.addRoundTrip(ROUND_TRIP_NANOS);
+
+    // 1MB takes 100ms to transfer after the round trip, i.e. 10MB/s
+    estimator.addTransfer(1024 * 1024, ROUND_TRIP_NANOS + TimeUnit.MILLISECONDS.toNanos(100));
+
+    assertThat(estimator.getChunkSize(Long.MAX_VALUE)).isCloseTo(512 * 1024, within(1));
+  }
+
+  @Test
+  public void itMeasuresPipelinedChunksFromThePreviousResponse() {
+    estimator.addRoundTrip(ROUND_TRIP_NANOS);
+
+    // a window of 1MB chunks, each acknowledged 100ms after the one before, i.e. 10MB/s,
+    // however long each chunk waited behind the others after it was written
+    for (int i = 0; i < 8; i++) {
+      estimator.addPipelinedTransfer(1024 * 1024, TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    assertThat(estimator.getChunkSize(Long.MAX_VALUE)).isCloseTo(512 * 1024, within(1));
+  }
+
+  @Test
+  public void itGrowsChunksThatAreSmallForTheLink() {
+    estimator.addRoundTrip(ROUND_TRIP_NANOS);
+
+    // the chunk arrived in a round trip, so the link's bandwidth is unknown
+    estimator.addTransfer(64 * 1024, ROUND_TRIP_NANOS);
+
+    assertThat(estimator.getChunkSize(Long.MAX_VALUE)).isCloseTo(128 * 1024, within(1));
+  }
+
+  @Test
+  public void itClampsTheChunkSize() {
+    estimator.addRoundTrip(TimeUnit.SECONDS.toNanos(1));
+    estimator.addTransfer(100 * 1024 * 1024, TimeUnit.SECONDS.toNanos(2));
+
+    assertThat(estimator.getChunkSize(Long.MAX_VALUE)).isEqualTo(MAX_CHUNK_SIZE);
+    assertThat(estimator.getChunkSize(10_000)).isEqualTo(10_000);
+
+    ChunkSizeEstimator slowEstimator = new ChunkSizeEstimator(MAX_CHUNK_SIZE);
+    slowEstimator.addRoundTrip(ROUND_TRIP_NANOS);
+    slowEstimator.addTransfer(10, TimeUnit.SECONDS.toNanos(1));
+
+    assertThat(slowEstimator.getChunkSize(Long.MAX_VALUE)).isEqualTo(ChunkSizeEstimator.MIN_CHUNK_SIZE);
+  }
+}
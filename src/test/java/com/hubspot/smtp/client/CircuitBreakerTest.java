@@ -0,0 +1,95 @@
+package com.hubspot.smtp.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+public class CircuitBreakerTest {
+  private static final Duration OPEN_DURATION = Duration.ofSeconds(30);
+
+  private long nanos;
+  private CircuitBreaker circuitBreaker;
+
+  @Before
+  public void setup() {
+    Ticker ticker = new Ticker() {
+      @Override
+      public long read() {
+        return nanos;
+      }
+    };
+
+    CircuitBreakerConfig config = CircuitBreakerConfig.builder().failureThreshold(3).openDuration(OPEN_DURATION).build();
+    circuitBreaker = new CircuitBreaker(config, ticker);
+  }
+
+  @Test
+  public void itOpensAfterConsecutiveFailures() {
+    circuitBreaker.recordFailure();
+    circuitBreaker.recordFailure();
+    assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+
+    circuitBreaker.recordFailure();
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(circuitBreaker.tryAcquirePermission()).isFalse();
+  }
+
+  @Test
+  public void itResetsTheFailureCountAfterASuccess() {
+    circuitBreaker.recordFailure();
+    circuitBreaker.recordFailure();
+    circuitBreaker.recordSuccess();
+    circuitBreaker.recordFailure();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void itAllowsASingleProbeOnceTheOpenDurationHasPassed() {
+    open();
+
+    nanos += OPEN_DURATION.toNanos();
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+    assertThat(circuitBreaker.tryAcquirePermission()).isFalse();
+  }
+
+  @Test
+  public void itClosesIfTheProbeSucceeds() {
+    open();
+    nanos += OPEN_DURATION.toNanos();
+    circuitBreaker.tryAcquirePermission();
+
+    circuitBreaker.recordSuccess();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+    assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+  }
+
+  @Test
+  public void itReopensIfTheProbeFails() {
+    open();
+    nanos += OPEN_DURATION.toNanos();
+    circuitBreaker.tryAcquirePermission();
+
+    circuitBreaker.recordFailure();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(circuitBreaker.tryAcquirePermission()).isFalse();
+
+    nanos += OPEN_DURATION.toNanos();
+    assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+  }
+
+  private void open() {
+    for (int i = 0; i < 3; i++) {
+      circuitBreaker.recordFailure();
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.hubspot.smtp.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import com.hubspot.smtp.client.EnhancedStatusCode.Classification;
+
+import io.netty.handler.codec.smtp.DefaultSmtpResponse;
+import io.netty.util.AsciiString;
+
+public class EnhancedStatusCodeTest {
+  @Test
+  public void itParsesCodesAtTheStartOfText() {
+    EnhancedStatusCode code = EnhancedStatusCode.parse("5.1.1 No such user").get();
+
+    assertThat(code.getStatusClass()).isEqualTo(5);
+    assertThat(code.getSubject()).isEqualTo(1);
+    assertThat(code.getDetail()).isEqualTo(1);
+    assertThat(code.isPermanentFailure()).isTrue();
+    assertThat(code.toString()).isEqualTo("5.1.1");
+
+    assertThat(EnhancedStatusCode.parse(new AsciiString("4.123.456"))).contains(EnhancedStatusCode.of(4, 123, 456));
+  }
+
+  @Test
+  public void itDoesNotParseInvalidCodes() {
+    assertThat(EnhancedStatusCode.parse("Ok")).isEmpty();
+    assertThat(EnhancedStatusCode.parse("3.1.1 wrong class")).isEmpty();
+    assertThat(EnhancedStatusCode.parse("5.1234.1 subject too long")).isEmpty();
+    assertThat(EnhancedStatusCode.parse("5.1.1234 detail too long")).isEmpty();
+    assertThat(EnhancedStatusCode.parse("5..1 missing subject")).isEmpty();
+    assertThat(EnhancedStatusCode.parse("5.1.1x")).isEmpty();
+  }
+
+  @Test
+  public void itClassifiesCodes() {
+    assertThat(classify("5.1.1")).isEqualTo(Classification.BAD_MAILBOX);
+    assertThat(classify("5.2.1")).isEqualTo(Classification.BAD_MAILBOX);
+    assertThat(classify("5.2.2")).isEqualTo(Classification.MAILBOX_FULL);
+    assertThat(classify("4.2.2")).isEqualTo(Classification.MAILBOX_FULL);
+    assertThat(classify("5.7.1")).isEqualTo(Classification.POLICY);
+    assertThat(classify("4.2.1")).isEqualTo(Classification.RATE_LIMIT);
+    assertThat(classify("4.4.5")).isEqualTo(Classification.RATE_LIMIT);
+    assertThat(classify("2.1.5")).isEqualTo(Classification.OTHER);
+  }
+
+  @Test
+  public void itGetsCodesFromResponses() {
+    EnhancedStatusCode code = EnhancedStatusCode.of(5, 1, 1);
+
+    assertThat(EnhancedStatusCode.fromResponse(new EnhancedSmtpResponse(550, code, "5.1.1 No such user"))).contains(code);
+    assertThat(EnhancedStatusCode.fromResponse(new DefaultSmtpResponse(550, "5.1.1 No such user"))).isEmpty();
+  }
+
+  private static Classification classify(String code) {
+    return EnhancedStatusCode.parse(code).get().getClassification();
+  }
+}
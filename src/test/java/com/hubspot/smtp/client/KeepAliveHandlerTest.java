@@ -37,7 +37,7 @@ public class KeepAliveHandlerTest {
     handler = new TestHandler(responseHandler, CONNECTION_ID, Duration.ofSeconds(30));
 
     when(context.channel()).thenReturn(channel);
-    when(responseHandler.getPendingResponseDebugString("")).thenReturn(Optional.empty());
+    when(responseHandler.getPendingResponseDebugString(channel)).thenReturn(Optional.empty());
   }
 
   @Test
@@ -57,7 +57,7 @@ public class KeepAliveHandlerTest {
 
   @Test
   public void itDoesNotSendANoopIfACommandResponseIsPending() {
-    when(responseHandler.getPendingResponseDebugString("")).thenReturn(Optional.of("test"));
+    when(responseHandler.getPendingResponseDebugString(channel)).thenReturn(Optional.of("test"));
 
     handler.triggerIdle();
 
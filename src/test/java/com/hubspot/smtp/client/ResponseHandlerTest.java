@@ -3,11 +3,14 @@ package com.hubspot.smtp.client;
 import com.google.common.collect.Lists;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
 import io.netty.handler.codec.smtp.DefaultSmtpResponse;
 import io.netty.handler.codec.smtp.SmtpResponse;
 import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
 import io.netty.util.DefaultAttributeMap;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -20,6 +23,7 @@ import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -36,21 +40,29 @@ public class ResponseHandlerTest {
 
   private ResponseHandler responseHandler;
   private ChannelHandlerContext context;
+  private EventLoop eventLoop;
 
   @Before
   public void setup() {
     responseHandler = new ResponseHandler(Optional.empty(), Optional.empty());
     context = mock(ChannelHandlerContext.class);
+    eventLoop = new DefaultEventLoop();
     Channel channel = mock(Channel.class);
-    Attribute attribute = mock(Attribute.class);
-    when(attribute.get()).thenReturn("123");
-    when(channel.attr(CHANNEL_KEY)).thenReturn(attribute);
+    DefaultAttributeMap attributes = new DefaultAttributeMap();
+    attributes.attr(CHANNEL_KEY).set(CONNECTION_ID);
+    when(channel.attr(any(AttributeKey.class))).thenAnswer(a -> attributes.attr(a.getArgumentAt(0, AttributeKey.class)));
+    when(channel.eventLoop()).thenReturn(eventLoop);
     when(context.channel()).thenReturn(channel);
   }
 
+  @After
+  public void after() {
+    eventLoop.shutdownGracefully();
+  }
+
   @Test
   public void itCompletesExceptionallyIfAnExceptionIsCaught() throws Exception {
-    CompletableFuture<List<SmtpResponse>> f = responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(), 1, DEBUG_STRING);
+    CompletableFuture<List<SmtpResponse>> f = responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
     Exception testException = new Exception("test");
 
     responseHandler.exceptionCaught(context, testException);
@@ -65,7 +77,7 @@ public class ResponseHandlerTest {
 
   @Test
   public void itCompletesWithAResponseWhenHandled() throws Exception {
-    CompletableFuture<List<SmtpResponse>> f = responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, DEBUG_STRING);
+    CompletableFuture<List<SmtpResponse>> f = responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
 
     responseHandler.channelRead(context, SMTP_RESPONSE);
 
@@ -75,7 +87,7 @@ public class ResponseHandlerTest {
 
   @Test
   public void itDoesNotCompleteWhenSomeOtherObjectIsRead() throws Exception {
-    CompletableFuture<List<SmtpResponse>> f = responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, DEBUG_STRING);
+    CompletableFuture<List<SmtpResponse>> f = responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
 
     responseHandler.channelRead(context, "unexpected");
 
@@ -83,28 +95,39 @@ public class ResponseHandlerTest {
   }
 
   @Test
-  @Ignore
-  public void itOnlyCreatesOneResponseFutureAtATime() {
-    assertThat(responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, () -> "old")).isNotNull();
+  public void itCompletesQueuedResponseFuturesInOrder() throws Exception {
+    CompletableFuture<List<SmtpResponse>> f1 = responseHandler.createResponseFuture(context.channel(), 1, () -> "first");
+    CompletableFuture<List<SmtpResponse>> f2 = responseHandler.createResponseFuture(context.channel(), 2, () -> "second");
+    SmtpResponse response1 = new DefaultSmtpResponse(250, "1");
+    SmtpResponse response2 = new DefaultSmtpResponse(250, "2");
+    SmtpResponse response3 = new DefaultSmtpResponse(250, "3");
+
+    responseHandler.channelRead(context, response1);
+    assertThat(f1.get()).containsExactly(response1);
+    assertThat(f2.isDone()).isFalse();
+    assertThat(responseHandler.getPendingResponseDebugString(context.channel())).contains("second");
 
-    assertThatThrownBy(() -> responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, () -> "new"))
-        .isInstanceOf(IllegalStateException.class)
-        .hasMessage(CONNECTION_ID_PREFIX + "Cannot wait for a response to [new] because we're still waiting for a response to [old]");
+    responseHandler.channelRead(context, response2);
+    responseHandler.channelRead(context, response3);
+    assertThat(f2.get()).containsExactly(response2, response3);
+    assertThat(responseHandler.getPendingResponseDebugString(context.channel())).isEmpty();
   }
 
   @Test
-  @Ignore
-  public void itOnlyCreatesOneResponseFutureAtATimeForMultipleResponses() {
-    assertThat(responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),2, () -> "old")).isNotNull();
+  public void itFailsAllQueuedResponseFuturesIfAnExceptionIsCaught() throws Exception {
+    CompletableFuture<List<SmtpResponse>> f1 = responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
+    CompletableFuture<List<SmtpResponse>> f2 = responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
+
+    responseHandler.exceptionCaught(context, new Exception("test"));
 
-    assertThatThrownBy(() -> responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, () -> "new"))
-        .isInstanceOf(IllegalStateException.class)
-        .hasMessage(CONNECTION_ID_PREFIX + "Cannot wait for a response to [new] because we're still waiting for a response to [old]");
+    assertThat(f1.isCompletedExceptionally()).isTrue();
+    assertThat(f2.isCompletedExceptionally()).isTrue();
+    assertThat(responseHandler.getPendingResponseDebugString(context.channel())).isEmpty();
   }
 
   @Test
   public void itCanCreateAFutureThatWaitsForMultipleReponses() throws Exception {
-    CompletableFuture<List<SmtpResponse>> f = responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),3, DEBUG_STRING);
+    CompletableFuture<List<SmtpResponse>> f = responseHandler.createResponseFuture(context.channel(), 3, DEBUG_STRING);
     SmtpResponse response1 = new DefaultSmtpResponse(250, "1");
     SmtpResponse response2 = new DefaultSmtpResponse(250, "2");
     SmtpResponse response3 = new DefaultSmtpResponse(250, "3");
@@ -126,9 +149,9 @@ public class ResponseHandlerTest {
 
   @Test
   public void itCanCreateAFutureInTheCallbackForAPreviousFuture() throws Exception {
-    CompletableFuture<List<SmtpResponse>> future = responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, DEBUG_STRING);
+    CompletableFuture<List<SmtpResponse>> future = responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
 
-    CompletableFuture<Void> assertion = future.thenRun(() -> assertThat(responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, DEBUG_STRING)).isNotNull());
+    CompletableFuture<Void> assertion = future.thenRun(() -> assertThat(responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING)).isNotNull());
 
     responseHandler.channelRead(context, SMTP_RESPONSE);
 
@@ -137,7 +160,7 @@ public class ResponseHandlerTest {
 
   @Test
   public void itCanFailMultipleResponseFuturesAtAnyTime() throws Exception {
-    CompletableFuture<List<SmtpResponse>> f = responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),3, DEBUG_STRING);
+    CompletableFuture<List<SmtpResponse>> f = responseHandler.createResponseFuture(context.channel(), 3, DEBUG_STRING);
     Exception testException = new Exception("test");
 
     responseHandler.exceptionCaught(context, testException);
@@ -152,42 +175,42 @@ public class ResponseHandlerTest {
 
   @Test
   public void itCanCreateNewFuturesOnceAResponseHasArrived() throws Exception {
-    responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, DEBUG_STRING);
+    responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
     responseHandler.channelRead(context, SMTP_RESPONSE);
 
-    responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, DEBUG_STRING);
+    responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
   }
 
   @Test
   public void itCanCreateNewFuturesOnceATheExpectedResponsesHaveArrived() throws Exception {
-    responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),2, DEBUG_STRING);
+    responseHandler.createResponseFuture(context.channel(), 2, DEBUG_STRING);
     responseHandler.channelRead(context, SMTP_RESPONSE);
     responseHandler.channelRead(context, SMTP_RESPONSE);
 
-    responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, DEBUG_STRING);
+    responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
   }
 
   @Test
   public void itCanCreateNewFuturesOnceAnExceptionIsHandled() throws Exception {
-    responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, DEBUG_STRING);
+    responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
     responseHandler.exceptionCaught(context, new Exception("test"));
 
-    responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, DEBUG_STRING);
+    responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
   }
 
   @Test
   public void itCanTellWhenAResponseIsPending() {
-    assertThat(responseHandler.getPendingResponseDebugString(context.channel().attr(CHANNEL_KEY).get())).isEmpty();
+    assertThat(responseHandler.getPendingResponseDebugString(context.channel())).isEmpty();
 
-    responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, DEBUG_STRING);
+    responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
 
-    assertThat(responseHandler.getPendingResponseDebugString(context.channel().attr(CHANNEL_KEY).get())).contains(DEBUG_STRING.get());
+    assertThat(responseHandler.getPendingResponseDebugString(context.channel())).contains(DEBUG_STRING.get());
   }
 
   @Test
   @Ignore
   public void itCompletesExceptionallyIfTheChannelIsClosed() throws Exception {
-    CompletableFuture<List<SmtpResponse>> f = responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, DEBUG_STRING);
+    CompletableFuture<List<SmtpResponse>> f = responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
 
     responseHandler.channelInactive(context);
 
@@ -203,7 +226,7 @@ public class ResponseHandlerTest {
   public void itCompletesExceptionallyIfTheDefaultResponseTimeoutIsExceeded() throws Exception {
     ResponseHandler impatientHandler = new ResponseHandler(Optional.of(Duration.ofMillis(200)), Optional.empty());
 
-    CompletableFuture<List<SmtpResponse>> responseFuture = impatientHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, DEBUG_STRING);
+    CompletableFuture<List<SmtpResponse>> responseFuture = impatientHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
     assertThat(responseFuture.isCompletedExceptionally()).isFalse();
 
     Thread.sleep(400);
@@ -214,13 +237,33 @@ public class ResponseHandlerTest {
   public void itCompletesExceptionallyIfTheResponseTimeoutIsExceeded() throws Exception {
     ResponseHandler impatientHandler = new ResponseHandler(Optional.of(Duration.ofDays(365)), Optional.empty());
 
-    CompletableFuture<List<SmtpResponse>> responseFuture = impatientHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, Optional.of(Duration.ofMillis(200)), DEBUG_STRING);
+    CompletableFuture<List<SmtpResponse>> responseFuture = impatientHandler.createResponseFuture(context.channel(), 1, Optional.of(Duration.ofMillis(200)), DEBUG_STRING);
     assertThat(responseFuture.isCompletedExceptionally()).isFalse();
 
     Thread.sleep(400);
     assertThat(responseFuture.isCompletedExceptionally()).isTrue();
   }
 
+  @Test
+  public void itChecksTheDeadlinesOfLaterFuturesAfterEarlierOnesComplete() throws Exception {
+    ResponseHandler impatientHandler = new ResponseHandler(Optional.of(Duration.ofMillis(200)), Optional.empty());
+
+    CompletableFuture<List<SmtpResponse>> f1 = impatientHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
+    impatientHandler.channelRead(context, SMTP_RESPONSE);
+    Thread.sleep(100);
+    CompletableFuture<List<SmtpResponse>> f2 = impatientHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
+
+    Thread.sleep(150);
+    assertThat(f1.get()).containsExactly(SMTP_RESPONSE);
+    assertThat(f2.isDone()).isFalse();
+
+    Thread.sleep(250);
+    assertThat(f2.isCompletedExceptionally()).isTrue();
+    assertThat(catchThrowable(f2::get).getCause())
+        .isInstanceOf(TimeoutException.class)
+        .hasMessage("[" + CONNECTION_ID + "] Timed out waiting for a response to [debug]");
+  }
+
   @Test
   public void itPassesExceptionsToTheProvidedHandlerIfPresent() throws Exception {
     Consumer<Throwable> exceptionHandler = (Consumer<Throwable>) mock(Consumer.class);
@@ -237,7 +280,7 @@ public class ResponseHandlerTest {
   public void itDoesNotPasExceptionsToTheProvidedHandlerIfThereIsAPendingFuture() throws Exception {
     Consumer<Throwable> exceptionHandler = (Consumer<Throwable>) mock(Consumer.class);
     ResponseHandler responseHandler = new ResponseHandler(Optional.empty(), Optional.of(exceptionHandler));
-    responseHandler.createResponseFuture(context.channel().attr(CHANNEL_KEY).get(),1, DEBUG_STRING);
+    responseHandler.createResponseFuture(context.channel(), 1, DEBUG_STRING);
     Exception testException = new Exception("oh no");
     responseHandler.exceptionCaught(null, testException);
     verify(exceptionHandler, never()).accept(testException);
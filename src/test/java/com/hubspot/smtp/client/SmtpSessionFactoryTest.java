@@ -0,0 +1,207 @@
+package com.hubspot.smtp.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import io.netty.resolver.AbstractAddressResolver;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Promise;
+
+public class SmtpSessionFactoryTest {
+  private static final String HOST = "mx.example.com";
+
+  private List<ServerSocket> serverSockets;
+  private SmtpSessionFactory factory;
+
+  @Before
+  public void setup() {
+    serverSockets = Lists.newArrayList();
+  }
+
+  @After
+  public void after() throws Exception {
+    if (factory != null) {
+      factory.close();
+    }
+
+    for (ServerSocket serverSocket : serverSockets) {
+      serverSocket.close();
+    }
+  }
+
+  @Test
+  public void itUsesTheFirstAddressToSendAGreeting() throws Exception {
+    ServerSocket silentServer = createServer();
+    ServerSocket greetingServer = createServer();
+    startGreeting(greetingServer);
+
+    factory = createFactory(Duration.ofMillis(50), addressOf(silentServer), addressOf(greetingServer));
+
+    SmtpClientResponse response = factory.connect().get(5, TimeUnit.SECONDS);
+    assertThat(response.getResponses().get(0).code()).isEqualTo(220);
+
+    // the losing connection is closed
+    silentServer.setSoTimeout(5000);
+    try (Socket socket = silentServer.accept()) {
+      socket.setSoTimeout(5000);
+      assertThat(socket.getInputStream().read()).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  public void itTriesTheNextAddressAsSoonAsAConnectionFails() throws Exception {
+    ServerSocket greetingServer = createServer();
+    startGreeting(greetingServer);
+
+    factory = createFactory(Duration.ofMinutes(1), getUnusedAddress(), addressOf(greetingServer));
+
+    assertThat(factory.connect().get(5, TimeUnit.SECONDS).getResponses().get(0).code()).isEqualTo(220);
+  }
+
+  @Test
+  public void itFailsIfEveryAddressFails() throws Exception {
+    factory = createFactory(Duration.ofMillis(50), getUnusedAddress(), getUnusedAddress());
+
+    assertThatThrownBy(() -> factory.connect().get(5, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class);
+  }
+
+  @Test
+  public void itFailsImmediatelyWhileTheCircuitIsOpen() throws Exception {
+    CircuitBreakerRegistry registry = new CircuitBreakerRegistry(CircuitBreakerConfig.builder().failureThreshold(1).build());
+    InetSocketAddress unusedAddress = getUnusedAddress();
+    factory = new SmtpSessionFactory(SmtpSessionFactoryConfig.nonProductionConfig().withCircuitBreakerRegistry(registry),
+        SmtpSessionConfig.forRemoteAddress(unusedAddress));
+
+    assertThatThrownBy(() -> factory.connect().get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(IOException.class);
+
+    CompletableFuture<SmtpClientResponse> f = factory.connect();
+    assertThat(f.isCompletedExceptionally()).isTrue();
+    assertThatThrownBy(f::get).hasCauseInstanceOf(CircuitBreakerOpenException.class);
+  }
+
+  @Test
+  public void itCountsServiceNotAvailableGreetingsAsFailures() throws Exception {
+    ServerSocket server = createServer();
+    startGreeting(server, "421 too busy\r\n");
+    CircuitBreakerRegistry registry = new CircuitBreakerRegistry(CircuitBreakerConfig.builder().failureThreshold(1).build());
+    factory = new SmtpSessionFactory(SmtpSessionFactoryConfig.nonProductionConfig().withCircuitBreakerRegistry(registry),
+        SmtpSessionConfig.forRemoteAddress(addressOf(server)));
+
+    assertThat(factory.connect().get(5, TimeUnit.SECONDS).getResponses().get(0).code()).isEqualTo(421);
+
+    assertThat(registry.get(addressOf(server)).getState()).isEqualTo(CircuitBreaker.State.OPEN);
+  }
+
+  @Test
+  public void itInterleavesAddressFamilies() throws Exception {
+    InetSocketAddress v6a = new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 25);
+    InetSocketAddress v6b = new InetSocketAddress(InetAddress.getByName("2001:db8::2"), 25);
+    InetSocketAddress v6c = new InetSocketAddress(InetAddress.getByName("2001:db8::3"), 25);
+    InetSocketAddress v4a = new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 25);
+    InetSocketAddress v4b = new InetSocketAddress(InetAddress.getByName("192.0.2.2"), 25);
+
+    assertThat(SmtpSessionFactory.interleaveAddressFamilies(ImmutableList.of(v6a, v6b, v6c, v4a, v4b)))
+        .containsExactly(v6a, v4a, v6b, v4b, v6c);
+    assertThat(SmtpSessionFactory.interleaveAddressFamilies(ImmutableList.of(v4a, v6a, v6b, v4b)))
+        .containsExactly(v4a, v6a, v4b, v6b);
+  }
+
+  private SmtpSessionFactory createFactory(Duration attemptDelay, SocketAddress... addresses) {
+    SmtpSessionFactoryConfig factoryConfig = SmtpSessionFactoryConfig.nonProductionConfig()
+        .withAddressResolverGroup(new FixedAddressResolverGroup(ImmutableList.copyOf(addresses)));
+    SmtpSessionConfig config = SmtpSessionConfig.forRemoteAddress(HOST, 25)
+        .withConnectionAttemptDelay(attemptDelay)
+        .withConnectionTimeout(Duration.ofSeconds(5));
+
+    return new SmtpSessionFactory(factoryConfig, config);
+  }
+
+  private ServerSocket createServer() throws IOException {
+    ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    serverSockets.add(serverSocket);
+    return serverSocket;
+  }
+
+  private static void startGreeting(ServerSocket serverSocket) {
+    startGreeting(serverSocket, "220 hello\r\n");
+  }
+
+  private static void startGreeting(ServerSocket serverSocket, String greeting) {
+    Thread thread = new Thread(() -> {
+      try {
+        while (true) {
+          Socket socket = serverSocket.accept();
+          OutputStream outputStream = socket.getOutputStream();
+          outputStream.write(greeting.getBytes(StandardCharsets.US_ASCII));
+          outputStream.flush();
+        }
+      } catch (IOException e) {
+        // the server socket has been closed
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static InetSocketAddress addressOf(ServerSocket serverSocket) {
+    return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+  }
+
+  private static InetSocketAddress getUnusedAddress() throws IOException {
+    try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      return addressOf(serverSocket);
+    }
+  }
+
+  private static class FixedAddressResolverGroup extends AddressResolverGroup<InetSocketAddress> {
+    private final List<SocketAddress> addresses;
+
+    FixedAddressResolverGroup(List<SocketAddress> addresses) {
+      this.addresses = addresses;
+    }
+
+    @Override
+    protected AddressResolver<InetSocketAddress> newResolver(EventExecutor executor) {
+      return new AbstractAddressResolver<InetSocketAddress>(executor) {
+        @Override
+        protected boolean doIsResolved(InetSocketAddress address) {
+          return !address.isUnresolved();
+        }
+
+        @Override
+        protected void doResolve(InetSocketAddress unresolvedAddress, Promise<InetSocketAddress> promise) {
+          promise.setSuccess((InetSocketAddress) addresses.get(0));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void doResolveAll(InetSocketAddress unresolvedAddress, Promise<List<InetSocketAddress>> promise) {
+          promise.setSuccess((List<InetSocketAddress>) (List<?>) addresses);
+        }
+      };
+    }
+  }
+}
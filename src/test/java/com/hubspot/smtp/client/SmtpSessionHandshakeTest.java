@@ -0,0 +1,167 @@
+package com.hubspot.smtp.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import io.netty.handler.codec.smtp.DefaultSmtpResponse;
+import io.netty.handler.codec.smtp.SmtpRequest;
+import io.netty.handler.codec.smtp.SmtpRequests;
+import io.netty.handler.codec.smtp.SmtpResponse;
+
+public class SmtpSessionHandshakeTest {
+  private static final SmtpResponse GREETING = new DefaultSmtpResponse(220, "hello");
+  private static final SmtpResponse OK_RESPONSE = new DefaultSmtpResponse(250, "OK");
+  private static final SmtpResponse FAIL_RESPONSE = new DefaultSmtpResponse(554, "nope");
+  private static final String DOMAIN = "example.com";
+
+  private SmtpSession session;
+  private CompletableFuture<SmtpClientResponse> okFuture;
+
+  @Before
+  public void setup() {
+    session = mock(SmtpSession.class);
+    okFuture = CompletableFuture.completedFuture(new SmtpClientResponse(session, OK_RESPONSE));
+
+    when(session.send(any(SmtpRequest.class))).thenReturn(okFuture);
+    when(session.startTls()).thenReturn(okFuture);
+    when(session.authPlain(any(String.class), any(String.class))).thenReturn(okFuture);
+    when(session.authLogin(any(String.class), any(String.class))).thenReturn(okFuture);
+  }
+
+  @Test
+  public void itSendsEhlo() throws Exception {
+    setEhloResponse("smtp.example.com");
+
+    SmtpClientResponse response = SmtpSessionHandshake.builder().ehloDomain(DOMAIN).build().apply(greeting()).get();
+
+    assertThat(response.getResponses()).containsExactly(OK_RESPONSE);
+    verify(session).send(SmtpRequests.ehlo(DOMAIN));
+    verify(session, never()).startTls();
+  }
+
+  @Test
+  public void itStartsTlsWhenSupported() throws Exception {
+    setEhloResponse("smtp.example.com", "STARTTLS");
+
+    SmtpSessionHandshake.builder().ehloDomain(DOMAIN).build().apply(greeting()).get();
+
+    verify(session).startTls();
+  }
+
+  @Test
+  public void itDoesNotStartTlsWhenDisabled() throws Exception {
+    setEhloResponse("smtp.example.com", "STARTTLS");
+
+    SmtpSessionHandshake.builder().ehloDomain(DOMAIN).isStartTlsEnabled(false).build().apply(greeting()).get();
+
+    verify(session, never()).startTls();
+  }
+
+  @Test
+  public void itDoesNotStartTlsWhenAlreadyEncrypted() throws Exception {
+    setEhloResponse("smtp.example.com", "STARTTLS");
+    when(session.isEncrypted()).thenReturn(true);
+
+    SmtpSessionHandshake.builder().ehloDomain(DOMAIN).build().apply(greeting()).get();
+
+    verify(session, never()).startTls();
+  }
+
+  @Test
+  public void itPrefersAuthPlain() throws Exception {
+    setEhloResponse("smtp.example.com", "AUTH LOGIN PLAIN");
+    when(session.isEncrypted()).thenReturn(true);
+
+    SmtpSessionHandshake.builder().ehloDomain(DOMAIN).username("user").password("pass").build().apply(greeting()).get();
+
+    verify(session).authPlain("user", "pass");
+    verify(session, never()).authLogin(any(String.class), any(String.class));
+  }
+
+  @Test
+  public void itUsesAuthLoginIfPlainIsNotSupported() throws Exception {
+    setEhloResponse("smtp.example.com", "AUTH LOGIN");
+    when(session.isEncrypted()).thenReturn(true);
+
+    SmtpSessionHandshake.builder().ehloDomain(DOMAIN).username("user").password("pass").build().apply(greeting()).get();
+
+    verify(session).authLogin("user", "pass");
+  }
+
+  @Test
+  public void itRefusesToAuthenticateOverAnUnencryptedSession() throws Exception {
+    setEhloResponse("smtp.example.com", "AUTH PLAIN");
+
+    CompletableFuture<SmtpClientResponse> f = SmtpSessionHandshake.builder().ehloDomain(DOMAIN).username("user").password("pass").build().apply(greeting());
+
+    assertThatThrownBy(f::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(SessionInitializationException.class);
+    verify(session, never()).authPlain(any(String.class), any(String.class));
+  }
+
+  @Test
+  public void itAuthenticatesOverAnUnencryptedSessionIfAllowed() throws Exception {
+    setEhloResponse("smtp.example.com", "AUTH PLAIN");
+
+    SmtpSessionHandshake.builder().ehloDomain(DOMAIN).username("user").password("pass").isPlaintextAuthAllowed(true).build().apply(greeting()).get();
+
+    verify(session).authPlain("user", "pass");
+  }
+
+  @Test
+  public void itFailsIfNoSupportedAuthMechanismIsAdvertised() throws Exception {
+    setEhloResponse("smtp.example.com", "AUTH CRAM-MD5");
+    when(session.isEncrypted()).thenReturn(true);
+
+    CompletableFuture<SmtpClientResponse> f = SmtpSessionHandshake.builder().ehloDomain(DOMAIN).username("user").password("pass").build().apply(greeting());
+
+    assertThatThrownBy(f::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(SessionInitializationException.class);
+  }
+
+  @Test
+  public void itDoesNotAuthenticateWithoutCredentials() throws Exception {
+    setEhloResponse("smtp.example.com", "AUTH PLAIN");
+
+    SmtpSessionHandshake.builder().ehloDomain(DOMAIN).build().apply(greeting()).get();
+
+    verify(session, never()).authPlain(any(String.class), any(String.class));
+  }
+
+  @Test
+  public void itStopsAtTheFirstError() throws Exception {
+    setEhloResponse("smtp.example.com", "STARTTLS", "AUTH PLAIN");
+    when(session.send(any(SmtpRequest.class))).thenReturn(CompletableFuture.completedFuture(new SmtpClientResponse(session, FAIL_RESPONSE)));
+
+    SmtpClientResponse response = SmtpSessionHandshake.builder().ehloDomain(DOMAIN).username("user").password("pass").build().apply(greeting()).get();
+
+    assertThat(response.containsError()).isTrue();
+    verify(session, never()).startTls();
+    verify(session, never()).authPlain(any(String.class), any(String.class));
+  }
+
+  @Test
+  public void itRequiresBothUsernameAndPassword() {
+    assertThatThrownBy(() -> SmtpSessionHandshake.builder().ehloDomain(DOMAIN).username("user").build())
+        .isInstanceOf(IllegalStateException.class);
+  }
+
+  private SmtpClientResponse greeting() {
+    return new SmtpClientResponse(session, GREETING);
+  }
+
+  private void setEhloResponse(CharSequence... lines) {
+    when(session.getEhloResponse()).thenReturn(EhloResponse.parse(DOMAIN, Lists.newArrayList(lines)));
+  }
+}
@@ -0,0 +1,543 @@
+package com.hubspot.smtp.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.smtp.DefaultSmtpResponse;
+import io.netty.handler.codec.smtp.SmtpRequest;
+import io.netty.handler.codec.smtp.SmtpResponse;
+
+public class SmtpSessionPoolTest {
+  private static final SmtpResponse GREETING = new DefaultSmtpResponse(220, "hello");
+  private static final SmtpResponse OK_RESPONSE = new DefaultSmtpResponse(250, "OK");
+  private static final SmtpResponse FAIL_RESPONSE = new DefaultSmtpResponse(554, "go away");
+
+  private SmtpSessionFactory factory;
+  private List<CompletableFuture<SmtpClientResponse>> connectFutures;
+  private SmtpSessionPool pool;
+
+  @Before
+  public void setup() {
+    connectFutures = Lists.newArrayList();
+
+    factory = mock(SmtpSessionFactory.class);
+    when(factory.getFactoryConfig()).thenReturn(SmtpSessionFactoryConfig.nonProductionConfig());
+    when(factory.connect()).thenAnswer(invocation -> {
+      CompletableFuture<SmtpClientResponse> f = new CompletableFuture<>();
+      connectFutures.add(f);
+      return f;
+    });
+  }
+
+  @After
+  public void after() throws Exception {
+    if (pool != null) {
+      pool.closeAsync();
+    }
+  }
+
+  @Test
+  public void itConnectsANewSessionWhenNoneAreIdle() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().build());
+
+    CompletableFuture<SmtpSession> f = pool.acquire();
+    assertThat(f.isDone()).isFalse();
+    assertThat(connectFutures).hasSize(1);
+
+    SmtpSession session = completeConnection(0);
+
+    assertThat(f.get()).isSameAs(session);
+    assertThat(pool.getSessionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void itReusesReleasedSessions() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().build());
+
+    CompletableFuture<SmtpSession> f = pool.acquire();
+    SmtpSession session = completeConnection(0);
+    pool.release(f.get());
+
+    assertThat(pool.getIdleSessionCount()).isEqualTo(1);
+    assertThat(pool.acquire().get()).isSameAs(session);
+    assertThat(connectFutures).hasSize(1);
+  }
+
+  @Test
+  public void itDoesNotOpenMoreThanMaxSizeSessions() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxSize(2).build());
+
+    CompletableFuture<SmtpSession> f1 = pool.acquire();
+    CompletableFuture<SmtpSession> f2 = pool.acquire();
+    CompletableFuture<SmtpSession> f3 = pool.acquire();
+
+    assertThat(connectFutures).hasSize(2);
+
+    completeConnection(0);
+    completeConnection(1);
+
+    assertThat(f1.isDone()).isTrue();
+    assertThat(f2.isDone()).isTrue();
+    assertThat(f3.isDone()).isFalse();
+
+    pool.release(f1.get());
+
+    assertThat(f3.get()).isSameAs(f1.get());
+    assertThat(connectFutures).hasSize(2);
+  }
+
+  @Test
+  public void itServesWaitersInOrder() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxSize(1).build());
+
+    CompletableFuture<SmtpSession> f1 = pool.acquire();
+    CompletableFuture<SmtpSession> f2 = pool.acquire();
+    CompletableFuture<SmtpSession> f3 = pool.acquire();
+
+    completeConnection(0);
+    assertThat(f1.isDone()).isTrue();
+
+    pool.release(f1.get());
+    assertThat(f2.isDone()).isTrue();
+    assertThat(f3.isDone()).isFalse();
+
+    pool.release(f2.get());
+    assertThat(f3.isDone()).isTrue();
+  }
+
+  @Test
+  public void itDiscardsClosedSessionsAndConnectsAReplacement() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxSize(1).build());
+
+    CompletableFuture<SmtpSession> f1 = pool.acquire();
+    CompletableFuture<SmtpSession> f2 = pool.acquire();
+
+    SmtpSession session = completeConnection(0);
+    assertThat(f1.get()).isSameAs(session);
+
+    closeSession(session);
+    pool.release(session);
+
+    assertThat(connectFutures).hasSize(2);
+    assertThat(f2.isDone()).isFalse();
+
+    SmtpSession replacement = completeConnection(1);
+    assertThat(f2.get()).isSameAs(replacement);
+  }
+
+  @Test
+  public void itDoesNotHandOutIdleSessionsThatHaveClosed() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().build());
+
+    CompletableFuture<SmtpSession> f1 = pool.acquire();
+    SmtpSession session = completeConnection(0);
+    pool.release(f1.get());
+
+    closeSession(session);
+
+    assertThat(pool.getIdleSessionCount()).isEqualTo(0);
+
+    CompletableFuture<SmtpSession> f2 = pool.acquire();
+    assertThat(f2.isDone()).isFalse();
+    assertThat(connectFutures).hasSize(2);
+  }
+
+  @Test
+  public void itFailsTheOldestWaiterWhenAConnectionFails() {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxSize(1).build());
+
+    CompletableFuture<SmtpSession> f1 = pool.acquire();
+    CompletableFuture<SmtpSession> f2 = pool.acquire();
+
+    RuntimeException cause = new RuntimeException("connection refused");
+    connectFutures.get(0).completeExceptionally(cause);
+
+    assertThat(f1.isCompletedExceptionally()).isTrue();
+    assertThat(f2.isDone()).isFalse();
+    assertThat(pool.getSessionCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void itReconnectsForRemainingWaitersAfterABackoffWhenAConnectionFails() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxSize(1).connectRetryDelay(Duration.ofMillis(50)).build());
+
+    pool.acquire();
+    CompletableFuture<SmtpSession> f2 = pool.acquire();
+
+    connectFutures.get(0).completeExceptionally(new RuntimeException("connection refused"));
+
+    // callers arriving during the backoff don't trigger a connection
+    pool.acquire();
+    assertThat(connectFutures).hasSize(1);
+
+    Thread.sleep(500);
+    assertThat(connectFutures).hasSize(2);
+
+    SmtpSession session = completeConnection(1);
+    assertThat(f2.get()).isSameAs(session);
+  }
+
+  @Test
+  public void itRunsTheSessionInitializerBeforeHandingOutSessions() throws Exception {
+    CompletableFuture<SmtpClientResponse> initialized = new CompletableFuture<>();
+    pool = createPool(SmtpSessionPoolConfig.builder().sessionInitializer(greeting -> initialized).build());
+
+    CompletableFuture<SmtpSession> f = pool.acquire();
+    SmtpSession session = completeConnection(0);
+
+    assertThat(f.isDone()).isFalse();
+
+    initialized.complete(new SmtpClientResponse(session, OK_RESPONSE));
+
+    assertThat(f.get()).isSameAs(session);
+  }
+
+  @Test
+  public void itClosesSessionsThatFailToInitialize() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder()
+        .sessionInitializer(greeting -> CompletableFuture.completedFuture(new SmtpClientResponse(greeting.getSession(), FAIL_RESPONSE)))
+        .build());
+
+    CompletableFuture<SmtpSession> f = pool.acquire();
+    SmtpSession session = completeConnection(0);
+
+    verify(session).close();
+    assertThatThrownBy(f::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(SessionInitializationException.class);
+    assertThat(pool.getSessionCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void itOpensMinSizeSessionsWhenCreated() {
+    pool = createPool(SmtpSessionPoolConfig.builder().minSize(2).build());
+
+    assertThat(connectFutures).hasSize(2);
+
+    completeConnection(0);
+    completeConnection(1);
+
+    assertThat(pool.getIdleSessionCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void itKeepsPrefillSizeSessionsIdle() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().prefillSize(2).build());
+
+    assertThat(connectFutures).hasSize(2);
+    completeConnection(0);
+    completeConnection(1);
+    assertThat(pool.getIdleSessionCount()).isEqualTo(2);
+
+    CompletableFuture<SmtpSession> f = pool.acquire();
+    assertThat(f.isDone()).isTrue();
+    assertThat(connectFutures).hasSize(3);
+
+    completeConnection(2);
+    assertThat(pool.getIdleSessionCount()).isEqualTo(2);
+
+    pool.release(f.get());
+    assertThat(pool.getIdleSessionCount()).isEqualTo(3);
+    assertThat(connectFutures).hasSize(3);
+  }
+
+  @Test
+  public void itDoesNotPrefillBeyondMaxSize() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().prefillSize(2).maxSize(2).build());
+
+    completeConnection(0);
+    completeConnection(1);
+
+    pool.acquire();
+    pool.acquire();
+
+    assertThat(connectFutures).hasSize(2);
+  }
+
+  @Test
+  public void itReplacesPrefilledSessionsThatClose() {
+    pool = createPool(SmtpSessionPoolConfig.builder().prefillSize(1).build());
+
+    SmtpSession session = completeConnection(0);
+    closeSession(session);
+
+    assertThat(connectFutures).hasSize(2);
+  }
+
+  @Test
+  public void itRetiresSessionsThatReachMaxTransactions() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxTransactionsPerSession(3).sessionLimitJitter(0).build());
+
+    CompletableFuture<SmtpSession> f = pool.acquire();
+    SmtpSession session = completeConnection(0);
+
+    when(session.getTransactionCount()).thenReturn(2);
+    pool.release(f.get());
+    assertThat(pool.getIdleSessionCount()).isEqualTo(1);
+
+    assertThat(pool.acquire().get()).isSameAs(session);
+    when(session.getTransactionCount()).thenReturn(3);
+    pool.release(session);
+
+    assertThat(pool.getIdleSessionCount()).isEqualTo(0);
+    verify(session).send(any(SmtpRequest.class));
+    verify(session).close();
+  }
+
+  @Test
+  public void itRetiresSessionsThatReachMaxBytes() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxBytesPerSession(1000).sessionLimitJitter(0).build());
+
+    CompletableFuture<SmtpSession> f = pool.acquire();
+    SmtpSession session = completeConnection(0);
+
+    when(session.getBytesSent()).thenReturn(1000L);
+    pool.release(f.get());
+
+    assertThat(pool.getIdleSessionCount()).isEqualTo(0);
+    verify(session).close();
+  }
+
+  @Test
+  public void itRetiresSessionsThatReachMaxAgeWhenReleased() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxSessionAge(Duration.ofMillis(1)).build());
+
+    CompletableFuture<SmtpSession> f = pool.acquire();
+    SmtpSession session = completeConnection(0);
+
+    Thread.sleep(5);
+    pool.release(f.get());
+
+    assertThat(pool.getIdleSessionCount()).isEqualTo(0);
+    verify(session).close();
+  }
+
+  @Test
+  public void itRetiresIdleSessionsThatReachMaxAge() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxSessionAge(Duration.ofMillis(1)).build());
+
+    CompletableFuture<SmtpSession> f = pool.acquire();
+    SmtpSession session = completeConnection(0);
+    pool.release(f.get());
+
+    // limits are checked by the maintenance task once a second
+    Thread.sleep(1500);
+
+    assertThat(pool.getIdleSessionCount()).isEqualTo(0);
+    verify(session).close();
+  }
+
+  @Test
+  public void itReplacesRetiredSessionsForWaiters() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxSize(1).maxTransactionsPerSession(1).sessionLimitJitter(0).build());
+
+    CompletableFuture<SmtpSession> f1 = pool.acquire();
+    CompletableFuture<SmtpSession> f2 = pool.acquire();
+    SmtpSession session = completeConnection(0);
+
+    when(session.getTransactionCount()).thenReturn(1);
+    pool.release(f1.get());
+
+    assertThat(f2.isDone()).isFalse();
+    assertThat(connectFutures).hasSize(2);
+
+    SmtpSession replacement = completeConnection(1);
+    assertThat(f2.get()).isSameAs(replacement);
+  }
+
+  @Test
+  public void itAppliesJitterToSessionLimits() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxSize(20).maxTransactionsPerSession(10).sessionLimitJitter(0.5).build());
+
+    List<CompletableFuture<SmtpSession>> futures = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      futures.add(pool.acquire());
+      completeConnection(i);
+    }
+
+    // every session's limit is between 5 and 10 transactions
+    for (CompletableFuture<SmtpSession> f : futures) {
+      when(f.get().getTransactionCount()).thenReturn(4);
+      pool.release(f.get());
+    }
+    assertThat(pool.getIdleSessionCount()).isEqualTo(20);
+
+    for (int i = 0; i < 20; i++) {
+      SmtpSession session = pool.acquire().get();
+      when(session.getTransactionCount()).thenReturn(10);
+      pool.release(session);
+    }
+    assertThat(pool.getIdleSessionCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void itTimesOutWaitingForASession() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxSize(1).acquireTimeout(Duration.ofMillis(50)).build());
+
+    CompletableFuture<SmtpSession> f1 = pool.acquire();
+    completeConnection(0);
+
+    CompletableFuture<SmtpSession> f2 = pool.acquire();
+
+    assertThatThrownBy(f2::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(TimeoutException.class);
+
+    // the timed out waiter should not be handed the session
+    pool.release(f1.get());
+    assertThat(pool.getIdleSessionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void itEvictsSessionsThatHaveBeenIdleTooLong() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxIdleTime(Duration.ofMillis(1)).build());
+
+    CompletableFuture<SmtpSession> f = pool.acquire();
+    SmtpSession session = completeConnection(0);
+    pool.release(f.get());
+
+    // eviction runs once a second
+    Thread.sleep(1500);
+
+    assertThat(pool.getIdleSessionCount()).isEqualTo(0);
+    verify(session).send(any(SmtpRequest.class));
+    verify(session).close();
+  }
+
+  @Test
+  public void itClosesIdleSessionsWhenClosed() throws Exception {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxSize(2).build());
+
+    CompletableFuture<SmtpSession> f1 = pool.acquire();
+    CompletableFuture<SmtpSession> f2 = pool.acquire();
+    SmtpSession idleSession = completeConnection(0);
+    SmtpSession leasedSession = completeConnection(1);
+    pool.release(f1.get());
+
+    pool.closeAsync();
+
+    verify(idleSession).close();
+    verify(leasedSession, never()).close();
+
+    pool.release(f2.get());
+    verify(leasedSession, times(1)).close();
+
+    assertThat(pool.acquire().isCompletedExceptionally()).isTrue();
+  }
+
+  @Test
+  public void itFailsWaitersWhenClosed() {
+    pool = createPool(SmtpSessionPoolConfig.builder().maxSize(1).build());
+
+    pool.acquire();
+    CompletableFuture<SmtpSession> f = pool.acquire();
+    completeConnection(0);
+
+    pool.closeAsync();
+
+    assertThat(f.isCompletedExceptionally()).isTrue();
+  }
+
+  @Test
+  public void itPrefersIdleSessionsOnTheCallersEventLoop() throws Exception {
+    NioEventLoopGroup eventLoopGroup = new NioEventLoopGroup(2);
+    try {
+      EventLoop loop1 = eventLoopGroup.next();
+      EventLoop loop2 = eventLoopGroup.next();
+      when(factory.getFactoryConfig()).thenReturn(SmtpSessionFactoryConfig.nonProductionConfig().withEventLoopGroup(eventLoopGroup));
+      pool = createPool(SmtpSessionPoolConfig.builder().maxSize(2).build());
+
+      CompletableFuture<SmtpSession> f1 = pool.acquire();
+      CompletableFuture<SmtpSession> f2 = pool.acquire();
+      SmtpSession session1 = createSession(loop1);
+      SmtpSession session2 = createSession(loop2);
+      connectFutures.get(0).complete(new SmtpClientResponse(session1, GREETING));
+      connectFutures.get(1).complete(new SmtpClientResponse(session2, GREETING));
+      pool.release(f2.get());
+      pool.release(f1.get());
+
+      assertThat(loop2.submit(() -> pool.acquire().get()).get()).isSameAs(session2);
+
+      // callers that aren't on an event loop get the most recently used session
+      assertThat(pool.acquire().get()).isSameAs(session1);
+    } finally {
+      eventLoopGroup.shutdownGracefully();
+    }
+  }
+
+  @Test
+  public void itConnectsNewSessionsOnTheCallersEventLoop() throws Exception {
+    NioEventLoopGroup eventLoopGroup = new NioEventLoopGroup(2);
+    try {
+      EventLoop loop = eventLoopGroup.next();
+      when(factory.getFactoryConfig()).thenReturn(SmtpSessionFactoryConfig.nonProductionConfig().withEventLoopGroup(eventLoopGroup));
+      when(factory.connect(any(EventLoop.class))).thenReturn(new CompletableFuture<>());
+      pool = createPool(SmtpSessionPoolConfig.builder().build());
+
+      loop.submit(() -> pool.acquire()).get();
+
+      verify(factory).connect(loop);
+      verify(factory, never()).connect();
+    } finally {
+      eventLoopGroup.shutdownGracefully();
+    }
+  }
+
+  @Test
+  public void itRejectsSessionsFromOtherPools() {
+    pool = createPool(SmtpSessionPoolConfig.builder().build());
+
+    assertThatThrownBy(() -> pool.release(createSession())).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private SmtpSessionPool createPool(SmtpSessionPoolConfig config) {
+    return new SmtpSessionPool(factory, config);
+  }
+
+  private SmtpSession completeConnection(int index) {
+    SmtpSession session = createSession();
+    connectFutures.get(index).complete(new SmtpClientResponse(session, GREETING));
+    return session;
+  }
+
+  private SmtpSession createSession() {
+    return createSession(null);
+  }
+
+  private SmtpSession createSession(EventLoop eventLoop) {
+    SmtpSession session = mock(SmtpSession.class);
+    when(session.getEventLoop()).thenReturn(eventLoop);
+    CompletableFuture<Void> closeFuture = new CompletableFuture<>();
+
+    when(session.isActive()).thenAnswer(invocation -> !closeFuture.isDone());
+    when(session.getCloseFuture()).thenReturn(closeFuture);
+    when(session.close()).thenAnswer(invocation -> {
+      closeFuture.complete(null);
+      return closeFuture;
+    });
+    when(session.send(any(SmtpRequest.class))).thenAnswer(invocation ->
+        CompletableFuture.completedFuture(new SmtpClientResponse(session, OK_RESPONSE)));
+
+    return session;
+  }
+
+  private void closeSession(SmtpSession session) {
+    session.getCloseFuture().complete(null);
+  }
+}
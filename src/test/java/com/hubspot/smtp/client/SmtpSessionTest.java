@@ -10,6 +10,8 @@ import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -25,9 +27,11 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Answers;
 import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
 import org.mockito.InOrder;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Ticker;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.io.ByteSource;
@@ -53,6 +57,7 @@ import io.netty.handler.codec.smtp.SmtpCommand;
 import io.netty.handler.codec.smtp.SmtpRequest;
 import io.netty.handler.codec.smtp.SmtpResponse;
 import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedInput;
 import io.netty.util.ReferenceCounted;
 import io.netty.util.concurrent.DefaultPromise;
 import io.netty.util.concurrent.ImmediateEventExecutor;
@@ -114,7 +119,7 @@ public class SmtpSessionTest {
     responseFuture = new CompletableFuture<>();
     secondResponseFuture = new CompletableFuture<>();
     writeFuture = mock(ChannelFuture.class);
-    when(responseHandler.createResponseFuture(anyString(), anyInt(), any())).thenReturn(responseFuture, secondResponseFuture);
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenReturn(responseFuture, secondResponseFuture);
 
     when(channel.pipeline()).thenReturn(pipeline);
     when(channel.alloc()).thenReturn(new PooledByteBufAllocator(false));
@@ -256,6 +261,51 @@ public class SmtpSessionTest {
     assertionFuture.join();
   }
 
+  @Test
+  public void itFailsSendsWithoutWritingWhileTheCircuitBreakerIsOpen() {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(CircuitBreakerConfig.builder().failureThreshold(1).build(), Ticker.systemTicker());
+    circuitBreaker.recordFailure();
+    SmtpSession session = new SmtpSession(channel, responseHandler, CONFIG, SmtpSessionFactoryConfig.DIRECT_EXECUTOR, SSL_ENGINE_SUPPLIER, Optional.of(circuitBreaker));
+
+    CompletableFuture<SmtpClientResponse> future = session.send(ALICE, BOB, smtpContent);
+    CompletableFuture<List<SmtpClientResponse>> allFuture = session.sendAll(Iterators.singletonIterator(OutgoingMessage.of(ALICE, Lists.newArrayList(BOB), smtpContent)));
+
+    assertThatThrownBy(future::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(CircuitBreakerOpenException.class);
+    assertThatThrownBy(allFuture::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(CircuitBreakerOpenException.class);
+    verify(channel, never()).write(any());
+    verify(channel, never()).writeAndFlush(any());
+  }
+
+  @Test
+  public void itOnlyCountsConsecutiveServiceNotAvailableResponsesTowardsTheCircuitBreaker() {
+    List<CompletableFuture<List<SmtpResponse>>> futures = Lists.newArrayList();
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenAnswer(a -> {
+      CompletableFuture<List<SmtpResponse>> f = new CompletableFuture<>();
+      futures.add(f);
+      return f;
+    });
+
+    CircuitBreaker circuitBreaker = new CircuitBreaker(CircuitBreakerConfig.builder().failureThreshold(2).build(), Ticker.systemTicker());
+    SmtpSession session = new SmtpSession(channel, responseHandler, CONFIG, SmtpSessionFactoryConfig.DIRECT_EXECUTOR, SSL_ENGINE_SUPPLIER, Optional.of(circuitBreaker));
+
+    for (int i = 0; i < 3; i++) {
+      session.send(NOOP_REQUEST);
+      futures.get(futures.size() - 1).complete(Lists.newArrayList(new DefaultSmtpResponse(421, "busy")));
+
+      session.send(MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES)));
+      futures.get(futures.size() - 1).complete(Lists.newArrayList(OK_RESPONSE));
+    }
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+
+    session.send(NOOP_REQUEST);
+    futures.get(futures.size() - 1).complete(Lists.newArrayList(new DefaultSmtpResponse(421, "busy")));
+    session.send(NOOP_REQUEST);
+    futures.get(futures.size() - 1).complete(Lists.newArrayList(new DefaultSmtpResponse(421, "busy")));
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+  }
+
   @Test
   public void itThrowsIllegalStateIfPipeliningIsNotSupported() {
     resetEhloExtensions();
@@ -272,9 +322,7 @@ public class SmtpSessionTest {
     InOrder order = inOrder(channel);
     order.verify(channel).write(smtpContent.getDotStuffedContent());
     verify(channel).write(DotCrlfBuffer.get());
-    order.verify(channel).write(MAIL_REQUEST);
-    order.verify(channel).write(RCPT_REQUEST);
-    order.verify(channel).write(DATA_REQUEST);
+    order.verify(channel).write(commands(MAIL_REQUEST, RCPT_REQUEST, DATA_REQUEST));
     order.verify(channel).flush();
 
     assertThat(log.getLog()).isEqualTo("<pipeline MAIL, RCPT, DATA>");
@@ -314,7 +362,7 @@ public class SmtpSessionTest {
     responseFuture.complete(Lists.newArrayList(responses));
 
     // 4 responses expected: one for the content, 3 for the requests
-    verify(responseHandler).createResponseFuture(anyString(), eq(4), any());
+    verify(responseHandler).createResponseFuture(any(), eq(4), any());
 
     assertThat(future.isDone()).isTrue();
     assertThat(future.get().getResponses().size()).isEqualTo(responses.length);
@@ -329,7 +377,7 @@ public class SmtpSessionTest {
     session.sendPipelined(RCPT_REQUEST, DATA_REQUEST);
 
     // 1 response expected for each request
-    verify(responseHandler).createResponseFuture(anyString(), eq(2), any());
+    verify(responseHandler).createResponseFuture(any(), eq(2), any());
   }
 
   @Test
@@ -447,6 +495,26 @@ public class SmtpSessionTest {
     assertThat(f.get().getResponses().get(0).code()).isEqualTo(FAIL_RESPONSE.code());
   }
 
+  @Test
+  public void itNeverTracesTheNtlmExchange() throws Exception {
+    String challenge = "TlRMTVNTUAACAAAADAAMADAAAAA1AoEAASNFZ4mrze8AAAAAAAAAAGIAYgA8AAAARABPAE0AQQBJAE4AAgAMAEQATwBNAEEASQBOAAEADABTAEUAUgBWAEUAUgAEABQAZABvAG0AYQBpAG4ALgBjAG8AbQADACIAcwBlAHIAdgBlAHIALgBkAG8AbQBhAGkAbgAuAGMAbwBtAAAAAAA=";
+
+    session.ntlmAuth("DOMAIN", "host", "user", "password");
+    responseFuture.complete(Lists.newArrayList(new DefaultSmtpResponse(334, challenge)));
+
+    ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+    verify(channel, times(2)).writeAndFlush(captor.capture());
+
+    SmtpRequest type1Request = (SmtpRequest) captor.getAllValues().get(0);
+    ByteBuf type3Buffer = (ByteBuf) captor.getAllValues().get(1);
+    String type1 = type1Request.parameters().get(1).toString();
+    String type3 = getString(type3Buffer).trim();
+
+    for (Object sent : captor.getAllValues()) {
+      assertThat(WireTrace.describe(sent)).doesNotContain(type1).doesNotContain(type3).doesNotContain("NTLM");
+    }
+  }
+
   @Test
   public void itRedactsAuthCommandsInTheDebugString() {
     assertThat(SmtpSession.createDebugString(new DefaultSmtpRequest("AUTH", "super-secret")))
@@ -458,9 +526,10 @@ public class SmtpSessionTest {
     CompletableFuture<SmtpClientResponse> future = session.send(ALICE, Lists.newArrayList(BOB, CAROL), smtpContent);
 
     InOrder order = inOrder(channel);
-    order.verify(channel).write(req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">"));
-    order.verify(channel).write(req(SmtpCommand.RCPT, "TO:<" + BOB + ">"));
-    order.verify(channel).write(req(SmtpCommand.RCPT, "TO:<" + CAROL + ">"));
+    order.verify(channel).write(commands(
+        req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">"),
+        req(SmtpCommand.RCPT, "TO:<" + BOB + ">"),
+        req(SmtpCommand.RCPT, "TO:<" + CAROL + ">")));
     order.verify(channel).write(byteBufCaptor.capture());
     order.verify(channel).flush();
 
@@ -472,6 +541,51 @@ public class SmtpSessionTest {
     assertThat(log.getLog()).isEqualTo("<pipeline MAIL, RCPT, RCPT>, 250 OK 0, 251 OK 1, 252 OK 2, 253 OK 3");
   }
 
+  // matches pipelined commands, which are encoded together in one buffer
+  private static Object commands(SmtpRequest... requests) {
+    String expected = encode(requests);
+    return argThat(new ArgumentMatcher<Object>() {
+      @Override
+      public boolean matches(Object o) {
+        return expected.equals(getWrittenCommands(o));
+      }
+    });
+  }
+
+  // matches a command, whether it was written alone or as part of a pipelined group
+  private static Object commandsIncluding(SmtpRequest request) {
+    String expected = encode(request);
+    return argThat(new ArgumentMatcher<Object>() {
+      @Override
+      public boolean matches(Object o) {
+        String written = getWrittenCommands(o);
+        return written != null && ("\n" + written).contains("\n" + expected);
+      }
+    });
+  }
+
+  private static String getWrittenCommands(Object o) {
+    if (o instanceof SmtpRequest) {
+      return encode((SmtpRequest) o);
+    } else if (o instanceof ByteBuf && ((ByteBuf) o).refCnt() > 0) {
+      return ((ByteBuf) o).toString(StandardCharsets.UTF_8);
+    } else {
+      return null;
+    }
+  }
+
+  private static String encode(SmtpRequest... requests) {
+    ByteBuf buffer = Unpooled.buffer();
+    try {
+      for (SmtpRequest request : requests) {
+        Utf8SmtpRequestEncoder.writeRequest(request, buffer);
+      }
+      return buffer.toString(StandardCharsets.UTF_8);
+    } finally {
+      buffer.release();
+    }
+  }
+
   private String getString(ByteBuf byteBuf) {
     return new String(getBytes(byteBuf));
   }
@@ -483,29 +597,232 @@ public class SmtpSessionTest {
   }
 
   @Test
-  public void itSendsRsetBetweenSends() {
+  public void itSendsRsetIfThePreviousTransactionHasNotFinished() {
     session.send(ALICE, BOB, MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES)));
     session.send(ALICE, BOB, MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES)));
 
     InOrder order = inOrder(channel);
-    order.verify(channel).write(req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">"));
-    order.verify(channel).write(req(SmtpCommand.RCPT, "TO:<" + BOB + ">"));
+    order.verify(channel).write(commands(
+        req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">"),
+        req(SmtpCommand.RCPT, "TO:<" + BOB + ">")));
     order.verify(channel).write(byteBufCaptor.capture());
     order.verify(channel).flush();
 
-    order.verify(channel).write(req(SmtpCommand.RSET));
-    order.verify(channel).write(req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">"));
-    order.verify(channel).write(req(SmtpCommand.RCPT, "TO:<" + BOB + ">"));
+    order.verify(channel).write(commands(
+        req(SmtpCommand.RSET),
+        req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">"),
+        req(SmtpCommand.RCPT, "TO:<" + BOB + ">")));
     order.verify(channel).write(byteBufCaptor.capture());
     order.verify(channel).flush();
 
     assertThat(log.getLog()).isEqualTo("<pipeline MAIL, RCPT>, <pipeline RSET, MAIL, RCPT>");
   }
 
+  @Test
+  public void itDoesNotSendRsetAfterASuccessfulTransaction() {
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenAnswer(a ->
+        CompletableFuture.completedFuture(Collections.nCopies(a.getArgumentAt(1, Integer.class), OK_RESPONSE)));
+
+    session.send(ALICE, BOB, MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES))).join();
+    assertThat(session.getTransactionState()).isEqualTo(TransactionState.READY);
+
+    session.send(ALICE, BOB, MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES))).join();
+
+    verify(channel, never()).write(req(SmtpCommand.RSET));
+    assertThat(log.getLog()).isEqualTo("<pipeline MAIL, RCPT>, 250 OK, 250 OK, 250 OK, <pipeline MAIL, RCPT>, 250 OK, 250 OK, 250 OK");
+  }
+
+  @Test
+  public void itDoesNotSendRsetAfterTheMessageIsRejected() {
+    resetEhloExtensions();
+
+    // the server ends the transaction when it responds to the message data, even if it rejects it
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenReturn(
+        CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)),
+        CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)),
+        CompletableFuture.completedFuture(Lists.newArrayList(INTERMEDIATE_RESPONSE)),
+        CompletableFuture.completedFuture(Lists.newArrayList(FAIL_RESPONSE)));
+
+    session.send(ALICE, BOB, MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES))).join();
+
+    assertThat(session.getTransactionState()).isEqualTo(TransactionState.READY);
+  }
+
+  @Test
+  public void itSendsRsetAfterAFailedTransaction() {
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenAnswer(a ->
+        CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE, FAIL_RESPONSE, FAIL_RESPONSE)));
+
+    session.send(ALICE, BOB, MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES))).join();
+    assertThat(session.getTransactionState()).isEqualTo(TransactionState.FAILED);
+
+    session.send(ALICE, BOB, MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES)));
+
+    verify(channel).write(commandsIncluding(req(SmtpCommand.RSET)));
+    assertThat(log.getLog()).endsWith("<pipeline RSET, MAIL, RCPT>, 250 OK, 400 nope, 400 nope");
+  }
+
+  @Test
+  public void itTracksTheTransactionStateFromResponses() {
+    resetEhloExtensions();
+
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenAnswer(a -> CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)));
+    session.send(MAIL_REQUEST).join();
+    assertThat(session.getTransactionState()).isEqualTo(TransactionState.IN_ENVELOPE);
+
+    session.send(RCPT_REQUEST).join();
+    assertThat(session.getTransactionState()).isEqualTo(TransactionState.IN_ENVELOPE);
+
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenAnswer(a -> CompletableFuture.completedFuture(Lists.newArrayList(INTERMEDIATE_RESPONSE)));
+    session.send(DATA_REQUEST).join();
+    assertThat(session.getTransactionState()).isEqualTo(TransactionState.IN_DATA);
+
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenAnswer(a -> CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)));
+    session.send(smtpContent).join();
+    assertThat(session.getTransactionState()).isEqualTo(TransactionState.READY);
+  }
+
+  @Test
+  public void itSendsLongSequencesWithoutGrowingTheStack() {
+    resetEhloExtensions();
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenAnswer(a -> CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)));
+
+    SmtpClientResponse response = session.send(ALICE, Collections.nCopies(20_000, BOB), MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES))).join();
+
+    // MAIL, each RCPT, DATA and the content
+    assertThat(response.getResponses()).hasSize(20_003);
+  }
+
+  @Test
+  public void itPipelinesLargeRecipientListsWithinTheRecipientWindow() {
+    session = new SmtpSession(channel, responseHandler, CONFIG.withRecipientWindowSize(4), SmtpSessionFactoryConfig.DIRECT_EXECUTOR, SSL_ENGINE_SUPPLIER);
+    setExtensions(Extension.PIPELINING);
+
+    List<CompletableFuture<List<SmtpResponse>>> futures = Lists.newArrayList();
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenAnswer(a -> {
+      CompletableFuture<List<SmtpResponse>> f = new CompletableFuture<>();
+      futures.add(f);
+      return f;
+    });
+
+    List<String> recipients = Lists.newArrayList("1@example.com", "2@example.com", "3@example.com", "4@example.com", "5@example.com", "6@example.com", "7@example.com");
+    CompletableFuture<SmtpClientResponse> future = session.send(ALICE, recipients, sevenBitContent);
+
+    // MAIL and the first recipient, then the next two recipients, fill the window of four
+    assertThat(futures).hasSize(2);
+    verify(channel).write(commandsIncluding(req(SmtpCommand.RCPT, "TO:<3@example.com>")));
+    verify(channel, never()).write(commandsIncluding(req(SmtpCommand.RCPT, "TO:<4@example.com>")));
+
+    futures.get(0).complete(Lists.newArrayList(OK_RESPONSE, OK_RESPONSE));
+    assertThat(futures).hasSize(3);
+    verify(channel).write(commandsIncluding(req(SmtpCommand.RCPT, "TO:<5@example.com>")));
+    verify(channel, never()).write(commandsIncluding(req(SmtpCommand.RCPT, "TO:<6@example.com>")));
+
+    // a rejected recipient doesn't stop the rest of the envelope being sent
+    futures.get(1).complete(Lists.newArrayList(FAIL_RESPONSE, OK_RESPONSE));
+    futures.get(2).complete(Lists.newArrayList(OK_RESPONSE, OK_RESPONSE));
+    futures.get(3).complete(Lists.newArrayList(OK_RESPONSE, OK_RESPONSE));
+    verify(channel).write(commandsIncluding(req(SmtpCommand.DATA)));
+    verify(channel, never()).write(sevenBitContent.getDotStuffedContent());
+
+    futures.get(4).complete(Lists.newArrayList(INTERMEDIATE_RESPONSE));
+    futures.get(5).complete(Lists.newArrayList(OK_RESPONSE));
+
+    assertThat(future.join().getResponses()).hasSize(10);
+
+    TransactionResult result = future.join().getTransactionResult().get();
+    assertThat(result.getAcceptedRecipientCount()).isEqualTo(6);
+    assertThat(result.getRecipientCode(1)).isEqualTo(FAIL_RESPONSE.code());
+    assertThat(result.isDelivered()).isTrue();
+  }
+
+  @Test
+  public void itAlignsTheTransactionResultWithTheRecipientsWhenRsetIsPrepended() {
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenAnswer(a -> {
+      int expectedResponses = a.getArgumentAt(1, Integer.class);
+      return CompletableFuture.completedFuture(Lists.newArrayList(Collections.nCopies(expectedResponses, FAIL_RESPONSE)));
+    });
+    session.send(ALICE, BOB, smtpContent).join();
+
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenReturn(
+        CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE, OK_RESPONSE, FAIL_RESPONSE, OK_RESPONSE, OK_RESPONSE)));
+    SmtpClientResponse response = session.send(ALICE, Lists.newArrayList(BOB, CAROL), MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES))).join();
+
+    TransactionResult result = response.getTransactionResult().get();
+    assertThat(result.getRecipientCode(0)).isEqualTo(FAIL_RESPONSE.code());
+    assertThat(result.isRecipientAccepted(1)).isTrue();
+    assertThat(result.getDataResponse()).contains(OK_RESPONSE);
+  }
+
+  @Test
+  public void itSendsTheNextEnvelopeWithTheEndOfTheContentWhenPipelining() {
+    setExtensions(Extension.PIPELINING);
+
+    List<CompletableFuture<List<SmtpResponse>>> futures = Lists.newArrayList();
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenAnswer(a -> {
+      CompletableFuture<List<SmtpResponse>> f = new CompletableFuture<>();
+      futures.add(f);
+      return f;
+    });
+
+    CompletableFuture<List<SmtpClientResponse>> future = session.sendAll(Lists.newArrayList(
+        OutgoingMessage.of(ALICE, Lists.newArrayList(BOB), sevenBitContent),
+        OutgoingMessage.of(ALICE, Lists.newArrayList(CAROL), MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES), MessageContentEncoding.SEVEN_BIT))).iterator());
+
+    futures.get(0).complete(Lists.newArrayList(OK_RESPONSE, OK_RESPONSE, INTERMEDIATE_RESPONSE));
+
+    // the second envelope is written before the server responds to the first message's content
+    InOrder order = inOrder(channel);
+    order.verify(channel).write(sevenBitContent.getDotStuffedContent());
+    order.verify(channel).write(commands(
+        req(SmtpCommand.RSET),
+        req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">"),
+        req(SmtpCommand.RCPT, "TO:<" + CAROL + ">"),
+        req(SmtpCommand.DATA)));
+    assertThat(futures).hasSize(3);
+
+    futures.get(1).complete(Lists.newArrayList(OK_RESPONSE));
+    futures.get(2).complete(Lists.newArrayList(OK_RESPONSE, OK_RESPONSE, OK_RESPONSE, INTERMEDIATE_RESPONSE));
+    futures.get(3).complete(Lists.newArrayList(OK_RESPONSE));
+
+    List<SmtpClientResponse> responses = future.join();
+    assertThat(responses).hasSize(2);
+    assertThat(responses.get(0).getResponses()).hasSize(4);
+    assertThat(responses.get(1).getResponses()).hasSize(5);
+    assertThat(responses.get(1).getTransactionResult().get().isDelivered()).isTrue();
+  }
+
+  @Test
+  public void itSendsMessagesInTurnWithoutPipelining() {
+    resetEhloExtensions();
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenAnswer(a -> CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)));
+
+    List<SmtpClientResponse> responses = session.sendAll(Lists.newArrayList(
+        OutgoingMessage.of(ALICE, Lists.newArrayList(BOB), sevenBitContent),
+        OutgoingMessage.of(ALICE, Lists.newArrayList(CAROL), MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES), MessageContentEncoding.SEVEN_BIT))).iterator()).join();
+
+    assertThat(responses).hasSize(2);
+    verify(channel, never()).write(req(SmtpCommand.RSET));
+  }
+
+  @Test
+  public void itMarksTheTransactionFailedIfNoResponseIsReceived() {
+    CompletableFuture<SmtpClientResponse> future = session.send(ALICE, BOB, MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES)));
+    responseFuture.completeExceptionally(new RuntimeException("timed out"));
+
+    assertThat(future.isCompletedExceptionally()).isTrue();
+    assertThat(session.getTransactionState()).isEqualTo(TransactionState.FAILED);
+  }
+
   @Test
   public void itDoesNotPipelineRsetUnlessSupportedByTheServer() {
     resetEhloExtensions();
-    when(responseHandler.createResponseFuture(anyString(), anyInt(), any())).thenAnswer(a -> CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)));
+
+    // the recipient is rejected, so the server is still in a transaction
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenReturn(
+        CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)),
+        CompletableFuture.completedFuture(Lists.newArrayList(FAIL_RESPONSE)))
+        .thenAnswer(a -> CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)));
 
     session.send(ALICE, BOB, MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES))).join();
     session.send(ALICE, BOB, MessageContent.of(Unpooled.copiedBuffer(MESSAGE_BYTES))).join();
@@ -515,10 +832,6 @@ public class SmtpSessionTest {
     order.verify(channel).flush();
     order.verify(channel).write(req(SmtpCommand.RCPT, "TO:<" + BOB + ">"));
     order.verify(channel).flush();
-    order.verify(channel).write(req(SmtpCommand.DATA));
-    order.verify(channel).flush();
-    order.verify(channel).write(DotCrlfBuffer.get());
-    order.verify(channel).flush();
 
     order.verify(channel).write(req(SmtpCommand.RSET));
     order.verify(channel).flush();
@@ -532,7 +845,7 @@ public class SmtpSessionTest {
     order.verify(channel).flush();
 
     assertThat(log.getLog()).isEqualTo(
-        "MAIL, 250 OK, RCPT, 250 OK, DATA, 250 OK, <contents>, 250 OK, " +
+        "MAIL, 250 OK, RCPT, 400 nope, " +
         "RSET, 250 OK, " +
         "MAIL, 250 OK, RCPT, 250 OK, DATA, 250 OK, <contents>, 250 OK");
   }
@@ -541,7 +854,7 @@ public class SmtpSessionTest {
   public void itSendsEmailsUsingChunkingIfItIsSupportedWithoutPipelining() throws Exception {
     setExtensions(Extension.CHUNKING);
 
-    when(responseHandler.createResponseFuture(anyString(), anyInt(), any())).thenAnswer(a -> CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)));
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenAnswer(a -> CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)));
 
     CompletableFuture<SmtpClientResponse> future = session.send(ALICE, BOB, smtpContent);
 
@@ -564,7 +877,7 @@ public class SmtpSessionTest {
   public void itSendsEmailsUsingChunkingIfItIsSupportedWithoutPipeliningAndMultipleRecipients() throws Exception {
     setExtensions(Extension.CHUNKING);
 
-    when(responseHandler.createResponseFuture(anyString(), anyInt(), any())).thenAnswer(a -> CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)));
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenAnswer(a -> CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)));
 
     CompletableFuture<SmtpClientResponse> future = session.send(ALICE, Lists.newArrayList(BOB, CAROL), smtpContent);
 
@@ -589,20 +902,22 @@ public class SmtpSessionTest {
   public void itSendsChunksOneAtATime() throws Exception {
     List<String> chunks = Lists.newArrayList("first chunk", "number two", "last one");
     MessageContent content = mock(MessageContent.class);
-    when(content.getContentChunkIterator(any()))
+    when(content.size()).thenReturn(OptionalInt.empty());
+    when(content.getContentChunkIterator(any(), anyInt()))
         .thenReturn(Iterators.transform(chunks.iterator(), c -> Unpooled.copiedBuffer(c.getBytes(StandardCharsets.UTF_8))));
 
     CompletableFuture<List<SmtpResponse>> future1 = new CompletableFuture<>();
     CompletableFuture<List<SmtpResponse>> future2 = new CompletableFuture<>();
     CompletableFuture<List<SmtpResponse>> future3 = new CompletableFuture<>();
 
-    when(responseHandler.createResponseFuture(anyString(), anyInt(), any())).thenReturn(future1, future2, future3);
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenReturn(future1, future2, future3);
 
     session.send(ALICE, Collections.singleton(BOB), content);
 
     InOrder order = inOrder(channel);
-    order.verify(channel).write(req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">"));
-    order.verify(channel).write(req(SmtpCommand.RCPT, "TO:<" + BOB + ">"));
+    order.verify(channel).write(commands(
+        req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">"),
+        req(SmtpCommand.RCPT, "TO:<" + BOB + ">")));
     order.verify(channel).write(byteBufCaptor.capture());
     order.verify(channel).flush();
 
@@ -628,6 +943,65 @@ public class SmtpSessionTest {
     assertThat(log.getLog()).isEqualTo("<pipeline MAIL, RCPT>, 250 OK, <contents>, 250 OK, <contents>");
   }
 
+  @Test
+  public void itReadsMessagesThatFitInOneChunkWhole() throws Exception {
+    MessageContent content = mock(MessageContent.class);
+    when(content.size()).thenReturn(OptionalInt.of(12));
+    when(content.getContentChunkIterator(any(), anyInt()))
+        .thenReturn(Iterators.singletonIterator(Unpooled.copiedBuffer("hello world\n".getBytes(StandardCharsets.UTF_8))));
+
+    session.send(ALICE, Collections.singleton(BOB), content);
+
+    verify(content).getContentChunkIterator(any(), eq(12));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void itPipelinesChunksWithinTheChunkWindowWhenTheChannelIsWritable() throws Exception {
+    session = new SmtpSession(channel, responseHandler, CONFIG.withChunkWindowBytes(20), SmtpSessionFactoryConfig.DIRECT_EXECUTOR, SSL_ENGINE_SUPPLIER);
+    setExtensions(Extension.PIPELINING, Extension.CHUNKING);
+    when(channel.isWritable()).thenReturn(true);
+
+    // the first chunk goes with the envelope, and the second (19 bytes with its BDAT command)
+    // fills the window
+    List<String> chunks = Lists.newArrayList("first chunk", "number two", "last one");
+    MessageContent content = mock(MessageContent.class);
+    when(content.size()).thenReturn(OptionalInt.empty());
+    when(content.getContentChunkIterator(any(), anyInt()))
+        .thenReturn(Iterators.transform(chunks.iterator(), c -> Unpooled.copiedBuffer(c.getBytes(StandardCharsets.UTF_8))));
+
+    CompletableFuture<List<SmtpResponse>> future1 = new CompletableFuture<>();
+    CompletableFuture<List<SmtpResponse>> future2 = new CompletableFuture<>();
+
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenReturn(future1, future2);
+
+    CompletableFuture<SmtpClientResponse> future = session.send(ALICE, Collections.singleton(BOB), content);
+
+    // the second chunk is written before the first has been acknowledged
+    InOrder order = inOrder(channel);
+    order.verify(channel).write(commands(
+        req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">"),
+        req(SmtpCommand.RCPT, "TO:<" + BOB + ">")));
+    order.verify(channel).write(byteBufCaptor.capture());
+    order.verify(channel).flush();
+    order.verify(channel).write(byteBufCaptor.capture());
+    order.verify(channel).flush();
+
+    assertThat(getString(byteBufCaptor.getAllValues().get(0)))
+        .isEqualTo("BDAT " + chunks.get(0).length() + "\r\n" + chunks.get(0));
+    assertThat(getString(byteBufCaptor.getAllValues().get(1)))
+        .isEqualTo("BDAT " + chunks.get(1).length() + "\r\n" + chunks.get(1));
+
+    // the last chunk is abandoned when the server rejects the first
+    future1.complete(Lists.newArrayList(OK_RESPONSE, OK_RESPONSE, new DefaultSmtpResponse(552, "Too much mail")));
+
+    assertThat(future.isDone()).isTrue();
+    assertThat(future.get().getResponses().get(2).code()).isEqualTo(552);
+    assertThat(future.get().getTransactionResult().get().isDelivered()).isFalse();
+
+    order.verify(channel, never()).write(any());
+  }
+
   @Test
   public void itSendsEmailsUsingDataIfTheContentIs7Bit() throws Exception {
     setExtensions(Extension.PIPELINING);
@@ -638,7 +1012,7 @@ public class SmtpSessionTest {
   public void itSendsEmailsUsingDataIfTheContentIs7BitWithoutPipeliningAndMultipleRecipients() throws Exception {
     resetEhloExtensions();
 
-    when(responseHandler.createResponseFuture(anyString(), anyInt(), any())).thenAnswer(a -> CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)));
+    when(responseHandler.createResponseFuture(any(), anyInt(), any())).thenAnswer(a -> CompletableFuture.completedFuture(Lists.newArrayList(OK_RESPONSE)));
 
     CompletableFuture<SmtpClientResponse> future = session.send(ALICE, Lists.newArrayList(BOB, CAROL), sevenBitContent);
 
@@ -667,10 +1041,11 @@ public class SmtpSessionTest {
     CompletableFuture<SmtpClientResponse> future = session.send(ALICE, Lists.newArrayList(BOB, CAROL), sevenBitContent);
 
     InOrder order = inOrder(channel);
-    order.verify(channel).write(req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">"));
-    order.verify(channel).write(req(SmtpCommand.RCPT, "TO:<" + BOB + ">"));
-    order.verify(channel).write(req(SmtpCommand.RCPT, "TO:<" + CAROL + ">"));
-    order.verify(channel).write(req(SmtpCommand.DATA));
+    order.verify(channel).write(commands(
+        req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">"),
+        req(SmtpCommand.RCPT, "TO:<" + BOB + ">"),
+        req(SmtpCommand.RCPT, "TO:<" + CAROL + ">"),
+        req(SmtpCommand.DATA)));
 
     responseFuture.complete(Lists.newArrayList(OK_RESPONSE, OK_RESPONSE, OK_RESPONSE, OK_RESPONSE));
 
@@ -691,9 +1066,10 @@ public class SmtpSessionTest {
     CompletableFuture<SmtpClientResponse> future = session.send(ALICE, BOB, unknownContent);
 
     InOrder order = inOrder(channel);
-    order.verify(channel).write(req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">", "BODY=8BITMIME"));
-    order.verify(channel).write(req(SmtpCommand.RCPT, "TO:<" + BOB + ">"));
-    order.verify(channel).write(req(SmtpCommand.DATA));
+    order.verify(channel).write(commands(
+        req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">", "BODY=8BITMIME"),
+        req(SmtpCommand.RCPT, "TO:<" + BOB + ">"),
+        req(SmtpCommand.DATA)));
 
     responseFuture.complete(Lists.newArrayList(OK_RESPONSE, OK_RESPONSE, OK_RESPONSE));
 
@@ -714,8 +1090,10 @@ public class SmtpSessionTest {
 
     session.send(ALICE, uberBob, unknownContent);
 
-    verify(channel).write(req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">", "SMTPUTF8"));
-    verify(channel).write(req(SmtpCommand.RCPT, "TO:<" + uberBob + ">"));
+    verify(channel).write(commands(
+        req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">", "SMTPUTF8"),
+        req(SmtpCommand.RCPT, "TO:<" + uberBob + ">"),
+        req(SmtpCommand.DATA)));
   }
 
   @Test
@@ -725,8 +1103,10 @@ public class SmtpSessionTest {
 
     session.send(ALICE, uberBob, unknownContent);
 
-    verify(channel).write(req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">", "BODY=8BITMIME", "SMTPUTF8"));
-    verify(channel).write(req(SmtpCommand.RCPT, "TO:<" + uberBob + ">"));
+    verify(channel).write(commands(
+        req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">", "BODY=8BITMIME", "SMTPUTF8"),
+        req(SmtpCommand.RCPT, "TO:<" + uberBob + ">"),
+        req(SmtpCommand.DATA)));
   }
 
   @Test
@@ -735,13 +1115,33 @@ public class SmtpSessionTest {
     assertSentAs7Bit(unknown7BitContent);
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  public void itTranscodesEightBitEmailsIfThe8BitMimeExtensionIsNotSupported() throws Exception {
+    setExtensions(Extension.PIPELINING);
+    MessageContent content = MessageContent.of(Unpooled.copiedBuffer("Subject: test\r\n\r\ncafé au lait\r\n", StandardCharsets.UTF_8));
+
+    session.send(ALICE, BOB, content);
+    responseFuture.complete(Lists.newArrayList(OK_RESPONSE, OK_RESPONSE, OK_RESPONSE));
+
+    verify(channel).write(isA(ChunkedInput.class));
+
+    ChunkedInput<ByteBuf> input = (ChunkedInput<ByteBuf>) objectsToRelease.stream().filter(o -> o instanceof ChunkedInput).findFirst().get();
+    ByteBuf chunk = input.readChunk(new PooledByteBufAllocator(false));
+    input.close();
+
+    assertThat(chunk.toString(StandardCharsets.US_ASCII)).endsWith("Content-Transfer-Encoding: quoted-printable\r\n\r\ncaf=C3=A9 au lait\r\n");
+    chunk.release();
+  }
+
   private void assertSentAs7Bit(MessageContent content) throws InterruptedException, ExecutionException {
     CompletableFuture<SmtpClientResponse> future = session.send(ALICE, BOB, content);
 
     InOrder order = inOrder(channel);
-    order.verify(channel).write(req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">"));
-    order.verify(channel).write(req(SmtpCommand.RCPT, "TO:<" + BOB + ">"));
-    order.verify(channel).write(req(SmtpCommand.DATA));
+    order.verify(channel).write(commands(
+        req(SmtpCommand.MAIL, "FROM:<" + ALICE + ">"),
+        req(SmtpCommand.RCPT, "TO:<" + BOB + ">"),
+        req(SmtpCommand.DATA)));
 
     responseFuture.complete(Lists.newArrayList(OK_RESPONSE, OK_RESPONSE, OK_RESPONSE));
 
@@ -778,7 +1178,7 @@ public class SmtpSessionTest {
 
     responseFuture.complete(responses);
 
-    verify(responseHandler).createResponseFuture(anyString(), eq(responsesExpected), any());
+    verify(responseHandler).createResponseFuture(any(), eq(responsesExpected), any());
 
     assertThat(future.isDone()).isTrue();
     assertThat(future.get().getResponses().size()).isEqualTo(responses.size());
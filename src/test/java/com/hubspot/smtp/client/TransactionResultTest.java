@@ -0,0 +1,72 @@
+package com.hubspot.smtp.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import io.netty.handler.codec.smtp.DefaultSmtpResponse;
+import io.netty.handler.codec.smtp.SmtpResponse;
+
+public class TransactionResultTest {
+  private static final SmtpResponse OK = new DefaultSmtpResponse(250, "Ok");
+  private static final SmtpResponse START_DATA = new DefaultSmtpResponse(354, "Go ahead");
+  private static final SmtpResponse NO_SUCH_USER = new EnhancedSmtpResponse(550, EnhancedStatusCode.of(5, 1, 1), "5.1.1 No such user");
+  private static final SmtpResponse NO_VALID_RECIPIENTS = new DefaultSmtpResponse(554, "No valid recipients");
+
+  @Test
+  public void itAlignsRecipientCodesWithTheRecipients() {
+    TransactionResult result = TransactionResult.of(responses(OK, OK, NO_SUCH_USER, OK, START_DATA, OK), 0, 3);
+
+    assertThat(result.isEnvelopeAccepted()).isTrue();
+    assertThat(result.getRecipientCount()).isEqualTo(3);
+    assertThat(result.getAcceptedRecipientCount()).isEqualTo(2);
+    assertThat(result.getRecipientCode(0)).isEqualTo(250);
+    assertThat(result.getRecipientCode(1)).isEqualTo(550);
+    assertThat(result.isRecipientAccepted(1)).isFalse();
+    assertThat(result.getRecipientEnhancedStatusCode(1)).contains(EnhancedStatusCode.of(5, 1, 1));
+    assertThat(result.getRecipientEnhancedStatusCode(0)).isEmpty();
+    assertThat(result.getRecipientResponse(1)).contains(NO_SUCH_USER);
+    assertThat(result.getDataResponse()).contains(OK);
+    assertThat(result.isDelivered()).isTrue();
+  }
+
+  @Test
+  public void itSkipsTheResponseToRset() {
+    TransactionResult result = TransactionResult.of(responses(OK, OK, NO_SUCH_USER, NO_VALID_RECIPIENTS), 1, 1);
+
+    assertThat(result.getMailResponse()).contains(OK);
+    assertThat(result.getRecipientCode(0)).isEqualTo(550);
+    assertThat(result.getDataResponse()).contains(NO_VALID_RECIPIENTS);
+    assertThat(result.isDelivered()).isFalse();
+  }
+
+  @Test
+  public void itGivesRecipientsWithoutResponsesNoCode() {
+    TransactionResult result = TransactionResult.of(responses(OK, NO_SUCH_USER), 0, 3);
+
+    assertThat(result.getRecipientCode(0)).isEqualTo(550);
+    assertThat(result.getRecipientCode(1)).isEqualTo(TransactionResult.NO_RESPONSE);
+    assertThat(result.getRecipientResponse(2)).isEmpty();
+    assertThat(result.isRecipientAccepted(2)).isFalse();
+    assertThat(result.getDataResponse()).isEmpty();
+    assertThat(result.isDelivered()).isFalse();
+  }
+
+  @Test
+  public void itHandlesARejectedEnvelope() {
+    TransactionResult result = TransactionResult.of(responses(NO_VALID_RECIPIENTS), 0, 2);
+
+    assertThat(result.isEnvelopeAccepted()).isFalse();
+    assertThat(result.getMailResponse()).contains(NO_VALID_RECIPIENTS);
+    assertThat(result.getAcceptedRecipientCount()).isEqualTo(0);
+    assertThat(result.getDataResponse()).isEmpty();
+  }
+
+  private static List<SmtpResponse> responses(SmtpResponse... responses) {
+    return Lists.newArrayList(responses);
+  }
+}
@@ -0,0 +1,73 @@
+package com.hubspot.smtp.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.smtp.SmtpRequest;
+import io.netty.handler.codec.smtp.SmtpRequests;
+
+public class Utf8SmtpRequestEncoderTest {
+  private EmbeddedChannel channel;
+
+  @Before
+  public void setup() {
+    channel = new EmbeddedChannel(new Utf8SmtpRequestEncoder());
+  }
+
+  @After
+  public void tearDown() {
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void itEncodesCommandsWithoutParametersFromSharedBuffers() {
+    assertThat(encode(SmtpRequests.rset())).isEqualTo("RSET\r\n");
+    assertThat(encode(SmtpRequests.data())).isEqualTo("DATA\r\n");
+    assertThat(encode(SmtpRequests.rset())).isEqualTo("RSET\r\n");
+  }
+
+  @Test
+  public void itEncodesParametersIntoBuffersOfTheExactSize() {
+    SmtpRequest request = SmtpRequests.mail("alice@example.com", "BODY=8BITMIME");
+    channel.writeOutbound(request);
+
+    ByteBuf buffer = channel.readOutbound();
+    String expected = "MAIL FROM:<alice@example.com> BODY=8BITMIME\r\n";
+    assertThat(buffer.toString(StandardCharsets.UTF_8)).isEqualTo(expected);
+    assertThat(buffer.capacity()).isEqualTo(expected.length());
+    buffer.release();
+  }
+
+  @Test
+  public void itEncodesUtf8Parameters() {
+    SmtpRequest request = SmtpRequests.rcpt("ünicode😀@example.com");
+    assertThat(encode(request)).isEqualTo("RCPT TO:<ünicode😀@example.com>\r\n");
+  }
+
+  @Test
+  public void itWritesPreEncodedRequestsFromTheirBytes() {
+    PreEncodedSmtpRequest request = PreEncodedSmtpRequest.of(SmtpRequests.rcpt("bob@example.com"));
+
+    assertThat(request.command()).isEqualTo(SmtpRequests.rcpt("bob@example.com").command());
+    assertThat(encode(request)).isEqualTo("RCPT TO:<bob@example.com>\r\n");
+    assertThat(encode(request)).isEqualTo("RCPT TO:<bob@example.com>\r\n");
+  }
+
+  private String encode(SmtpRequest request) {
+    channel.writeOutbound(request);
+
+    ByteBuf buffer = channel.readOutbound();
+    try {
+      return buffer.toString(StandardCharsets.UTF_8);
+    } finally {
+      buffer.release();
+    }
+  }
+}
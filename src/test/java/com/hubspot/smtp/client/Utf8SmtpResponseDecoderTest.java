@@ -0,0 +1,116 @@
+package com.hubspot.smtp.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hubspot.smtp.utils.SmtpResponses;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.smtp.SmtpResponse;
+
+public class Utf8SmtpResponseDecoderTest {
+  private Utf8SmtpResponseDecoder decoder;
+  private EmbeddedChannel channel;
+
+  @Before
+  public void setup() {
+    decoder = new Utf8SmtpResponseDecoder(100);
+    channel = new EmbeddedChannel(decoder);
+  }
+
+  @Test
+  public void itDecodesSingleLineResponses() {
+    SmtpResponse response = decode("250 2.1.0 Ok\r\n");
+
+    assertThat(response.code()).isEqualTo(250);
+    assertThat(SmtpResponses.toString(response)).isEqualTo("250 2.1.0 Ok");
+  }
+
+  @Test
+  public void itDecodesMultiLineResponses() {
+    SmtpResponse response = decode("250-smtp.example.com\r\n250-PIPELINING\r\n250 CHUNKING\r\n");
+
+    assertThat(response.code()).isEqualTo(250);
+    assertThat(response.details()).extracting(CharSequence::toString).containsExactly("smtp.example.com", "PIPELINING", "CHUNKING");
+  }
+
+  @Test
+  public void itDecodesResponsesSplitAcrossReads() {
+    channel.writeInbound(Unpooled.copiedBuffer("250-first\r\n25", StandardCharsets.UTF_8));
+    assertThat((Object) channel.readInbound()).isNull();
+
+    SmtpResponse response = decode("0 second\r\n");
+
+    assertThat(response.details()).extracting(CharSequence::toString).containsExactly("first", "second");
+  }
+
+  @Test
+  public void itDecodesUtf8Details() {
+    assertThat(decode("550 Ünzustellbar\r\n").details().get(0).toString()).isEqualTo("Ünzustellbar");
+  }
+
+  @Test
+  public void itDecodesResponsesWithoutDetails() {
+    SmtpResponse response = decode("250\r\n");
+
+    assertThat(response.code()).isEqualTo(250);
+    assertThat(response.details()).isEmpty();
+  }
+
+  @Test
+  public void itReturnsTheSameInstanceForRepeatedResponses() {
+    decode("250 2.1.5 Ok\r\n");
+    SmtpResponse response = decode("250 2.1.5 Ok\r\n");
+
+    assertThat(decode("250 2.1.5 Ok\r\n")).isSameAs(response);
+    assertThat(response.details().get(0)).isInstanceOf(String.class);
+  }
+
+  @Test
+  public void itOnlyCachesResponsesThatAreSeenAgain() {
+    SmtpResponse first = decode("250 2.0.0 Ok: queued as 4F3A2C1\r\n");
+    SmtpResponse second = decode("250 2.0.0 Ok: queued as 4F3A2C1\r\n");
+
+    assertThat(second).isNotSameAs(first);
+    assertThat(decode("250 2.0.0 Ok: queued as 4F3A2C1\r\n")).isSameAs(second);
+  }
+
+  @Test
+  public void itParsesEnhancedStatusCodesOnceEnabled() {
+    assertThat(decode("550 5.1.1 No such user\r\n")).isNotInstanceOf(EnhancedSmtpResponse.class);
+
+    decoder.setParseEnhancedStatusCodes(true);
+
+    SmtpResponse response = decode("550 5.1.1 No such user\r\n");
+    assertThat(EnhancedStatusCode.fromResponse(response)).contains(EnhancedStatusCode.of(5, 1, 1));
+    assertThat(SmtpResponses.toString(response)).isEqualTo("550 5.1.1 No such user");
+
+    assertThat(EnhancedStatusCode.fromResponse(decode("250-2.0.0 first\r\n250 2.0.0 second\r\n"))).contains(EnhancedStatusCode.of(2, 0, 0));
+    assertThat(decode("250 Ok\r\n")).isNotInstanceOf(EnhancedSmtpResponse.class);
+  }
+
+  @Test
+  public void itRejectsLinesThatAreTooLong() {
+    StringBuilder line = new StringBuilder("250 ");
+    for (int i = 0; i < 100; i++) {
+      line.append('x');
+    }
+
+    assertThatThrownBy(() -> decode(line + "\r\n")).isInstanceOf(TooLongFrameException.class);
+
+    // the decoder recovers for the next line
+    assertThat(decode("250 Ok\r\n").code()).isEqualTo(250);
+  }
+
+  private SmtpResponse decode(String s) {
+    channel.writeInbound(Unpooled.copiedBuffer(s, StandardCharsets.UTF_8));
+    return channel.readInbound();
+  }
+}
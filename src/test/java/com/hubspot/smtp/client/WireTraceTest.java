@@ -0,0 +1,35 @@
+package com.hubspot.smtp.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.smtp.DefaultSmtpRequest;
+import io.netty.handler.codec.smtp.DefaultSmtpResponse;
+import io.netty.handler.codec.smtp.SmtpCommand;
+import io.netty.handler.codec.smtp.SmtpRequests;
+
+public class WireTraceTest {
+  @Test
+  public void itDescribesCommandsAndResponses() {
+    assertThat(WireTrace.describe(SmtpRequests.mail("alice@example.com"))).isEqualTo("MAIL FROM:<alice@example.com>");
+    assertThat(WireTrace.describe(new DefaultSmtpResponse(250, "2.1.0 Ok"))).isEqualTo("250 2.1.0 Ok");
+  }
+
+  @Test
+  public void itRedactsAuthenticationAndContent() {
+    assertThat(WireTrace.describe(new DefaultSmtpRequest(SmtpCommand.valueOf("AUTH"), "PLAIN", "secret"))).isEqualTo("<redacted-auth-command>");
+    assertThat(WireTrace.describe(Unpooled.EMPTY_BUFFER)).isEqualTo("[CONTENT]");
+  }
+
+  @Test
+  public void itDoesNotTraceSessionsThatAreNotSampled() {
+    EmbeddedChannel channel = new EmbeddedChannel();
+
+    new WireTrace(0, 10).startSession(channel, "connection");
+
+    assertThat(WireTrace.forChannel(channel)).isNull();
+  }
+}
@@ -4,12 +4,18 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 import java.io.ByteArrayInputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
 import java.util.OptionalInt;
 
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteSource;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
 public class InputStreamMessageContentTest extends MessageContentTest {
   @Override
   protected MessageContent createContent(byte[] bytes) {
@@ -28,4 +34,32 @@ public class InputStreamMessageContentTest extends MessageContentTest {
     MessageContent content = new InputStreamMessageContent(() -> stream, OptionalInt.empty(), MessageContentEncoding.UNKNOWN);
     assertThat(content.get8bitCharacterProportion()).isEqualTo(0.1F);
   }
+
+  @Test
+  public void itReadsChunksOfTheGivenSize() {
+    MessageContent content = createContent("abcdefghij".getBytes(StandardCharsets.UTF_8));
+
+    List<String> chunks = Lists.newArrayList();
+    Iterator<ByteBuf> iterator = content.getContentChunkIterator(UnpooledByteBufAllocator.DEFAULT, 4);
+    while (iterator.hasNext()) {
+      ByteBuf chunk = iterator.next();
+      chunks.add(chunk.toString(StandardCharsets.UTF_8));
+      chunk.release();
+    }
+
+    assertThat(chunks).containsExactly("abcd", "efgh", "ij\r\n");
+  }
+
+  @Test
+  public void itLimitsTheSizeOfChunksReadFromTheStream() {
+    MessageContent content = createContent(new byte[InputStreamMessageContent.MAX_CHUNK_SIZE + 1]);
+
+    Iterator<ByteBuf> iterator = content.getContentChunkIterator(UnpooledByteBufAllocator.DEFAULT, 1024 * 1024);
+    ByteBuf chunk = iterator.next();
+    try {
+      assertThat(chunk.readableBytes()).isEqualTo(InputStreamMessageContent.MAX_CHUNK_SIZE);
+    } finally {
+      chunk.release();
+    }
+  }
 }
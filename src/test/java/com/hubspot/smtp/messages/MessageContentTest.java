@@ -27,6 +27,12 @@ public abstract class MessageContentTest {
     };
 
     assertThat(createContent(mixed).get8bitCharacterProportion()).isEqualTo(0.5F);
+
+    byte[] highBitFirst = new byte[] {
+        (byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+    };
+
+    assertThat(createContent(highBitFirst).get8bitCharacterProportion()).isEqualTo(0.125F);
   }
 
   protected abstract MessageContent createContent(byte[] bytes);
@@ -0,0 +1,183 @@
+package com.hubspot.smtp.messages;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteSource;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.handler.stream.ChunkedInput;
+
+public class SevenBitMessageContentTest {
+  private static final String CRLF = "\r\n";
+  private static final UnpooledByteBufAllocator ALLOCATOR = new UnpooledByteBufAllocator(false);
+  private static final int SANE_CHUNK_SIZE = 8192;
+
+  private static final String MULTIPART_MESSAGE = "Subject: test" + CRLF +
+      "MIME-Version: 1.0" + CRLF +
+      "Content-Type: multipart/alternative;" + CRLF +
+      "  boundary=\"XYZ\"" + CRLF +
+      CRLF +
+      "preamble" + CRLF +
+      "--XYZ" + CRLF +
+      "Content-Type: text/plain; charset=UTF-8" + CRLF +
+      CRLF +
+      "plain text" + CRLF +
+      "--XYZ" + CRLF +
+      "Content-Type: text/plain; charset=UTF-8" + CRLF +
+      "Content-Transfer-Encoding: 8bit" + CRLF +
+      CRLF +
+      "Grüße aus Köln, wo es heute regnet" + CRLF +
+      CRLF +
+      "--XYZ" + CRLF +
+      "Content-Type: text/plain; charset=UTF-8" + CRLF +
+      CRLF +
+      "日本語のテキスト" + CRLF +
+      "--XYZ--" + CRLF +
+      "epilogue" + CRLF;
+
+  @Test
+  public void itEncodesMostlySevenBitBodiesAsQuotedPrintable() {
+    String transcoded = transcode("Subject: hi" + CRLF + CRLF + "café au lait" + CRLF, SANE_CHUNK_SIZE);
+
+    assertThat(transcoded).isEqualTo("Subject: hi" + CRLF +
+        "MIME-Version: 1.0" + CRLF +
+        "Content-Transfer-Encoding: quoted-printable" + CRLF +
+        CRLF +
+        "caf=C3=A9 au lait" + CRLF);
+  }
+
+  @Test
+  public void itEncodesMostlyEightBitBodiesAsBase64() {
+    String transcoded = transcode("Subject: hi" + CRLF + "Content-Transfer-Encoding: 8bit" + CRLF + CRLF + "日本語" + CRLF, SANE_CHUNK_SIZE);
+
+    assertThat(transcoded).isEqualTo("Subject: hi" + CRLF +
+        "MIME-Version: 1.0" + CRLF +
+        "Content-Transfer-Encoding: base64" + CRLF +
+        CRLF +
+        Base64.getEncoder().encodeToString("日本語".getBytes(StandardCharsets.UTF_8)) + CRLF);
+  }
+
+  @Test
+  public void itOnlyEncodesTheEightBitPartsOfMultipartMessages() throws Exception {
+    String transcoded = transcode(MULTIPART_MESSAGE, SANE_CHUNK_SIZE);
+
+    assertThat(transcoded).contains("preamble" + CRLF + "--XYZ" + CRLF + "Content-Type: text/plain; charset=UTF-8" + CRLF + CRLF + "plain text" + CRLF + "--XYZ" + CRLF);
+    assertThat(transcoded).contains("Content-Transfer-Encoding: quoted-printable" + CRLF + CRLF + "Gr=C3=BC=C3=9Fe aus K=C3=B6ln, wo es heute regnet" + CRLF + CRLF + "--XYZ" + CRLF);
+    assertThat(transcoded).contains("Content-Transfer-Encoding: base64" + CRLF);
+    assertThat(transcoded).doesNotContain("8bit");
+    assertThat(transcoded).endsWith("--XYZ--" + CRLF + "epilogue" + CRLF);
+    assertSevenBit(transcoded);
+
+    MimeMultipart multipart = (MimeMultipart) parse(transcoded).getContent();
+    assertThat(multipart.getCount()).isEqualTo(3);
+    assertThat(multipart.getBodyPart(0).getContent()).isEqualTo("plain text");
+    assertThat(multipart.getBodyPart(1).getContent()).isEqualTo("Grüße aus Köln, wo es heute regnet" + CRLF);
+    assertThat(multipart.getBodyPart(2).getContent()).isEqualTo("日本語のテキスト");
+  }
+
+  @Test
+  public void itTranscodesTheSameWayWhateverTheChunkSize() {
+    String expected = transcode(MULTIPART_MESSAGE, SANE_CHUNK_SIZE);
+
+    for (int chunkSize = 1; chunkSize < 20; chunkSize++) {
+      assertThat(transcode(MULTIPART_MESSAGE, chunkSize)).isEqualTo(expected);
+    }
+
+    SevenBitMessageContent streamedContent = new SevenBitMessageContent(
+        MessageContent.of(ByteSource.wrap(MULTIPART_MESSAGE.getBytes(StandardCharsets.UTF_8))));
+    assertThat(read(streamedContent.getContentChunkIterator(ALLOCATOR, 5))).isEqualTo(expected);
+  }
+
+  @Test
+  public void itKeepsQuotedPrintableLinesShortAndEncodesTrailingWhitespace() throws Exception {
+    String body = Strings.repeat("a mostly seven bit é ", 10) + CRLF + "end" + CRLF;
+    String transcoded = transcode("Content-Type: text/plain; charset=UTF-8" + CRLF + CRLF + body, SANE_CHUNK_SIZE);
+
+    assertSevenBit(transcoded);
+    for (String line : transcoded.split(CRLF)) {
+      assertThat(line.length()).isLessThanOrEqualTo(76);
+    }
+    assertThat(transcoded).contains("=20" + CRLF + "end" + CRLF);
+
+    assertThat(parse(transcoded).getContent()).isEqualTo(body);
+  }
+
+  @Test
+  public void itEncodesPartsThatAreLongerThanTheSample() throws Exception {
+    String body = Strings.repeat("seven bit text" + CRLF, 1000) + "ünd eight" + CRLF;
+    String transcoded = transcode("Content-Type: text/plain; charset=UTF-8" + CRLF + CRLF + body, SANE_CHUNK_SIZE);
+
+    assertSevenBit(transcoded);
+    assertThat(transcoded).contains("Content-Transfer-Encoding: quoted-printable");
+    assertThat(parse(transcoded).getContent()).isEqualTo(body);
+  }
+
+  @Test
+  public void itLeavesSevenBitAndEncodedPartsAlone() {
+    String message = "Content-Type: text/plain" + CRLF + CRLF + "plain" + CRLF;
+    assertThat(transcode(message, SANE_CHUNK_SIZE)).isEqualTo(message);
+
+    String encodedMessage = "Content-Type: application/octet-stream" + CRLF +
+        "Content-Transfer-Encoding: base64" + CRLF + CRLF + "AAEC" + CRLF;
+    assertThat(transcode(encodedMessage, SANE_CHUNK_SIZE)).isEqualTo(encodedMessage);
+  }
+
+  @Test
+  public void itDotStuffsTheTranscodedContent() throws Exception {
+    MessageContent content = new SevenBitMessageContent(createContent("Subject: hi" + CRLF + CRLF + ".café au lait" + CRLF + ".plain"));
+
+    @SuppressWarnings("unchecked")
+    ChunkedInput<ByteBuf> input = (ChunkedInput<ByteBuf>) content.getDotStuffedContent(4);
+
+    StringBuilder sb = new StringBuilder();
+    while (!input.isEndOfInput()) {
+      ByteBuf chunk = input.readChunk(ALLOCATOR);
+      sb.append(chunk.toString(StandardCharsets.US_ASCII));
+      chunk.release();
+    }
+    input.close();
+
+    assertThat(sb.toString()).endsWith(CRLF + CRLF + "..caf=C3=A9 au lait" + CRLF + "..plain" + CRLF);
+  }
+
+  private static MessageContent createContent(String message) {
+    return MessageContent.of(Unpooled.wrappedBuffer(message.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static String transcode(String message, int chunkSize) {
+    return read(new SevenBitMessageContent(createContent(message)).getContentChunkIterator(ALLOCATOR, chunkSize));
+  }
+
+  private static String read(Iterator<ByteBuf> iterator) {
+    StringBuilder sb = new StringBuilder();
+    while (iterator.hasNext()) {
+      ByteBuf chunk = iterator.next();
+      sb.append(chunk.toString(StandardCharsets.ISO_8859_1));
+      chunk.release();
+    }
+    return sb.toString();
+  }
+
+  private static void assertSevenBit(String transcoded) {
+    assertThat(transcoded.chars().allMatch(c -> c < 128)).isTrue();
+  }
+
+  private static MimeMessage parse(String transcoded) throws Exception {
+    return new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(transcoded.getBytes(StandardCharsets.US_ASCII)));
+  }
+}
@@ -0,0 +1,150 @@
+package com.hubspot.smtp.routing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+
+public class CachingMxResolverTest {
+  private static final String DOMAIN = "example.com";
+  private static final Duration MIN_TTL = Duration.ofSeconds(10);
+  private static final Duration MAX_TTL = Duration.ofMinutes(10);
+  private static final MxRecord RECORD = MxRecord.of("mx1.example.com", 10, Duration.ofMinutes(1));
+
+  private MxResolver delegate;
+  private FakeTicker ticker;
+  private CachingMxResolver resolver;
+
+  @Before
+  public void setup() {
+    delegate = mock(MxResolver.class);
+    ticker = new FakeTicker();
+    resolver = new CachingMxResolver(delegate, MIN_TTL, MAX_TTL, ticker);
+
+    when(delegate.resolve(DOMAIN)).thenReturn(CompletableFuture.completedFuture(ImmutableList.of(RECORD)));
+  }
+
+  @Test
+  public void itCachesRecordsForTheirTtl() throws Exception {
+    assertThat(resolver.resolve(DOMAIN).get()).containsExactly(RECORD);
+
+    ticker.advance(Duration.ofSeconds(59));
+    assertThat(resolver.resolve(DOMAIN).get()).containsExactly(RECORD);
+    verify(delegate, times(1)).resolve(DOMAIN);
+
+    ticker.advance(Duration.ofSeconds(1));
+    assertThat(resolver.resolve(DOMAIN).get()).containsExactly(RECORD);
+    verify(delegate, times(2)).resolve(DOMAIN);
+  }
+
+  @Test
+  public void itUsesTheSmallestTtl() throws Exception {
+    MxRecord shortLivedRecord = MxRecord.of("mx2.example.com", 20, Duration.ofSeconds(20));
+    when(delegate.resolve(DOMAIN)).thenReturn(CompletableFuture.completedFuture(ImmutableList.of(RECORD, shortLivedRecord)));
+
+    resolver.resolve(DOMAIN).get();
+    ticker.advance(Duration.ofSeconds(20));
+    resolver.resolve(DOMAIN).get();
+
+    verify(delegate, times(2)).resolve(DOMAIN);
+  }
+
+  @Test
+  public void itLimitsTheTtlToTheMaximum() throws Exception {
+    when(delegate.resolve(DOMAIN)).thenReturn(completed(MxRecord.of("mx1.example.com", 10, Duration.ofDays(1))));
+
+    resolver.resolve(DOMAIN).get();
+    ticker.advance(MAX_TTL);
+    resolver.resolve(DOMAIN).get();
+
+    verify(delegate, times(2)).resolve(DOMAIN);
+  }
+
+  @Test
+  public void itLimitsTheTtlToTheMinimum() throws Exception {
+    when(delegate.resolve(DOMAIN)).thenReturn(completed(MxRecord.of("mx1.example.com", 10, Duration.ZERO)));
+
+    resolver.resolve(DOMAIN).get();
+    ticker.advance(MIN_TTL.minusNanos(1));
+    resolver.resolve(DOMAIN).get();
+
+    verify(delegate, times(1)).resolve(DOMAIN);
+  }
+
+  @Test
+  public void itCachesDomainsWithoutRecordsForTheMinimumTtl() throws Exception {
+    when(delegate.resolve(DOMAIN)).thenReturn(completed());
+
+    assertThat(resolver.resolve(DOMAIN).get()).isEmpty();
+    ticker.advance(MIN_TTL.minusNanos(1));
+    resolver.resolve(DOMAIN).get();
+    verify(delegate, times(1)).resolve(DOMAIN);
+
+    ticker.advance(Duration.ofNanos(1));
+    resolver.resolve(DOMAIN).get();
+    verify(delegate, times(2)).resolve(DOMAIN);
+  }
+
+  @Test
+  public void itSharesLookupsInProgress() {
+    CompletableFuture<List<MxRecord>> lookupFuture = new CompletableFuture<>();
+    when(delegate.resolve(DOMAIN)).thenReturn(lookupFuture);
+
+    CompletableFuture<List<MxRecord>> f1 = resolver.resolve(DOMAIN);
+    CompletableFuture<List<MxRecord>> f2 = resolver.resolve(DOMAIN);
+
+    verify(delegate, times(1)).resolve(DOMAIN);
+    assertThat(f1.isDone()).isFalse();
+
+    lookupFuture.complete(ImmutableList.of(RECORD));
+
+    assertThat(f1.join()).containsExactly(RECORD);
+    assertThat(f2.join()).containsExactly(RECORD);
+  }
+
+  @Test
+  public void itDoesNotCacheFailures() {
+    CompletableFuture<List<MxRecord>> failedFuture = new CompletableFuture<>();
+    failedFuture.completeExceptionally(new RuntimeException("SERVFAIL"));
+    when(delegate.resolve(DOMAIN)).thenReturn(failedFuture).thenReturn(completed(RECORD));
+
+    assertThat(resolver.resolve(DOMAIN).isCompletedExceptionally()).isTrue();
+    assertThat(resolver.resolve(DOMAIN).join()).containsExactly(RECORD);
+  }
+
+  @Test
+  public void itIgnoresTheCaseAndTrailingDotOfDomains() throws Exception {
+    resolver.resolve(DOMAIN).get();
+    resolver.resolve("Example.COM.").get();
+
+    verify(delegate, times(1)).resolve(DOMAIN);
+  }
+
+  private static CompletableFuture<List<MxRecord>> completed(MxRecord... records) {
+    return CompletableFuture.completedFuture(ImmutableList.copyOf(records));
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(Duration duration) {
+      nanos += duration.toNanos();
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package com.hubspot.smtp.routing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.hubspot.smtp.client.SmtpSession;
+import com.hubspot.smtp.client.SmtpSessionPool;
+
+public class MxRouterTest {
+  private static final String DOMAIN = "example.com";
+  private static final Duration TTL = Duration.ofMinutes(5);
+
+  private InMemoryMxResolver resolver;
+  private Map<String, SmtpSessionPool> pools;
+  private MxRouter router;
+
+  @Before
+  public void setup() {
+    resolver = new InMemoryMxResolver();
+    pools = Maps.newHashMap();
+    router = new MxRouter(resolver, host -> pools.computeIfAbsent(host, h -> createPool(CompletableFuture.completedFuture(mock(SmtpSession.class)))));
+  }
+
+  @Test
+  public void itUsesThePreferredMailExchanger() throws Exception {
+    resolver.setRecords(DOMAIN, MxRecord.of("mx2.example.com", 20, TTL), MxRecord.of("mx1.example.com", 10, TTL));
+
+    router.acquire(DOMAIN).get();
+
+    assertThat(router.getHosts()).containsExactly("mx1.example.com");
+  }
+
+  @Test
+  public void itFallsBackToTheNextMailExchanger() throws Exception {
+    resolver.setRecords(DOMAIN, MxRecord.of("mx1.example.com", 10, TTL), MxRecord.of("mx2.example.com", 20, TTL));
+    pools.put("mx1.example.com", createPool(failedFuture(new RuntimeException("connection refused"))));
+    SmtpSession session = mock(SmtpSession.class);
+    pools.put("mx2.example.com", createPool(CompletableFuture.completedFuture(session)));
+
+    assertThat(router.acquire(DOMAIN).get()).isSameAs(session);
+  }
+
+  @Test
+  public void itFailsWithTheLastErrorIfNoMailExchangerIsAvailable() {
+    resolver.setRecords(DOMAIN, MxRecord.of("mx1.example.com", 10, TTL), MxRecord.of("mx2.example.com", 20, TTL));
+    pools.put("mx1.example.com", createPool(failedFuture(new RuntimeException("first"))));
+    pools.put("mx2.example.com", createPool(failedFuture(new RuntimeException("second"))));
+
+    assertThatThrownBy(() -> router.acquire(DOMAIN).get())
+        .isInstanceOf(ExecutionException.class)
+        .hasMessageContaining("second");
+  }
+
+  @Test
+  public void itUsesTheDomainItselfIfThereAreNoMxRecords() throws Exception {
+    router.acquire("Example.com").get();
+
+    assertThat(router.getHosts()).containsExactly(DOMAIN);
+  }
+
+  @Test
+  public void itReleasesSessionsToThePoolTheyCameFrom() throws Exception {
+    resolver.setRecords(DOMAIN, MxRecord.of("mx1.example.com", 10, TTL));
+
+    SmtpSession session = router.acquire(DOMAIN).get();
+    router.release(session);
+
+    verify(pools.get("mx1.example.com")).release(session);
+    assertThatThrownBy(() -> router.release(session)).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void itSharesPoolsBetweenDomains() throws Exception {
+    resolver.setRecords(DOMAIN, MxRecord.of("mx.example.net", 10, TTL));
+    resolver.setRecords("example.org", MxRecord.of("mx.example.net", 10, TTL));
+
+    router.acquire(DOMAIN).get();
+    router.acquire("example.org").get();
+
+    assertThat(router.getHosts()).containsExactly("mx.example.net");
+  }
+
+  @Test
+  public void itClosesThePools() throws Exception {
+    resolver.setRecords(DOMAIN, MxRecord.of("mx1.example.com", 10, TTL));
+    router.acquire(DOMAIN).get();
+    SmtpSessionPool pool = pools.get("mx1.example.com");
+    when(pool.closeAsync()).thenReturn(CompletableFuture.completedFuture(null));
+
+    router.close();
+
+    verify(pool).closeAsync();
+    assertThatThrownBy(() -> router.acquire(DOMAIN)).isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  public void itClosesPoolsThatHaveBeenIdle() throws Exception {
+    long[] nanos = new long[1];
+    Ticker ticker = new Ticker() {
+      @Override
+      public long read() {
+        return nanos[0];
+      }
+    };
+    MxRouter idleRouter = new MxRouter(resolver, host -> pools.computeIfAbsent(host, h -> createPool(CompletableFuture.completedFuture(mock(SmtpSession.class)))),
+        Duration.ofMinutes(10), ticker);
+    resolver.setRecords(DOMAIN, MxRecord.of("mx1.example.com", 10, TTL));
+    resolver.setRecords("example.org", MxRecord.of("mx2.example.org", 10, TTL));
+
+    SmtpSession session = idleRouter.acquire(DOMAIN).get();
+    idleRouter.acquire("example.org").get();
+    idleRouter.release(session);
+    pools.values().forEach(pool -> when(pool.closeAsync()).thenReturn(CompletableFuture.completedFuture(null)));
+
+    nanos[0] += Duration.ofMinutes(10).toNanos();
+    idleRouter.acquire("example.org").get();
+
+    // the pool with a session still leased is kept
+    verify(pools.get("mx1.example.com")).closeAsync();
+    verify(pools.get("mx2.example.org"), never()).closeAsync();
+    assertThat(idleRouter.getHosts()).containsExactly("mx2.example.org");
+  }
+
+  @Test
+  public void itOrdersHostsByPreference() {
+    List<MxRecord> records = ImmutableList.of(
+        MxRecord.of("c.example.com", 30, TTL),
+        MxRecord.of("a.example.com", 10, TTL),
+        MxRecord.of("b.example.com", 20, TTL),
+        MxRecord.of("A.example.com", 40, TTL));
+
+    assertThat(MxRouter.getHostsInOrder(DOMAIN, records)).containsExactly("a.example.com", "b.example.com", "c.example.com");
+  }
+
+  @Test
+  public void itShufflesHostsWithTheSamePreference() {
+    List<MxRecord> records = ImmutableList.of(
+        MxRecord.of("a.example.com", 10, TTL),
+        MxRecord.of("b.example.com", 10, TTL));
+
+    boolean sawEachOrder = false;
+    boolean sawAFirst = false;
+    boolean sawBFirst = false;
+    for (int i = 0; i < 100 && !sawEachOrder; i++) {
+      String first = MxRouter.getHostsInOrder(DOMAIN, records).get(0);
+      sawAFirst |= first.equals("a.example.com");
+      sawBFirst |= first.equals("b.example.com");
+      sawEachOrder = sawAFirst && sawBFirst;
+    }
+
+    assertThat(sawEachOrder).isTrue();
+  }
+
+  @Test
+  public void itDoesNotCreatePoolsWhenTheLookupFails() {
+    MxResolver failingResolver = mock(MxResolver.class);
+    when(failingResolver.resolve(DOMAIN)).thenReturn(failedFuture(new RuntimeException("SERVFAIL")));
+    @SuppressWarnings("unchecked")
+    Function<String, SmtpSessionPool> poolFactory = mock(Function.class);
+
+    MxRouter failingRouter = new MxRouter(failingResolver, poolFactory);
+
+    assertThat(failingRouter.acquire(DOMAIN).isCompletedExceptionally()).isTrue();
+    verify(poolFactory, never()).apply(DOMAIN);
+  }
+
+  private static SmtpSessionPool createPool(CompletableFuture<SmtpSession> acquireFuture) {
+    SmtpSessionPool pool = mock(SmtpSessionPool.class);
+    when(pool.acquire()).thenReturn(acquireFuture);
+    return pool;
+  }
+
+  private static <T> CompletableFuture<T> failedFuture(Throwable throwable) {
+    CompletableFuture<T> f = new CompletableFuture<>();
+    f.completeExceptionally(throwable);
+    return f;
+  }
+}
@@ -0,0 +1,79 @@
+package com.hubspot.smtp.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+
+public class AsyncTtlCacheTest {
+  private static final long TTL_NANOS = Duration.ofSeconds(30).toNanos();
+
+  private List<String> loads;
+  private List<CompletableFuture<String>> loadFutures;
+  private long nanos;
+  private AsyncTtlCache<String, String> cache;
+
+  @Before
+  public void setup() {
+    loads = Lists.newArrayList();
+    loadFutures = Lists.newArrayList();
+
+    Ticker ticker = new Ticker() {
+      @Override
+      public long read() {
+        return nanos;
+      }
+    };
+
+    cache = new AsyncTtlCache<>(key -> {
+      loads.add(key);
+      CompletableFuture<String> f = new CompletableFuture<>();
+      loadFutures.add(f);
+      return f;
+    }, value -> TTL_NANOS, ticker);
+  }
+
+  @Test
+  public void itGivesEachCallerItsOwnFuture() {
+    CompletableFuture<String> f1 = cache.get("a");
+    CompletableFuture<String> f2 = cache.get("a");
+
+    f1.complete("tampered");
+    loadFutures.get(0).complete("value");
+
+    assertThat(f2.join()).isEqualTo("value");
+    assertThat(cache.get("a").join()).isEqualTo("value");
+    assertThat(loads).containsExactly("a");
+  }
+
+  @Test
+  public void itRemovesExpiredEntriesAsItIsUsed() {
+    cache.get("a");
+    cache.get("b");
+    loadFutures.forEach(f -> f.complete("value"));
+    assertThat(cache.size()).isEqualTo(2);
+
+    nanos += Duration.ofMinutes(1).toNanos();
+    cache.get("c");
+
+    assertThat(cache.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void itDoesNotRemoveEntriesThatAreStillLoading() {
+    cache.get("a");
+
+    nanos += Duration.ofMinutes(1).toNanos();
+    cache.get("b");
+
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(loads).containsExactly("a", "b");
+  }
+}